@@ -0,0 +1,66 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.nokicert.CertParser;
+import net.tuxed.nokicert.NokiCertUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing an X.509 certificate and building its CDF entry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CertParserBenchmark {
+
+	private byte[] certificate;
+	private CertParser parser;
+
+	@Benchmark
+	public CertParser construct() throws GjokiiException {
+		return new CertParser(certificate);
+	}
+
+	@Benchmark
+	public byte[] getCDFEntry() throws GjokiiException {
+		return parser.getCDFEntry(true, NokiCertUtils.APPS_SIGNING | NokiCertUtils.SERVER_AUTHENTIC);
+	}
+
+	@Setup
+	public void setUp() throws IOException, GjokiiException {
+		certificate = Fixtures.certificate();
+		parser = new CertParser(certificate);
+	}
+}
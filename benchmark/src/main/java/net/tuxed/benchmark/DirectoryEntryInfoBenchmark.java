@@ -0,0 +1,71 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import net.tuxed.gjokii.DirectoryEntryInfo;
+import net.tuxed.gjokii.GjokiiException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a directory entry as received for FILE_INFO and FILE_LIST.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryEntryInfoBenchmark {
+
+	private byte[] entry;
+
+	@Benchmark
+	public DirectoryEntryInfo parse() throws GjokiiException {
+		return new DirectoryEntryInfo(entry);
+	}
+
+	/**
+	 * Parsing followed by everything a listing shows of the entry.
+	 */
+	@Benchmark
+	public void parseAndFormat(final Blackhole bh) throws GjokiiException {
+		final DirectoryEntryInfo d = new DirectoryEntryInfo(entry);
+		bh.consume(d.getEntryName());
+		bh.consume(d.getEntryDate());
+		bh.consume(d.getEntryTime());
+		bh.consume(d.getEntryTimeStamp());
+	}
+
+	@Setup
+	public void setUp() throws UnsupportedEncodingException {
+		entry = Fixtures.directoryEntry("ext_info.sys", 4096);
+	}
+}
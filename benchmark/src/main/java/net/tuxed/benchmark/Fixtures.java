@@ -0,0 +1,132 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.nokicert.CertParser;
+import net.tuxed.nokicert.NokiCertUtils;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * A self signed DER encoded CA certificate with subject "CN=Test CA".
+	 */
+	static byte[] certificate() throws IOException {
+		final InputStream is = Fixtures.class.getResourceAsStream("test-ca.der");
+		if (is == null) throw new IOException("test-ca.der missing");
+		try {
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				os.write(buffer, 0, n);
+			}
+			return os.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * A certificate directory file (CDF) with the given number of entries.
+	 */
+	static byte[] certificateList(final int entries) throws IOException, GjokiiException {
+		final byte[] entry = new CertParser(certificate()).getCDFEntry(true, NokiCertUtils.APPS_SIGNING
+				| NokiCertUtils.SERVER_AUTHENTIC);
+		final byte[] list = new byte[entry.length * entries];
+		for (int i = 0; i < entries; i++) {
+			System.arraycopy(entry, 0, list, i * entry.length, entry.length);
+		}
+		return list;
+	}
+
+	/**
+	 * Write a certificate directory file (CDF) with the given number of
+	 * entries to a temporary file.
+	 */
+	static File certificateListFile(final int entries) throws IOException, GjokiiException {
+		return temporaryFile(certificateList(entries));
+	}
+
+	/**
+	 * A FILE_INFO response frame for a file, as parsed by
+	 * {@link net.tuxed.gjokii.DirectoryEntryInfo}.
+	 */
+	static byte[] directoryEntry(final String name, final int size) throws UnsupportedEncodingException {
+		final byte[] nameBytes = (name + "\0").getBytes("UTF-16BE");
+		final byte[] frame = new byte[38 + nameBytes.length];
+		frame[0] = 0x19;
+		frame[1] = 0x10;
+		frame[3] = 0x6d;
+		frame[4] = (byte) (frame.length - 6 >> 8);
+		frame[5] = (byte) (frame.length - 6);
+		frame[14] = (byte) 0x80;
+		frame[16] = (byte) (size >> 24);
+		frame[17] = (byte) (size >> 16);
+		frame[18] = (byte) (size >> 8);
+		frame[19] = (byte) size;
+		frame[20] = (byte) (2013 >> 8);
+		frame[21] = (byte) 2013;
+		frame[22] = 3;
+		frame[23] = 14;
+		frame[24] = 15;
+		frame[25] = 9;
+		frame[26] = 26;
+		frame[36] = (byte) (nameBytes.length / 2 >> 8);
+		frame[37] = (byte) (nameBytes.length / 2);
+		System.arraycopy(nameBytes, 0, frame, 38, nameBytes.length);
+		return frame;
+	}
+
+	/**
+	 * Pseudo random bytes, the same for every run.
+	 */
+	static byte[] randomBytes(final int length) {
+		final byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Write data to a temporary file, removed when the VM exits.
+	 */
+	static File temporaryFile(final byte[] data) throws IOException {
+		final File f = File.createTempFile("gjokii", null);
+		f.deleteOnExit();
+		final FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+		return f;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tuxed.gjokii.Gjokii;
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.gjokii.sim.LinkProfile;
+import net.tuxed.gjokii.sim.PhoneEmulator;
+import net.tuxed.gjokii.sim.VirtualFileSystem;
+import net.tuxed.nokicert.NokiCert;
+import net.tuxed.nokicert.NokiCertUtils;
+
+/**
+ * Runs complete NokiCert and Gjokii operations against a {@link PhoneEmulator}
+ * over a link with a given round trip time and bandwidth, and reports what
+ * each operation costs at the protocol level: wall time, round trips, bytes
+ * per second and the time spent idle waiting for the phone.
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar net.tuxed.benchmark.TransferBenchmark \
+ *     [--rtt ms] [--bandwidth bytes/s] [--iterations n] [--entries n] \
+ *     [--sizes bytes,bytes,...]
+ * </pre>
+ */
+public class TransferBenchmark {
+
+	private static final String FILE_PATH = "/data/benchmark.bin";
+
+	private int rtt = 20;
+	private int bandwidth = 50000;
+	private int iterations = 3;
+	private int entries = 20;
+	private int[] sizes = { 1024, 16 * 1024, 256 * 1024, 1024 * 1024 };
+
+	public static void main(final String[] args) throws Exception {
+		final TransferBenchmark b = new TransferBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			final String value = args[++i];
+			if (arg.equals("--rtt")) {
+				b.rtt = Integer.parseInt(value);
+			} else if (arg.equals("--bandwidth")) {
+				b.bandwidth = Integer.parseInt(value);
+			} else if (arg.equals("--iterations")) {
+				b.iterations = Integer.parseInt(value);
+			} else if (arg.equals("--entries")) {
+				b.entries = Integer.parseInt(value);
+			} else if (arg.equals("--sizes")) {
+				final String[] parts = value.split(",");
+				b.sizes = new int[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					b.sizes[j] = Integer.parseInt(parts[j].trim());
+				}
+			} else {
+				usage();
+			}
+		}
+		b.run(System.out);
+	}
+
+	/**
+	 * Run all operations and print one line per operation.
+	 * 
+	 * @param out the stream to write the report to
+	 */
+	public void run(final PrintStream out) throws IOException, GjokiiException {
+		out.println("link: rtt " + rtt + " ms, bandwidth " + bandwidth + " bytes/s, " + iterations + " iterations");
+		out.printf("%-24s %10s %12s %14s %14s %12s%n", "operation", "wall ms", "round trips", "payload B/s",
+				"link B/s", "idle ms");
+		final byte[] cdf = Fixtures.certificateList(entries);
+		final File certificate = Fixtures.temporaryFile(Fixtures.certificate());
+
+		report(out, "listCertificates/" + entries, measure(new Operation(cdf.length) {
+			@Override
+			void run(final NokiCert phone) throws GjokiiException {
+				phone.listCertificates();
+			}
+		}, cdf, null));
+		report(out, "installCertificate/" + entries, measure(new Operation(cdf.length) {
+			@Override
+			void run(final NokiCert phone) throws GjokiiException {
+				phone.installCertificate(certificate.getAbsolutePath(), NokiCertUtils.APPS_SIGNING);
+			}
+		}, cdf, null));
+		for (final int size : sizes) {
+			final byte[] data = Fixtures.randomBytes(size);
+			final File source = Fixtures.temporaryFile(data);
+			final File target = File.createTempFile("gjokii", null);
+			target.deleteOnExit();
+			report(out, "getFile/" + size, measure(new Operation(size) {
+				@Override
+				void run(final NokiCert phone) throws GjokiiException {
+					phone.getFile(FILE_PATH, target);
+				}
+			}, cdf, data));
+			report(out, "putFile/" + size, measure(new Operation(size) {
+				@Override
+				void run(final NokiCert phone) throws GjokiiException {
+					phone.putFile(FILE_PATH, source);
+				}
+			}, cdf, null));
+			source.delete();
+			target.delete();
+		}
+		certificate.delete();
+	}
+
+	/**
+	 * Run an operation against a fresh phone for every iteration. Connecting
+	 * to the phone is not part of the measurement.
+	 */
+	private List<Sample> measure(final Operation operation, final byte[] cdf, final byte[] file)
+			throws GjokiiException {
+		final ArrayList<Sample> samples = new ArrayList<Sample>();
+		for (int i = 0; i < iterations; i++) {
+			final VirtualFileSystem fs = new VirtualFileSystem();
+			fs.putFile(VirtualFileSystem.CERT_DIR_FILE_PATH, cdf);
+			if (file != null) {
+				fs.putFile(FILE_PATH, file);
+			} else {
+				fs.mkdirs("/data");
+			}
+			final PhoneEmulator emulator = new PhoneEmulator(fs);
+			emulator.setLinkProfile(new LinkProfile(rtt / 2, bandwidth));
+			final NokiCert phone = new NokiCert(emulator, false, null);
+			try {
+				final int commands = phone.getCommandCount();
+				final long idle = phone.getReceiveIdleTime();
+				final long linkBytes = emulator.getRequestBytes() + emulator.getResponseBytes();
+				final long start = System.nanoTime();
+				operation.run(phone);
+				final long wall = System.nanoTime() - start;
+				samples.add(new Sample(wall, phone.getCommandCount() - commands, operation.payload,
+						emulator.getRequestBytes() + emulator.getResponseBytes() - linkBytes,
+						phone.getReceiveIdleTime() - idle));
+			} finally {
+				phone.close();
+			}
+		}
+		return samples;
+	}
+
+	private static void report(final PrintStream out, final String name, final List<Sample> samples) {
+		long wall = 0, linkBytes = 0, idle = 0, payload = 0;
+		int roundTrips = 0;
+		for (final Sample s : samples) {
+			wall += s.wall;
+			roundTrips += s.roundTrips;
+			payload += s.payload;
+			linkBytes += s.linkBytes;
+			idle += s.idle;
+		}
+		final int n = samples.size();
+		final double seconds = wall / 1e9;
+		out.printf("%-24s %10.1f %12.1f %14.0f %14.0f %12.1f%n", name, wall / 1e6 / n, (double) roundTrips / n,
+				payload / seconds, linkBytes / seconds, (double) idle / n);
+	}
+
+	private static void usage() {
+		System.err.println("usage: TransferBenchmark [--rtt ms] [--bandwidth bytes/s] [--iterations n] "
+				+ "[--entries n] [--sizes bytes,bytes,...]");
+		System.exit(1);
+	}
+
+	private static abstract class Operation {
+		private final long payload;
+
+		Operation(final long payload) {
+			this.payload = payload;
+		}
+
+		abstract void run(NokiCert phone) throws GjokiiException;
+	}
+
+	private static final class Sample {
+		private final long wall, payload, linkBytes, idle;
+		private final int roundTrips;
+
+		private Sample(final long wall, final int roundTrips, final long payload, final long linkBytes,
+				final long idle) {
+			this.wall = wall;
+			this.roundTrips = roundTrips;
+			this.payload = payload;
+			this.linkBytes = linkBytes;
+			this.idle = idle;
+		}
+	}
+}
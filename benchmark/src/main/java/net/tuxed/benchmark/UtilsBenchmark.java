@@ -0,0 +1,91 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.tuxed.misc.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The byte array and string helpers used for every frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UtilsBenchmark {
+
+	/**
+	 * 14 bytes is a request header, 256 a file block.
+	 */
+	@Param({ "14", "256", "4096" })
+	public int size;
+
+	private byte[] data;
+	private byte[] encodedPath;
+	private String path;
+
+	@Benchmark
+	public byte[] appendToByteArray() {
+		return Utils.appendToByteArray(data, data);
+	}
+
+	@Benchmark
+	public String byteArrayToString() {
+		return Utils.byteArrayToString(data);
+	}
+
+	@Benchmark
+	public String bytesToString() {
+		return Utils.bytesToString(encodedPath, 0, encodedPath.length - 2);
+	}
+
+	@Benchmark
+	public String hexDump() {
+		return Utils.hexDump(data);
+	}
+
+	@Setup
+	public void setUp() {
+		data = Fixtures.randomBytes(size);
+		final StringBuilder sb = new StringBuilder("/predefhiddenfolder/certificates/auth/");
+		while (sb.length() < size / 2) {
+			sb.append('x');
+		}
+		path = sb.toString();
+		encodedPath = Utils.stringToBytes(path, true);
+	}
+
+	@Benchmark
+	public byte[] stringToBytes() {
+		return Utils.stringToBytes(path, true);
+	}
+}
@@ -0,0 +1,995 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import net.tuxed.gjokii.Gjokii.DeviceInfo;
+import net.tuxed.gjokii.GjokiiFuture.Callback;
+import net.tuxed.gjokii.GjokiiFuture.Continuation;
+import net.tuxed.gjokii.metrics.MetricsListener;
+import net.tuxed.gjokii.trace.TraceRecorder;
+import net.tuxed.misc.ByteReader;
+import net.tuxed.misc.Utils;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Non-blocking access to a Nokia S40 phone.
+ * 
+ * Every call queues its commands and returns a {@link GjokiiFuture} right
+ * away. A single thread per session writes queued commands to the phone and
+ * hands every incoming frame to the command it answers, so several operations
+ * can be in progress on one connection without holding a thread each.
+ */
+public class AsyncGjokii implements Closeable {
+
+	/**
+	 * The default number of commands sent to the phone before the response to
+	 * the first one arrived. Phones are only known to handle one command at a
+	 * time.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+	/**
+	 * Short commands somebody is waiting for, sent before any bulk command.
+	 */
+	static final int PRIORITY_INTERACTIVE = 0;
+
+	/**
+	 * The many block requests of file transfers and file system dumps.
+	 */
+	static final int PRIORITY_BULK = 1;
+
+	/**
+	 * The number of interactive commands sent in a row while bulk commands
+	 * wait, before one bulk command is let through.
+	 */
+	private static final int MAX_INTERACTIVE_BURST = 4;
+
+	private static final int INITIAL_BACKOFF = 100;
+	private static final int RESPONSE_QUIET_TIME = 100;
+	private static final int POLL_INTERVAL = 5;
+
+	private final Transport transport;
+	private final InputStream is;
+	private final OutputStream os;
+	private final TraceRecorder tracer;
+	private final Thread ioThread;
+
+	private final EntryCache entryCache = new EntryCache();
+	/* only used by the I/O thread */
+	private final byte[] header = new byte[Protocol.HEADER_LENGTH];
+	private final ByteReader headerReader = Protocol.reader(header);
+	private final Object lock = new Object();
+	private final LinkedList<Command> interactive = new LinkedList<Command>();
+	private final LinkedList<Command> bulk = new LinkedList<Command>();
+	private final LinkedList<Command> inFlight = new LinkedList<Command>();
+	/* the response keys of commands that timed out, a late answer may follow */
+	private final HashSet<Integer> staleKeys = new HashSet<Integer>();
+	private boolean closed;
+	private int interactiveCount, bulkCount, preemptionCount, forcedBulkCount, burst;
+
+	private volatile int timeout = Gjokii.DEFAULT_TIMEOUT;
+	private volatile int maxRetries = Gjokii.DEFAULT_MAX_RETRIES;
+	private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private volatile MetricsListener metrics;
+
+	private DeviceInfo info;
+	private long connectTime;
+
+	/**
+	 * Open the phone connection over Bluetooth and initialize it.
+	 * 
+	 * @param device the phone to connect to
+	 * @param tracer the recorder to write the frames to, or null
+	 * @throws GjokiiException if connecting or initializing fails
+	 */
+	public AsyncGjokii(final BluetoothDevice device, final TraceRecorder tracer) throws GjokiiException {
+		this(new BluetoothTransport(device), tracer);
+	}
+
+	/**
+	 * Open the phone connection over an arbitrary link and initialize it.
+	 * 
+	 * @param transport the (not yet connected) link to the phone
+	 * @param tracer the recorder to write the frames to, or null
+	 * @throws GjokiiException if connecting or initializing fails
+	 */
+	public AsyncGjokii(final Transport transport, final TraceRecorder tracer) throws GjokiiException {
+		this.transport = transport;
+		this.tracer = tracer;
+		try {
+			final long start = System.nanoTime();
+			transport.connect();
+			connectTime = System.nanoTime() - start;
+			is = transport.getInputStream();
+			os = transport.getOutputStream();
+		} catch (final IOException e) {
+			Utils.closeSliently(transport);
+			throw new GjokiiException(GjokiiException.CONNECTION_PROBLEM, "unable to connect", e);
+		}
+		ioThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runIO();
+			}
+		}, "AsyncGjokii");
+		ioThread.setDaemon(true);
+		ioThread.start();
+		try {
+			if (!Protocol.isInitResponse(submit(Protocol.MSG_INIT, Protocol.PHONE_INIT, false, false,
+					PRIORITY_INTERACTIVE).await()))
+				throw new GjokiiException(GjokiiException.PROTOCOL_ERROR, "unexpected response to initiatialization");
+			final String[] phoneInfo = Protocol.parsePhoneInfo(submit(Protocol.MSG_INFO, Protocol.PHONE_INFO, true,
+					true, PRIORITY_INTERACTIVE).await());
+			info = new DeviceInfo(phoneInfo[0], phoneInfo[1], phoneInfo[2]);
+		} catch (final GjokiiException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the connection. Commands not completed yet fail with
+	 * {@link GjokiiException#LINK_LOST}.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (closed) return;
+			closed = true;
+			lock.notifyAll();
+		}
+		Utils.closeSliently(transport);
+		failAll(new GjokiiException(GjokiiException.LINK_LOST, "connection closed"));
+	}
+
+	/**
+	 * Delete a file from the phone.
+	 * 
+	 * @param pathFileName the file to delete
+	 * @return completes when the file is deleted
+	 */
+	public GjokiiFuture<Void> deleteFile(final String pathFileName) {
+		return entryInfo(pathFileName, PRIORITY_INTERACTIVE).then(new Continuation<DirectoryEntryInfo, Void>() {
+			@Override
+			public GjokiiFuture<Void> apply(final DirectoryEntryInfo d) throws GjokiiException {
+				if (!d.isFile()) throw new GjokiiException("not a file or does not exist");
+				entryCache.invalidate(pathFileName);
+				return discard(submit(Protocol.MSG_FILE, Protocol.deleteFile(pathFileName), false, false,
+						PRIORITY_INTERACTIVE));
+			}
+		});
+	}
+
+	/**
+	 * Copy (part of) the file system of the phone to the host. The commands
+	 * run at bulk priority, so other requests are answered in between.
+	 * 
+	 * @param outputDir the directory on the host to write to
+	 * @param directoryPath the directory to dump, ending with "/"
+	 * @param recursive whether or not to dump subdirectories as well
+	 * @return completes when all files are written
+	 */
+	public GjokiiFuture<Void> dumpFileSystem(final File outputDir, final String directoryPath,
+			final boolean recursive) {
+		outputDir.mkdirs();
+		return listDirectory(directoryPath, PRIORITY_BULK).then(
+				new Continuation<ArrayList<DirectoryEntryInfo>, Void>() {
+					@Override
+					public GjokiiFuture<Void> apply(final ArrayList<DirectoryEntryInfo> list) {
+						return dumpEntries(outputDir, directoryPath, list, recursive);
+					}
+				});
+	}
+
+	/**
+	 * Get the number of bulk commands sent, including retries.
+	 * 
+	 * @return the number of commands
+	 */
+	public int getBulkCommandCount() {
+		synchronized (lock) {
+			return bulkCount;
+		}
+	}
+
+	/**
+	 * Get the contents of a directory.
+	 * 
+	 * @param directoryPath the directory to list, ending with "/"
+	 * @return the list of directories and files
+	 */
+	public GjokiiFuture<ArrayList<DirectoryEntryInfo>> getDirectoryList(final String directoryPath) {
+		return listDirectory(directoryPath, PRIORITY_INTERACTIVE);
+	}
+
+	/**
+	 * Get information about a file or directory.
+	 * 
+	 * @param filePathName the entry to get information about
+	 * @return the information, neither a file nor a directory if the entry
+	 *         does not exist
+	 */
+	public GjokiiFuture<DirectoryEntryInfo> getEntryInfo(final String filePathName) {
+		return entryInfo(filePathName, PRIORITY_INTERACTIVE);
+	}
+
+	/**
+	 * Get a file from the phone. All block requests are queued at once, so
+	 * they are pipelined when more than one command may be in flight. The
+	 * blocks are requested at bulk priority.
+	 * 
+	 * @param fileName the file with full path to get
+	 * @return the contents of the file
+	 */
+	public GjokiiFuture<byte[]> getFile(final String fileName) {
+		if (fileName.endsWith("/")) return GjokiiFuture.failed(new GjokiiException("cannot fetch a directory"));
+		return entryInfo(fileName, PRIORITY_BULK).then(new Continuation<DirectoryEntryInfo, byte[]>() {
+			@Override
+			public GjokiiFuture<byte[]> apply(final DirectoryEntryInfo fi) throws GjokiiException {
+				if (fi.isDirectory()) throw new GjokiiException("cannot fetch a directory");
+				if (!fi.isFile()) throw new GjokiiException("file does not exist");
+				return download(fileName, fi.getEntrySize(), PRIORITY_BULK);
+			}
+		});
+	}
+
+	/**
+	 * Get the number of times a bulk command was sent although interactive
+	 * commands were waiting, to keep bulk transfers from starving.
+	 * 
+	 * @return the number of times
+	 */
+	public int getForcedBulkCount() {
+		synchronized (lock) {
+			return forcedBulkCount;
+		}
+	}
+
+	/**
+	 * Get the phone IMEI number
+	 * 
+	 * @return the IMEI number
+	 */
+	public GjokiiFuture<String> getIMEI() {
+		return submit(Protocol.MSG_INFO, Protocol.PHONE_IMEI, true, false, PRIORITY_INTERACTIVE).then(
+				new Continuation<byte[], String>() {
+					@Override
+					public GjokiiFuture<String> apply(final byte[] result) {
+						return GjokiiFuture.completed(Protocol.parseIMEI(result));
+					}
+				});
+	}
+
+	/**
+	 * Returns human readable information about the phone
+	 * 
+	 * @return the information
+	 */
+	public DeviceInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * Get the number of interactive commands sent, including retries.
+	 * 
+	 * @return the number of commands
+	 */
+	public int getInteractiveCommandCount() {
+		synchronized (lock) {
+			return interactiveCount;
+		}
+	}
+
+	/**
+	 * Get the number of commands waiting to be sent or waiting for their
+	 * response.
+	 * 
+	 * @return the number of commands
+	 */
+	public int getPendingCommandCount() {
+		synchronized (lock) {
+			return interactive.size() + bulk.size() + inFlight.size();
+		}
+	}
+
+	/**
+	 * Get the number of times an interactive command was sent ahead of a bulk
+	 * command that was ready to go.
+	 * 
+	 * @return the number of times
+	 */
+	public int getPreemptionCount() {
+		synchronized (lock) {
+			return preemptionCount;
+		}
+	}
+
+	/**
+	 * Forget all information about files and directories, e.g. after they were
+	 * changed on the phone itself.
+	 */
+	public void invalidateCache() {
+		entryCache.clear();
+	}
+
+	/**
+	 * Put a file on the phone. The blocks are sent at bulk priority.
+	 * 
+	 * @param targetPathFileName the file on the phone to write to
+	 * @param data the contents of the file
+	 * @return completes when the file is written and closed
+	 */
+	public GjokiiFuture<Void> putFile(final String targetPathFileName, final byte[] data) {
+		entryCache.invalidate(targetPathFileName);
+		return submit(Protocol.MSG_FILE, Protocol.putFileId(targetPathFileName), false, false, PRIORITY_BULK).then(
+				new Continuation<byte[], Void>() {
+					@Override
+					public GjokiiFuture<Void> apply(final byte[] result) {
+						return writeBlocks(Protocol.parseFileDescriptor(result), data);
+					}
+				});
+	}
+
+	/**
+	 * Set how long the information about files and directories is remembered,
+	 * see {@link Gjokii#setCacheTtl(int)}.
+	 * 
+	 * @param ttl the time in milliseconds, 0 to always ask the phone
+	 */
+	public void setCacheTtl(final int ttl) {
+		entryCache.setTtl(ttl);
+	}
+
+	/**
+	 * Set the number of commands sent to the phone before the response to the
+	 * first one arrived.
+	 * Commands expecting the same kind of response, such as the blocks of a
+	 * download, are still sent one at a time.
+	 * 
+	 * @param maxInFlight the number of commands, at least 1
+	 */
+	public void setMaxInFlight(final int maxInFlight) {
+		if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+		this.maxInFlight = maxInFlight;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Set the number of times a read-only command is sent again after a
+	 * timeout or a garbled response.
+	 * 
+	 * @param maxRetries the number of retries, 0 to never retry
+	 */
+	public void setMaxRetries(final int maxRetries) {
+		if (maxRetries < 0) throw new IllegalArgumentException("maxRetries must not be negative");
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Report the cost of every command from now on.
+	 * 
+	 * @param metrics the listener, or null to stop reporting
+	 */
+	public void setMetricsListener(final MetricsListener metrics) {
+		this.metrics = metrics;
+		if (metrics != null) {
+			metrics.onConnect(BluetoothTransport.getConnectMethod(transport), connectTime);
+			metrics.onDevice(info);
+		}
+	}
+
+	/**
+	 * Set the time the phone gets to answer a command.
+	 * 
+	 * @param timeout the timeout in milliseconds
+	 */
+	public void setTimeout(final int timeout) {
+		if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive");
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Queue a command.
+	 * 
+	 * @param msgType the message type
+	 * @param data the command
+	 * @param idempotent whether the command may be sent again after a timeout
+	 *            or a garbled response
+	 * @param multiFrame whether or not the response may consist of several
+	 *            frames, in which case frames are collected until the link
+	 *            becomes quiet
+	 * @param priority {@link #PRIORITY_INTERACTIVE} or {@link #PRIORITY_BULK}
+	 * @return the complete response
+	 */
+	GjokiiFuture<byte[]> submit(final byte msgType, final byte[] data, final boolean idempotent,
+			final boolean multiFrame, final int priority) {
+		final Command c = new Command(msgType, data, idempotent, multiFrame, priority);
+		synchronized (lock) {
+			if (closed) {
+				c.future.fail(new GjokiiException(GjokiiException.LINK_LOST, "connection closed"));
+				return c.future;
+			}
+			lane(c).add(c);
+			lock.notifyAll();
+		}
+		return c.future;
+	}
+
+	/**
+	 * Close a file once every block of a transfer was answered or failed. A
+	 * close sent right away could be answered before a block that had to be
+	 * sent again, and the transfer would complete without it.
+	 * 
+	 * @param fileDesc the file descriptor
+	 * @param blocks the block transfers
+	 * @param priority {@link #PRIORITY_INTERACTIVE} or {@link #PRIORITY_BULK}
+	 * @return completes when the file is closed, fails with the first error
+	 *         of a block or else of the close
+	 */
+	private GjokiiFuture<Void> closeAfter(final short fileDesc, final ArrayList<GjokiiFuture<Void>> blocks,
+			final int priority) {
+		final GjokiiFuture<Void> result = new GjokiiFuture<Void>();
+		/* one more, so a file without blocks is closed as well */
+		final int[] remaining = { blocks.size() + 1 };
+		final GjokiiException[] error = { null };
+		final Callback<Void> onBlock = new Callback<Void>() {
+			@Override
+			public void onFailure(final GjokiiException e) {
+				done(e);
+			}
+
+			@Override
+			public void onSuccess(final Void ignored) {
+				done(null);
+			}
+
+			private void done(final GjokiiException e) {
+				synchronized (remaining) {
+					if (error[0] == null) {
+						error[0] = e;
+					}
+					if (--remaining[0] > 0) return;
+				}
+				submit(Protocol.MSG_FILE, Protocol.closeFile(fileDesc), false, false, priority).addCallback(
+						new Callback<byte[]>() {
+							@Override
+							public void onFailure(final GjokiiException e) {
+								result.fail(error[0] != null ? error[0] : e);
+							}
+
+							@Override
+							public void onSuccess(final byte[] ignored) {
+								if (error[0] != null) {
+									result.fail(error[0]);
+								} else {
+									result.complete(null);
+								}
+							}
+						});
+			}
+		};
+		for (final GjokiiFuture<Void> block : blocks) {
+			block.addCallback(onBlock);
+		}
+		onBlock.onSuccess(null);
+		return result;
+	}
+
+	/**
+	 * Deliver a frame to the command it answers: the command in flight
+	 * expecting this response. There is at most one, see
+	 * {@link #isReady(LinkedList, long)}. Frames nobody waits for are dropped.
+	 */
+	private void dispatch(final byte[] frame) {
+		final int key = Protocol.responseKey(frame);
+		Command target = null;
+		synchronized (lock) {
+			for (final Command c : inFlight) {
+				if (c.key == key) {
+					target = c;
+					break;
+				}
+			}
+			if (target == null) return;
+			target.frames++;
+			if (target.multiFrame) {
+				target.response = target.response == null ? frame : Utils.appendToByteArray(target.response, frame);
+				target.deadline = System.currentTimeMillis() + RESPONSE_QUIET_TIME;
+				return;
+			}
+			inFlight.remove(target);
+			lock.notifyAll();
+		}
+		target.response = frame;
+		succeed(target);
+	}
+
+	/**
+	 * Dump the entries of a directory one after the other. A file is written
+	 * before the next one is opened, so only one file is open on the phone
+	 * and held in memory at a time.
+	 */
+	private GjokiiFuture<Void> dumpEntries(final File outputDir, final String directoryPath,
+			final ArrayList<DirectoryEntryInfo> list, final boolean recursive) {
+		final GjokiiFuture<Void> result = new GjokiiFuture<Void>();
+		new Callback<Void>() {
+			private int index;
+
+			@Override
+			public void onFailure(final GjokiiException e) {
+				result.fail(e);
+			}
+
+			@Override
+			public void onSuccess(final Void ignored) {
+				while (index < list.size()) {
+					final DirectoryEntryInfo d = list.get(index++);
+					final String name = d.getEntryName();
+					if (d.isDirectory() && recursive) {
+						dumpFileSystem(new File(outputDir, name), directoryPath + name + "/", true).addCallback(this);
+						return;
+					} else if (d.isFile()) {
+						download(directoryPath + name, d.getEntrySize(), PRIORITY_BULK).then(
+								new Continuation<byte[], Void>() {
+									@Override
+									public GjokiiFuture<Void> apply(final byte[] data) throws GjokiiException {
+										writeFile(new File(outputDir, name), data);
+										return GjokiiFuture.completed(null);
+									}
+								}).addCallback(this);
+						return;
+					}
+				}
+				result.complete(null);
+			}
+		}.onSuccess(null);
+		return result;
+	}
+
+	private GjokiiFuture<byte[]> download(final String fileName, final int fileSize, final int priority) {
+		return submit(Protocol.MSG_FILE, Protocol.getFileId(fileName), false, false, priority).then(
+				new Continuation<byte[], byte[]>() {
+					@Override
+					public GjokiiFuture<byte[]> apply(final byte[] result) {
+						return readBlocks(Protocol.parseFileDescriptor(result), fileSize, priority);
+					}
+				});
+	}
+
+	private void drain() throws IOException {
+		final int available = is.available();
+		if (available > 0) {
+			is.skip(available);
+		}
+	}
+
+	private GjokiiFuture<DirectoryEntryInfo> entryInfo(final String filePathName, final int priority) {
+		final DirectoryEntryInfo cached = entryCache.get(filePathName);
+		if (cached != null) return GjokiiFuture.completed(cached);
+		return submit(Protocol.MSG_FILE, Protocol.fileInfo(filePathName), true, false, priority).then(
+				new Continuation<byte[], DirectoryEntryInfo>() {
+					@Override
+					public GjokiiFuture<DirectoryEntryInfo> apply(final byte[] result) throws GjokiiException {
+						final DirectoryEntryInfo d = new DirectoryEntryInfo(result);
+						entryCache.put(filePathName, d);
+						return GjokiiFuture.completed(d);
+					}
+				});
+	}
+
+	/**
+	 * Handle a command that timed out or got a garbled response: send it again
+	 * if allowed, otherwise fail it.
+	 */
+	private void expire(final Command c, final GjokiiException e) {
+		synchronized (lock) {
+			/* answered in the meantime */
+			if (!inFlight.remove(c)) return;
+			staleKeys.add(c.key);
+			if (c.idempotent && c.attempt < maxRetries && !c.future.isDone()) {
+				c.notBefore = System.currentTimeMillis() + (INITIAL_BACKOFF << c.attempt);
+				c.attempt++;
+				c.response = null;
+				c.frames = 0;
+				lane(c).addFirst(c);
+				lock.notifyAll();
+				return;
+			}
+		}
+		fail(c, e);
+	}
+
+	private void fail(final Command c, final GjokiiException e) {
+		final MetricsListener m = metrics;
+		if (m != null) {
+			m.onCommand(c.msgType, System.nanoTime() - c.submitted, c.frames, c.attempt, false);
+		}
+		c.future.fail(e);
+	}
+
+	private void failAll(final GjokiiException e) {
+		final ArrayList<Command> failed = new ArrayList<Command>();
+		synchronized (lock) {
+			failed.addAll(inFlight);
+			failed.addAll(interactive);
+			failed.addAll(bulk);
+			inFlight.clear();
+			interactive.clear();
+			bulk.clear();
+		}
+		for (final Command c : failed) {
+			fail(c, e);
+		}
+	}
+
+	/**
+	 * Whether or not the head of a queue may be sent now. Commands cancelled
+	 * before they were sent are dropped on the way.
+	 */
+	private boolean isReady(final LinkedList<Command> lane, final long now) {
+		while (!lane.isEmpty() && lane.getFirst().future.isDone()) {
+			lane.removeFirst();
+		}
+		if (lane.isEmpty()) return false;
+		final Command c = lane.getFirst();
+		if (c.notBefore > now) return false;
+		/* a late answer can only be drained while nothing else is in flight */
+		if (needsDrain(c) && !inFlight.isEmpty()) return false;
+		for (final Command f : inFlight) {
+			if (f.key == c.key) return false;
+		}
+		return true;
+	}
+
+	private LinkedList<Command> lane(final Command c) {
+		return c.priority == PRIORITY_INTERACTIVE ? interactive : bulk;
+	}
+
+	private GjokiiFuture<ArrayList<DirectoryEntryInfo>> listDirectory(final String directoryPath, final int priority) {
+		final Continuation<Object, ArrayList<DirectoryEntryInfo>> list =
+				new Continuation<Object, ArrayList<DirectoryEntryInfo>>() {
+			@Override
+			public GjokiiFuture<ArrayList<DirectoryEntryInfo>> apply(final Object d) throws GjokiiException {
+				if (d instanceof DirectoryEntryInfo && !((DirectoryEntryInfo) d).isDirectory())
+					throw new GjokiiException("not a directory or does not exist");
+				return submit(Protocol.MSG_FILE, Protocol.fileList(directoryPath), true, true, priority).then(
+						new Continuation<byte[], ArrayList<DirectoryEntryInfo>>() {
+							@Override
+							public GjokiiFuture<ArrayList<DirectoryEntryInfo>> apply(final byte[] result)
+									throws GjokiiException {
+								final ArrayList<DirectoryEntryInfo> listing = Protocol.parseDirectoryList(result);
+								entryCache.putListing(directoryPath, listing);
+								return GjokiiFuture.completed(listing);
+							}
+						});
+			}
+		};
+		/* make sure the directory exists */
+		if (directoryPath.equals("/")) return GjokiiFuture.completed((Object) null).then(list);
+		return entryInfo(directoryPath.substring(0, directoryPath.length() - 1), priority).then(list);
+	}
+
+	/**
+	 * Whether or not a late answer to an earlier command could be taken for
+	 * the answer to this one.
+	 */
+	private boolean needsDrain(final Command c) {
+		return c.attempt > 0 || staleKeys.contains(c.key);
+	}
+
+	/**
+	 * Take the commands that may be sent now off the queues. Interactive
+	 * commands go first, but after {@link #MAX_INTERACTIVE_BURST} of them in a
+	 * row one waiting bulk command is let through. Within a queue commands are
+	 * sent in the order they were queued. A command is held back while a
+	 * command expecting the same kind of response is in flight: responses
+	 * such as file blocks do not say which request they answer, so a lost
+	 * one would hand the next block to the wrong command. Only commands
+	 * expecting different responses are in flight at the same time.
+	 */
+	private ArrayList<Command> nextToSend(final long now) {
+		final ArrayList<Command> toSend = new ArrayList<Command>();
+		while (inFlight.size() < maxInFlight) {
+			final boolean interactiveReady = isReady(interactive, now);
+			final boolean bulkReady = isReady(bulk, now);
+			final Command c;
+			if (interactiveReady && !(bulkReady && burst >= MAX_INTERACTIVE_BURST)) {
+				c = interactive.removeFirst();
+				interactiveCount++;
+				if (bulkReady) {
+					preemptionCount++;
+					burst++;
+				} else {
+					burst = 0;
+				}
+			} else if (bulkReady) {
+				c = bulk.removeFirst();
+				bulkCount++;
+				if (interactiveReady) {
+					forcedBulkCount++;
+				}
+				burst = 0;
+			} else {
+				break;
+			}
+			c.deadline = now + timeout;
+			inFlight.add(c);
+			toSend.add(c);
+			if (needsDrain(c)) {
+				/* drained when it is sent, nothing may be sent with it */
+				break;
+			}
+		}
+		return toSend;
+	}
+
+	/**
+	 * Get the time to wait for the first command queued for a retry, 0 if
+	 * nothing is queued.
+	 */
+	private long nextRetry(final long now) {
+		long wait = 0;
+		if (!interactive.isEmpty()) {
+			wait = Math.max(1, interactive.getFirst().notBefore - now);
+		}
+		if (!bulk.isEmpty()) {
+			final long w = Math.max(1, bulk.getFirst().notBefore - now);
+			wait = wait == 0 ? w : Math.min(wait, w);
+		}
+		return wait;
+	}
+
+	private void readFully(final byte[] buffer, int offset, int length, final long deadline) throws IOException,
+			GjokiiException, InterruptedException {
+		while (length > 0) {
+			final int available = is.available();
+			if (available <= 0) {
+				if (System.currentTimeMillis() >= deadline)
+					throw new GjokiiException(GjokiiException.TIMEOUT, "incomplete frame from the phone");
+				Thread.sleep(POLL_INTERVAL);
+				continue;
+			}
+			final int bytesRead = is.read(buffer, offset, Math.min(length, available));
+			if (bytesRead == -1) throw new IOException("end of stream reached");
+			offset += bytesRead;
+			length -= bytesRead;
+		}
+	}
+
+	private byte[] receiveFrame() throws IOException, GjokiiException, InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		readFully(header, 0, header.length, deadline);
+		if (!Protocol.isResponseHeader(header))
+			throw new GjokiiException(GjokiiException.PROTOCOL_ERROR, "invalid frame header: "
+					+ Utils.byteArrayToString(header));
+		final byte[] frame = new byte[Protocol.frameLength(headerReader)];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		readFully(frame, header.length, frame.length - header.length, deadline);
+		if (tracer != null) {
+			tracer.record(TraceRecorder.DIRECTION_RECEIVED, frame);
+		}
+		final MetricsListener m = metrics;
+		if (m != null) {
+			m.onFrameReceived(frame[3], frame.length);
+		}
+		return frame;
+	}
+
+	private GjokiiFuture<byte[]> readBlocks(final short fileDesc, final int fileSize, final int priority) {
+		final byte[] data = new byte[fileSize];
+		final int numberOfBlocks = Protocol.numberOfBlocks(fileSize);
+		final ArrayList<GjokiiFuture<Void>> blocks = new ArrayList<GjokiiFuture<Void>>(numberOfBlocks);
+		for (int i = 0; i < numberOfBlocks; i++) {
+			final int offset = i * Protocol.BLOCK_SIZE;
+			final short bytesWanted = (short) Math.min(Protocol.BLOCK_SIZE, fileSize - offset);
+			blocks.add(submit(Protocol.MSG_FILE, Protocol.getFile(fileDesc, i, bytesWanted), true, false, priority)
+					.then(new Continuation<byte[], Void>() {
+						@Override
+						public GjokiiFuture<Void> apply(final byte[] block) throws GjokiiException {
+							Protocol.checkFileBlock(Protocol.reader(block), bytesWanted);
+							System.arraycopy(block, Protocol.FILE_BLOCK_DATA, data, offset, bytesWanted);
+							return GjokiiFuture.completed((Void) null);
+						}
+					}));
+		}
+		return closeAfter(fileDesc, blocks, priority).then(new Continuation<Void, byte[]>() {
+			@Override
+			public GjokiiFuture<byte[]> apply(final Void ignored) {
+				return GjokiiFuture.completed(data);
+			}
+		});
+	}
+
+	private void runIO() {
+		try {
+			while (true) {
+				final ArrayList<Command> toSend;
+				final long now = System.currentTimeMillis();
+				timeOut(now);
+				synchronized (lock) {
+					if (closed) return;
+					toSend = nextToSend(now);
+					if (toSend.isEmpty() && inFlight.isEmpty()) {
+						final long wait = nextRetry(now);
+						lock.wait(wait);
+						continue;
+					}
+				}
+				for (final Command c : toSend) {
+					send(c);
+				}
+				if (is.available() > 0) {
+					try {
+						dispatch(receiveFrame());
+					} catch (final GjokiiException e) {
+						/* garbled or incomplete frame, blame the oldest command */
+						drain();
+						final Command oldest;
+						synchronized (lock) {
+							oldest = inFlight.isEmpty() ? null : inFlight.getFirst();
+						}
+						if (oldest != null) {
+							expire(oldest, e);
+						}
+					}
+				} else if (toSend.isEmpty()) {
+					Thread.sleep(POLL_INTERVAL);
+				}
+			}
+		} catch (final InterruptedException e) {
+			failAll(new GjokiiException(GjokiiException.LINK_LOST, "interrupted"));
+		} catch (final GjokiiException e) {
+			failAll(e);
+		} catch (final IOException e) {
+			failAll(new GjokiiException(GjokiiException.LINK_LOST, "problem talking to the phone: "
+					+ e.getMessage(), e));
+		} finally {
+			synchronized (lock) {
+				closed = true;
+			}
+			Utils.closeSliently(transport);
+			/* commands left behind by an unexpected error must not wait forever */
+			failAll(new GjokiiException(GjokiiException.LINK_LOST, "connection closed"));
+		}
+	}
+
+	private void send(final Command c) throws IOException {
+		final byte[] message = Protocol.frame(c.msgType, c.data);
+		synchronized (lock) {
+			if (needsDrain(c) && inFlight.size() == 1) {
+				/* get rid of a late answer to a command that timed out */
+				drain();
+				staleKeys.remove(c.key);
+			}
+		}
+		if (tracer != null) {
+			tracer.record(TraceRecorder.DIRECTION_SENT, message);
+		}
+		os.write(message);
+		os.flush();
+		final MetricsListener m = metrics;
+		if (m != null) {
+			m.onFrameSent(c.msgType, message.length);
+		}
+	}
+
+	private void succeed(final Command c) {
+		final MetricsListener m = metrics;
+		if (m != null) {
+			m.onCommand(c.msgType, System.nanoTime() - c.submitted, c.frames, c.attempt, true);
+		}
+		c.future.complete(c.response);
+	}
+
+	/**
+	 * Complete multi-frame responses that went quiet, expire commands whose
+	 * response is overdue. Called without the lock held, so continuations of
+	 * the completed commands do not run under it.
+	 */
+	private void timeOut(final long now) {
+		final ArrayList<Command> completed = new ArrayList<Command>();
+		final ArrayList<Command> expired = new ArrayList<Command>();
+		synchronized (lock) {
+			final Iterator<Command> it = inFlight.iterator();
+			while (it.hasNext()) {
+				final Command c = it.next();
+				if (c.deadline > now) {
+					continue;
+				}
+				if (c.multiFrame && c.response != null) {
+					it.remove();
+					completed.add(c);
+				} else {
+					expired.add(c);
+				}
+			}
+		}
+		for (final Command c : completed) {
+			succeed(c);
+		}
+		for (final Command c : expired) {
+			expire(c, new GjokiiException(GjokiiException.TIMEOUT, "phone did not respond within " + timeout + " ms"));
+		}
+	}
+
+	private GjokiiFuture<Void> writeBlocks(final short fileId, final byte[] data) {
+		final ArrayList<GjokiiFuture<Void>> blocks = new ArrayList<GjokiiFuture<Void>>();
+		for (int offset = 0; offset < data.length; offset += Protocol.BLOCK_SIZE) {
+			final int length = Math.min(Protocol.BLOCK_SIZE, data.length - offset);
+			blocks.add(discard(submit(Protocol.MSG_FILE, Protocol.putFile(fileId, data, offset, length), false,
+					false, PRIORITY_BULK)));
+		}
+		return closeAfter(fileId, blocks, PRIORITY_BULK);
+	}
+
+	private static <V> GjokiiFuture<Void> discard(final GjokiiFuture<V> future) {
+		return future.then(new Continuation<V, Void>() {
+			@Override
+			public GjokiiFuture<Void> apply(final V result) {
+				return GjokiiFuture.completed(null);
+			}
+		});
+	}
+
+	private static void writeFile(final File f, final byte[] data) throws GjokiiException {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(f);
+			fos.write(data);
+		} catch (final IOException e) {
+			throw new GjokiiException("unable to write to file " + f.getAbsolutePath());
+		} finally {
+			Utils.closeSliently(fos);
+		}
+	}
+
+	private static final class Command {
+		private final byte msgType;
+		private final byte[] data;
+		private final boolean idempotent, multiFrame;
+		private final int key, priority;
+		private final long submitted = System.nanoTime();
+		private final GjokiiFuture<byte[]> future = new GjokiiFuture<byte[]>();
+		private int attempt;
+		private long notBefore, deadline;
+		private byte[] response;
+		private int frames;
+
+		private Command(final byte msgType, final byte[] data, final boolean idempotent, final boolean multiFrame,
+				final int priority) {
+			this.msgType = msgType;
+			this.data = data;
+			this.idempotent = idempotent;
+			this.multiFrame = multiFrame;
+			this.priority = priority;
+			key = Protocol.requestKey(msgType, data);
+		}
+	}
+}
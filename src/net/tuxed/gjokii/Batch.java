@@ -0,0 +1,170 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.util.ArrayList;
+
+/**
+ * A number of independent commands to send to the phone together, see
+ * {@link Gjokii#execute(Batch)}. The commands are written to the phone in one
+ * go and the results are returned in the order the commands were added.
+ */
+public class Batch {
+
+	/**
+	 * Get information about a file or directory
+	 */
+	public static final int GET_ENTRY_INFO = 0;
+
+	/**
+	 * Delete a file
+	 */
+	public static final int DELETE_FILE = 1;
+
+	/**
+	 * Close a file descriptor
+	 */
+	public static final int CLOSE_FILE = 2;
+
+	private final ArrayList<Command> commands = new ArrayList<Command>();
+
+	/**
+	 * Add closing a file descriptor left open on the phone.
+	 * 
+	 * @param fileDesc the file descriptor
+	 */
+	public void closeFile(final short fileDesc) {
+		commands.add(new Command(CLOSE_FILE, null, Protocol.closeFile(fileDesc), false));
+	}
+
+	/**
+	 * Add deleting a file. Unlike {@link Gjokii#deleteFile(String)} the
+	 * existence of the file is not checked first.
+	 * 
+	 * @param pathFileName the file to delete
+	 */
+	public void deleteFile(final String pathFileName) {
+		commands.add(new Command(DELETE_FILE, pathFileName, Protocol.deleteFile(pathFileName), false));
+	}
+
+	/**
+	 * Add getting information about a file or directory.
+	 * 
+	 * @param filePathName the entry to get information about
+	 */
+	public void getEntryInfo(final String filePathName) {
+		commands.add(new Command(GET_ENTRY_INFO, filePathName, Protocol.fileInfo(filePathName), true));
+	}
+
+	/**
+	 * Get the number of commands in the batch.
+	 * 
+	 * @return the number of commands
+	 */
+	public int size() {
+		return commands.size();
+	}
+
+	ArrayList<Command> getCommands() {
+		return commands;
+	}
+
+	static final class Command {
+		final int type;
+		final String path;
+		final byte[] data;
+		final boolean idempotent;
+		final int key;
+
+		private Command(final int type, final String path, final byte[] data, final boolean idempotent) {
+			this.type = type;
+			this.path = path;
+			this.data = data;
+			this.idempotent = idempotent;
+			key = Protocol.requestKey(Protocol.MSG_FILE, data);
+		}
+	}
+
+	/**
+	 * The outcome of one command of a batch.
+	 */
+	public static final class Result {
+		private final int type;
+		private final String path;
+		private final DirectoryEntryInfo entryInfo;
+		private final GjokiiException exception;
+
+		Result(final Command command, final DirectoryEntryInfo entryInfo, final GjokiiException exception) {
+			type = command.type;
+			path = command.path;
+			this.entryInfo = entryInfo;
+			this.exception = exception;
+		}
+
+		/**
+		 * Get the information about the entry, only set for
+		 * {@link Batch#GET_ENTRY_INFO} commands that succeeded.
+		 * 
+		 * @return the information, or null
+		 */
+		public DirectoryEntryInfo getEntryInfo() {
+			return entryInfo;
+		}
+
+		/**
+		 * Get the reason the command failed.
+		 * 
+		 * @return the exception, or null if the command succeeded
+		 */
+		public GjokiiException getException() {
+			return exception;
+		}
+
+		/**
+		 * Get the path the command was about.
+		 * 
+		 * @return the path, or null for {@link Batch#CLOSE_FILE}
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Get the kind of command.
+		 * 
+		 * @return {@link Batch#GET_ENTRY_INFO}, {@link Batch#DELETE_FILE} or
+		 *         {@link Batch#CLOSE_FILE}
+		 */
+		public int getType() {
+			return type;
+		}
+
+		/**
+		 * Whether or not the phone answered the command.
+		 * 
+		 * @return true if the command succeeded
+		 */
+		public boolean isSuccess() {
+			return exception == null;
+		}
+
+		@Override
+		public String toString() {
+			return "Result [type=" + type + ", path=" + path + ", success=" + isSuccess() + "]";
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.UUID;
+
+import net.tuxed.misc.Utils;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Connects to the serial port profile of a phone over Bluetooth RFCOMM.
+ * 
+ * Looking up the serial port service (SDP) takes a large part of the time to
+ * connect. Given a {@link DeviceProfile}, the RFCOMM channel found by the
+ * lookup is remembered and later connections go straight to it. Only when
+ * that fails the service is looked up again.
+ */
+public class BluetoothTransport implements Transport {
+
+	/**
+	 * Connected after looking up the serial port service
+	 */
+	public static final String CONNECT_SDP = "sdp";
+
+	/**
+	 * Connected straight to the remembered RFCOMM channel
+	 */
+	public static final String CONNECT_CHANNEL = "rfcomm_channel";
+
+	/**
+	 * Connecting to the remembered RFCOMM channel failed, connected after
+	 * looking up the serial port service
+	 */
+	public static final String CONNECT_SDP_FALLBACK = "sdp_fallback";
+
+	/**
+	 * Connected over a link that is not Bluetooth
+	 */
+	static final String CONNECT_OTHER = "other";
+
+	private static final String COMMON_SPP_UUID = "00001101-0000-1000-8000-00805F9B34FB";
+
+	private final BluetoothDevice device;
+	private final DeviceProfile profile;
+	private BluetoothSocket con;
+	private String connectMethod;
+
+	public BluetoothTransport(final BluetoothDevice device) {
+		this(device, null);
+	}
+
+	/**
+	 * @param device the phone
+	 * @param profile the profile of the phone to remember the RFCOMM channel
+	 *            in, or null to always look up the service
+	 */
+	public BluetoothTransport(final BluetoothDevice device, final DeviceProfile profile) {
+		if (device == null) throw new NullPointerException("device");
+		this.device = device;
+		this.profile = profile;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (con == null) return;
+		con.close();
+	}
+
+	@Override
+	public void connect() throws IOException {
+		final int channel = profile != null ? profile.getRfcommChannel() : 0;
+		if (channel > 0) {
+			try {
+				con = createRfcommSocket(device, channel);
+				con.connect();
+				connectMethod = CONNECT_CHANNEL;
+				return;
+			} catch (final IOException e) {
+				/* the channel may have moved, look it up again */
+				Utils.closeSliently(con);
+				con = null;
+				profile.setRfcommChannel(0);
+			}
+		}
+		con = device.createRfcommSocketToServiceRecord(UUID.fromString(COMMON_SPP_UUID));
+		con.connect();
+		connectMethod = channel > 0 ? CONNECT_SDP_FALLBACK : CONNECT_SDP;
+		if (profile != null) {
+			profile.setRfcommChannel(getChannel(con));
+		}
+	}
+
+	/**
+	 * Get how the last connection was set up.
+	 * 
+	 * @return {@link #CONNECT_SDP}, {@link #CONNECT_CHANNEL},
+	 *         {@link #CONNECT_SDP_FALLBACK}, or null if not connected yet
+	 */
+	public String getConnectMethod() {
+		return connectMethod;
+	}
+
+	public BluetoothDevice getDevice() {
+		return device;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (con == null) throw new IOException("not connected");
+		return con.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (con == null) throw new IOException("not connected");
+		return con.getOutputStream();
+	}
+
+	/**
+	 * Get how a link was set up, for the metrics.
+	 */
+	static String getConnectMethod(final Transport transport) {
+		if (transport instanceof BluetoothTransport) return ((BluetoothTransport) transport).getConnectMethod();
+		return CONNECT_OTHER;
+	}
+
+	/**
+	 * Create a socket to an RFCOMM channel without looking up a service.
+	 * Android only offers this through a hidden method.
+	 */
+	private static BluetoothSocket createRfcommSocket(final BluetoothDevice device, final int channel)
+			throws IOException {
+		try {
+			return (BluetoothSocket) device.getClass().getMethod("createRfcommSocket", int.class)
+					.invoke(device, channel);
+		} catch (final InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("unable to create RFCOMM socket: " + e.getCause());
+		} catch (final NoSuchMethodException e) {
+			throw new IOException("connecting to an RFCOMM channel is not supported");
+		} catch (final IllegalAccessException e) {
+			throw new IOException("connecting to an RFCOMM channel is not supported");
+		}
+	}
+
+	/**
+	 * Get the RFCOMM channel a connected socket uses. Android keeps it in a
+	 * hidden field.
+	 * 
+	 * @return the channel, or 0 if it cannot be found out
+	 */
+	private static int getChannel(final BluetoothSocket socket) {
+		try {
+			final Field port = BluetoothSocket.class.getDeclaredField("mPort");
+			port.setAccessible(true);
+			final int channel = port.getInt(socket);
+			return channel > 0 && channel <= 30 ? channel : 0;
+		} catch (final NoSuchFieldException e) {
+			return 0;
+		} catch (final IllegalAccessException e) {
+			return 0;
+		} catch (final SecurityException e) {
+			return 0;
+		}
+	}
+}
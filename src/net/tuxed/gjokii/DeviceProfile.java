@@ -0,0 +1,265 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import net.tuxed.gjokii.Gjokii.DeviceInfo;
+
+/**
+ * What was learned about a phone in earlier sessions: its model and firmware,
+ * the RFCOMM channel to reach it on, the transfer parameters it works with and
+ * how fast it answers. A
+ * {@link Gjokii} connection given a profile applies it when connecting, so it
+ * does not have to learn the parameters again, and keeps it up to date while
+ * it runs. Profiles are kept across sessions by a {@link DeviceProfileStore}.
+ * 
+ * Applications can remember their own findings about the phone with
+ * {@link #setProperty(String, String)}.
+ */
+public final class DeviceProfile {
+
+	private static final String KEY_MODEL = "model";
+	private static final String KEY_FIRMWARE_VERSION = "firmwareVersion";
+	private static final String KEY_FIRMWARE_DATE = "firmwareDate";
+	private static final String KEY_TIMEOUT = "timeout";
+	private static final String KEY_MAX_RETRIES = "maxRetries";
+	private static final String KEY_BATCH_SIZE = "batchSize";
+	private static final String KEY_ROUND_TRIP_TIME = "roundTripTime";
+	private static final String KEY_RFCOMM_CHANNEL = "rfcommChannel";
+	private static final String KEY_PROPERTY = "property.";
+
+	private final String address;
+	private String phoneModel, firmwareVersion, firmwareDate;
+	private int timeout, maxRetries = -1, batchSize;
+	private int rfcommChannel;
+	private long roundTripTime;
+	private final HashMap<String, String> properties = new HashMap<String, String>();
+	private boolean changed;
+
+	/**
+	 * Create an empty profile.
+	 * 
+	 * @param address the Bluetooth hardware address of the phone
+	 */
+	public DeviceProfile(final String address) {
+		if (address == null) throw new NullPointerException("address");
+		this.address = address;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the number of batch commands the phone accepts at once, 0 if
+	 *         not known
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Get the model and firmware the phone reported when it was last
+	 * connected.
+	 * 
+	 * @return the information, or null if the phone was never connected
+	 */
+	public synchronized DeviceInfo getDeviceInfo() {
+		if (phoneModel == null) return null;
+		return new DeviceInfo(firmwareVersion, firmwareDate, phoneModel);
+	}
+
+	/**
+	 * @return the number of retries of read-only commands, -1 if not known
+	 */
+	public synchronized int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Get a value remembered by the application.
+	 * 
+	 * @param name the name of the value
+	 * @return the value, or null if there is none
+	 */
+	public synchronized String getProperty(final String name) {
+		return properties.get(name);
+	}
+
+	/**
+	 * @return the RFCOMM channel of the serial port service, 0 if not known
+	 */
+	public synchronized int getRfcommChannel() {
+		return rfcommChannel;
+	}
+
+	/**
+	 * Get the smoothed time between sending a single frame command and
+	 * receiving its answer.
+	 * 
+	 * @return the round trip time in nanoseconds, 0 if not known
+	 */
+	public synchronized long getRoundTripTime() {
+		return roundTripTime;
+	}
+
+	/**
+	 * @return the command timeout in milliseconds, 0 if not known
+	 */
+	public synchronized int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Remember a value of the application, e.g. a property of the file
+	 * formats of the phone.
+	 * 
+	 * @param name the name of the value
+	 * @param value the value, or null to forget it
+	 */
+	public synchronized void setProperty(final String name, final String value) {
+		final String old = value != null ? properties.put(name, value) : properties.remove(name);
+		changed |= value == null ? old != null : !value.equals(old);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DeviceProfile [address=" + address + ", phoneModel=" + phoneModel + ", firmwareVersion="
+				+ firmwareVersion + ", timeout=" + timeout + ", maxRetries=" + maxRetries + ", batchSize="
+				+ batchSize + ", rfcommChannel=" + rfcommChannel + ", roundTripTime=" + roundTripTime / 1000000.0
+				+ " ms, properties=" + properties + "]";
+	}
+
+	/**
+	 * Add a measured round trip to the smoothed round trip time.
+	 * 
+	 * @param nanos the time the command took
+	 */
+	synchronized void addRoundTrip(final long nanos) {
+		/* the same smoothing as TCP, every sample weighs 1/8 */
+		roundTripTime = roundTripTime == 0 ? nanos : roundTripTime + (nanos - roundTripTime) / 8;
+		changed = true;
+	}
+
+	synchronized boolean isChanged() {
+		return changed;
+	}
+
+	/**
+	 * Read the profile from the properties written by
+	 * {@link #store(Properties, String)}. Values that cannot be read are
+	 * left unknown.
+	 */
+	synchronized void load(final Properties p, final String prefix) {
+		phoneModel = p.getProperty(prefix + KEY_MODEL);
+		firmwareVersion = p.getProperty(prefix + KEY_FIRMWARE_VERSION);
+		firmwareDate = p.getProperty(prefix + KEY_FIRMWARE_DATE);
+		timeout = (int) parseLong(p.getProperty(prefix + KEY_TIMEOUT), 0);
+		maxRetries = (int) parseLong(p.getProperty(prefix + KEY_MAX_RETRIES), -1);
+		batchSize = (int) parseLong(p.getProperty(prefix + KEY_BATCH_SIZE), 0);
+		roundTripTime = parseLong(p.getProperty(prefix + KEY_ROUND_TRIP_TIME), 0);
+		rfcommChannel = (int) parseLong(p.getProperty(prefix + KEY_RFCOMM_CHANNEL), 0);
+		final String propertyPrefix = prefix + KEY_PROPERTY;
+		for (final String key : p.stringPropertyNames()) {
+			if (key.startsWith(propertyPrefix)) {
+				properties.put(key.substring(propertyPrefix.length()), p.getProperty(key));
+			}
+		}
+		changed = false;
+	}
+
+	synchronized void setBatchSize(final int batchSize) {
+		changed |= this.batchSize != batchSize;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Remember the model and firmware just asked from the phone. When they
+	 * differ from the ones remembered, everything learned about the old
+	 * firmware is forgotten, except for the RFCOMM channel the phone was just
+	 * reached on.
+	 */
+	synchronized void setDeviceInfo(final DeviceInfo info) {
+		final boolean sameFirmware = info.getPhoneModel().equals(phoneModel)
+				&& info.getFirmwareVersion().equals(firmwareVersion) && info.getFirmwareDate().equals(firmwareDate);
+		if (sameFirmware) return;
+		final boolean otherFirmware = phoneModel != null;
+		if (otherFirmware) {
+			timeout = 0;
+			maxRetries = -1;
+			batchSize = 0;
+			roundTripTime = 0;
+			properties.clear();
+		}
+		phoneModel = info.getPhoneModel();
+		firmwareVersion = info.getFirmwareVersion();
+		firmwareDate = info.getFirmwareDate();
+		changed = true;
+	}
+
+	synchronized void setMaxRetries(final int maxRetries) {
+		changed |= this.maxRetries != maxRetries;
+		this.maxRetries = maxRetries;
+	}
+
+	synchronized void setRfcommChannel(final int rfcommChannel) {
+		changed |= this.rfcommChannel != rfcommChannel;
+		this.rfcommChannel = rfcommChannel;
+	}
+
+	synchronized void setTimeout(final int timeout) {
+		changed |= this.timeout != timeout;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Write the profile as properties whose names start with a prefix, and
+	 * mark it as saved.
+	 */
+	synchronized void store(final Properties p, final String prefix) {
+		put(p, prefix + KEY_MODEL, phoneModel);
+		put(p, prefix + KEY_FIRMWARE_VERSION, firmwareVersion);
+		put(p, prefix + KEY_FIRMWARE_DATE, firmwareDate);
+		put(p, prefix + KEY_TIMEOUT, timeout != 0 ? String.valueOf(timeout) : null);
+		put(p, prefix + KEY_MAX_RETRIES, maxRetries >= 0 ? String.valueOf(maxRetries) : null);
+		put(p, prefix + KEY_BATCH_SIZE, batchSize != 0 ? String.valueOf(batchSize) : null);
+		put(p, prefix + KEY_ROUND_TRIP_TIME, roundTripTime != 0 ? String.valueOf(roundTripTime) : null);
+		put(p, prefix + KEY_RFCOMM_CHANNEL, rfcommChannel != 0 ? String.valueOf(rfcommChannel) : null);
+		for (final Map.Entry<String, String> e : properties.entrySet()) {
+			p.setProperty(prefix + KEY_PROPERTY + e.getKey(), e.getValue());
+		}
+		changed = false;
+	}
+
+	private static long parseLong(final String value, final long defaultValue) {
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (final NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static void put(final Properties p, final String key, final String value) {
+		if (value != null) {
+			p.setProperty(key, value);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Properties;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Keeps {@link DeviceProfile}s across sessions in a properties file, one
+ * profile per Bluetooth hardware address. The file is read on first use and
+ * only written by {@link #save()}.
+ * 
+ * Profiles only save work, so a missing or damaged file is not an error: the
+ * phones are simply probed again.
+ */
+public final class DeviceProfileStore {
+	private final File file;
+	private final HashMap<String, DeviceProfile> profiles = new HashMap<String, DeviceProfile>();
+	private boolean loaded, removed;
+
+	/**
+	 * @param file the file to keep the profiles in
+	 */
+	public DeviceProfileStore(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the profile of a phone. The same object is returned for the same
+	 * phone until it is removed, so the changes made to it by a connection
+	 * are saved with the store.
+	 * 
+	 * @param address the Bluetooth hardware address of the phone
+	 * @return the profile, empty if nothing is known about the phone yet
+	 */
+	public synchronized DeviceProfile get(final String address) {
+		load();
+		DeviceProfile profile = profiles.get(address);
+		if (profile == null) {
+			profile = new DeviceProfile(address);
+			profiles.put(address, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Forget everything known about a phone.
+	 * 
+	 * @param address the Bluetooth hardware address of the phone
+	 */
+	public synchronized void remove(final String address) {
+		load();
+		removed |= profiles.remove(address) != null;
+	}
+
+	/**
+	 * Write the profiles to the file if any of them changed. The file is
+	 * replaced as a whole, so it is never left half written.
+	 * 
+	 * @throws IOException if writing the file fails
+	 */
+	public synchronized void save() throws IOException {
+		boolean changed = removed;
+		for (final DeviceProfile profile : profiles.values()) {
+			changed |= profile.isChanged();
+		}
+		if (!changed) return;
+		final Properties p = new Properties();
+		for (final DeviceProfile profile : profiles.values()) {
+			profile.store(p, profile.getAddress() + ".");
+		}
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			p.store(out, "Gjokii device profiles");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		/* some platforms do not rename over an existing file */
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("unable to replace " + file);
+		}
+		removed = false;
+	}
+
+	private void load() {
+		if (loaded) return;
+		loaded = true;
+		if (!file.isFile()) return;
+		final Properties p = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			p.load(in);
+		} catch (final IOException e) {
+			return;
+		} catch (final IllegalArgumentException e) {
+			/* a malformed escape, the file was damaged */
+			return;
+		} finally {
+			Utils.closeSliently(in);
+		}
+		/* the names are <address>.<key>, the address contains no dots */
+		for (final String key : p.stringPropertyNames()) {
+			final int dot = key.indexOf('.');
+			if (dot <= 0) {
+				continue;
+			}
+			final String address = key.substring(0, dot);
+			if (!profiles.containsKey(address)) {
+				final DeviceProfile profile = new DeviceProfile(address);
+				profile.load(p, address + ".");
+				profiles.put(address, profile);
+			}
+		}
+	}
+}
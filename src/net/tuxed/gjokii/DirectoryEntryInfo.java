@@ -16,27 +16,34 @@
  */
 package net.tuxed.gjokii;
 
-import java.util.GregorianCalendar;
+import java.nio.charset.Charset;
+import java.util.TimeZone;
 
+import net.tuxed.misc.ByteReader;
 import net.tuxed.misc.Utils;
 
 /**
  * This class can be used to extract information about file and directories on
  * the phone file system.
  * 
+ * The entry is read in place from the buffer it was received in. Fields are
+ * only decoded when asked for.
+ * 
  * @author F. Kooman <fkooman@tuxed.net>
  * 
  */
 public class DirectoryEntryInfo {
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-16");
+
+	/**
+	 * The offset of the entry name, shorter entries are taken as "does not
+	 * exist"
+	 */
+	private static final int NAME_OFFSET = 38;
+
+	private ByteReader reader;
+	private byte entryType;
 	private String entryName;
-	private final byte entryType;
-	private int entrySize;
-	private short entryYear;
-	private short entryMonth;
-	private short entryDay;
-	private short entryHour;
-	private short entryMinute;
-	private short entrySecond;
 
 	/**
 	 * The directory entry data to request information about.
@@ -44,18 +51,30 @@ public class DirectoryEntryInfo {
 	 * @param entryData the entry data to analyze
 	 */
 	public DirectoryEntryInfo(final byte[] entryData) throws GjokiiException {
-		entryType = entryData[14];
-		if (isFile() || isDirectory()) {
-			entrySize = Utils.byteArrayToInt(entryData, 16);
-			entryYear = Utils.byteArrayToShort(entryData, 20);
-			entryMonth = entryData[22];
-			entryDay = entryData[23];
-			entryHour = entryData[24];
-			entryMinute = entryData[25];
-			entrySecond = entryData[26];
-			final short entryNameLength = Utils.byteArrayToShort(entryData, 36);
-			entryName = Utils.bytesToString(entryData, 38, entryNameLength * 2 - 2);
-		}
+		this(entryData, 0);
+	}
+
+	/**
+	 * An entry somewhere inside a larger buffer.
+	 * 
+	 * @param data the buffer
+	 * @param offset the start of the entry frame in the buffer
+	 */
+	DirectoryEntryInfo(final byte[] data, final int offset) {
+		reset(data, offset);
+	}
+
+	/**
+	 * Get a copy of the entry that no longer refers to the buffer it was
+	 * received in.
+	 * 
+	 * @return the copy
+	 */
+	public DirectoryEntryInfo copy() {
+		final byte[] entry = new byte[Math.min(Protocol.frameLength(reader), reader.getLength())];
+		reader.setPosition(0);
+		reader.readBytes(entry);
+		return new DirectoryEntryInfo(entry, 0);
 	}
 
 	/**
@@ -64,14 +83,20 @@ public class DirectoryEntryInfo {
 	 * @return the date
 	 */
 	public String getEntryDate() {
-		return Utils.shortToTwoDigitString(entryYear) + "-" + Utils.shortToTwoDigitString(entryMonth) + "-"
-				+ Utils.shortToTwoDigitString(entryDay);
+		return Utils.shortToTwoDigitString(getYear()) + "-" + Utils.shortToTwoDigitString(getField(22)) + "-"
+				+ Utils.shortToTwoDigitString(getField(23));
 	}
 
 	/**
 	 * Get the human readable entry name of the entry.
 	 */
 	public String getEntryName() {
+		if (entryName == null && exists()) {
+			/* the length comes from the phone, do not read past the data */
+			final int nameLength = reader.getUnsignedShort(36) * 2 - 2;
+			entryName = reader.getString(NAME_OFFSET,
+					Math.max(0, Math.min(nameLength, reader.getLength() - NAME_OFFSET)), NAME_CHARSET);
+		}
 		return entryName;
 	}
 
@@ -81,7 +106,7 @@ public class DirectoryEntryInfo {
 	 * @return the file size
 	 */
 	public int getEntrySize() {
-		return entrySize;
+		return exists() ? reader.getInt(16) : 0;
 	}
 
 	/**
@@ -90,20 +115,26 @@ public class DirectoryEntryInfo {
 	 * @return the time
 	 */
 	public String getEntryTime() {
-		return Utils.shortToTwoDigitString(entryHour) + ":" + Utils.shortToTwoDigitString(entryMinute) + ":"
-				+ Utils.shortToTwoDigitString(entrySecond);
+		return Utils.shortToTwoDigitString(getField(24)) + ":" + Utils.shortToTwoDigitString(getField(25)) + ":"
+				+ Utils.shortToTwoDigitString(getField(26));
 	}
 
 	/**
-	 * Get the UNIX time stamp of the entry (number of seconds since January 1st
-	 * 1970).
+	 * Get the time stamp of the entry in milliseconds since January 1st 1970
+	 * UTC. The phone reports local time.
 	 * 
-	 * @return the UNIX time stamp
+	 * @return the time stamp
 	 */
 	public long getEntryTimeStamp() {
-		final GregorianCalendar c = new GregorianCalendar(entryYear, entryMonth, entryDay, entryHour, entryMinute,
-				entrySecond);
-		return c.getTime().getTime();
+		final long days = daysSinceEpoch(getYear(), getField(22), getField(23));
+		final long local = (((days * 24 + getField(24)) * 60 + getField(25)) * 60 + getField(26)) * 1000;
+		/* read each time, the zone of the device can change while it runs */
+		final TimeZone zone = TimeZone.getDefault();
+		/* the offset is only known for UTC, guess it from the standard offset first */
+		final long standard = local - zone.getRawOffset();
+		final int offset = zone.getOffset(standard);
+		/* a time skipped when the clocks were put forward is read as standard time */
+		return zone.getOffset(local - offset) == offset ? local - offset : standard;
 	}
 
 	/**
@@ -123,4 +154,51 @@ public class DirectoryEntryInfo {
 	public boolean isFile() {
 		return (entryType & 0x80) == 0x80;
 	}
+
+	/**
+	 * Point this object to another entry, so one object can be used for all
+	 * entries of a listing.
+	 * 
+	 * @param data the buffer
+	 * @param offset the start of the entry frame in the buffer
+	 */
+	void reset(final byte[] data, final int offset) {
+		if (reader == null) {
+			reader = Protocol.reader(data);
+		}
+		reader.reset(data, offset, data.length - offset);
+		entryType = reader.getLength() >= NAME_OFFSET ? reader.getByte(14) : 0;
+		entryName = null;
+	}
+
+	private boolean exists() {
+		return isFile() || isDirectory();
+	}
+
+	private short getField(final int index) {
+		return exists() ? reader.getByte(index) : 0;
+	}
+
+	private short getYear() {
+		return exists() ? reader.getShort(20) : 0;
+	}
+
+	/**
+	 * Get the number of days between January 1st 1970 and a date in the
+	 * proleptic Gregorian calendar.
+	 * 
+	 * @param year the year
+	 * @param month the month, 1 to 12
+	 * @param day the day of the month, 1 to 31
+	 * @return the number of days
+	 */
+	private static long daysSinceEpoch(final int year, final int month, final int day) {
+		/* count years from March, so the leap day is the last day of the year */
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = (y >= 0 ? y : y - 399) / 400;
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
 }
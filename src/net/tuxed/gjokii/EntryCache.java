@@ -0,0 +1,146 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the information about files and directories on the phone for a
+ * while, so the information requested before most operations does not cost a
+ * round trip every time. Entries expire after a time to live and are dropped
+ * when the session changes them.
+ */
+final class EntryCache {
+
+	/**
+	 * The default time in milliseconds an entry is used before asking the
+	 * phone again
+	 */
+	static final int DEFAULT_TTL = 10000;
+
+	/**
+	 * The number of entries kept, the least recently used ones are dropped
+	 * first
+	 */
+	private static final int MAX_ENTRIES = 1024;
+
+	private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Cached> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private int ttl = DEFAULT_TTL;
+	private int hits, misses;
+
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Get the information about an entry, if it is known and still fresh.
+	 * 
+	 * @param path the path of the entry
+	 * @return the information, or null
+	 */
+	synchronized DirectoryEntryInfo get(final String path) {
+		final String key = key(path);
+		final Cached c = entries.get(key);
+		if (c != null && System.currentTimeMillis() < c.expires) {
+			hits++;
+			return c.entry;
+		}
+		if (c != null) {
+			entries.remove(key);
+		}
+		misses++;
+		return null;
+	}
+
+	synchronized int getHitCount() {
+		return hits;
+	}
+
+	synchronized int getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Drop an entry that is about to change, and its parent directory.
+	 * 
+	 * @param path the path of the entry
+	 */
+	synchronized void invalidate(final String path) {
+		final String key = key(path);
+		entries.remove(key);
+		final int slash = key.lastIndexOf('/');
+		if (slash > 0) {
+			entries.remove(key.substring(0, slash));
+		}
+	}
+
+	synchronized void put(final String path, final DirectoryEntryInfo entry) {
+		if (ttl > 0) {
+			entries.put(key(path), new Cached(entry, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * Remember all entries of a directory listing.
+	 * 
+	 * @param directoryPath the directory listed, ending with "/"
+	 * @param listing the entries, not refering to a shared buffer
+	 */
+	synchronized void putListing(final String directoryPath, final List<DirectoryEntryInfo> listing) {
+		for (final DirectoryEntryInfo d : listing) {
+			if (d.isFile() || d.isDirectory()) {
+				put(directoryPath + d.getEntryName(), d);
+			}
+		}
+	}
+
+	/**
+	 * Set the time to live of the entries.
+	 * 
+	 * @param ttl the time in milliseconds, 0 to disable the cache
+	 */
+	synchronized void setTtl(final int ttl) {
+		if (ttl < 0) throw new IllegalArgumentException("ttl must not be negative");
+		this.ttl = ttl;
+		if (ttl == 0) {
+			entries.clear();
+		}
+	}
+
+	private static String key(final String path) {
+		return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+	}
+
+	private static final class Cached {
+		private final DirectoryEntryInfo entry;
+		private final long expires;
+
+		private Cached(final DirectoryEntryInfo entry, final long expires) {
+			this.entry = entry;
+			this.expires = expires;
+		}
+	}
+}
@@ -16,8 +16,6 @@
  */
 package net.tuxed.gjokii;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -26,15 +24,23 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.UUID;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 
+import net.tuxed.gjokii.metrics.AllocationProbe;
+import net.tuxed.gjokii.metrics.MetricsListener;
+import net.tuxed.gjokii.metrics.OperationSample;
+import net.tuxed.gjokii.trace.TraceRecorder;
+import net.tuxed.misc.BufferPool;
+import net.tuxed.misc.ByteReader;
+import net.tuxed.misc.ByteWriter;
 import net.tuxed.misc.Utils;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 
 /**
  * Low level class to access Nokia S40 functionality.
@@ -44,117 +50,75 @@ import android.bluetooth.BluetoothSocket;
  */
 public class Gjokii implements Closeable {
 
-	private static final String COMMON_SPP_UUID = "00001101-0000-1000-8000-00805F9B34FB";
-
 	/**
-	 * The header for sending data over Bluetooth looks like this:
-	 * 
-	 * <pre>
-	 * 0x19 0x00 0x10 (type [1]) (size [2]) (data [size])
-	 * </pre>
-	 * 
-	 * The header for receiving data over Bluetooth looks like this:
-	 * 
-	 * <pre>
-	 * 0x19 0x10 0x00 (type [1]) (size [2]) (data [size])
-	 * </pre>
-	 * 
-	 * 0xff is replaced with the message type, 0xee 0xee is replaced with the
-	 * total length of the message following the header
+	 * The default time in milliseconds the phone gets to answer a command
 	 */
-	private static final byte[] BT_HEADER = { (byte) 0x19, (byte) 0x00, (byte) 0x10, (byte) 0xff, (byte) 0xee,
-			(byte) 0xee };
-
-	private static final byte[] PHONE_INIT = { (byte) 0x04 };
-
-	private static final byte[] PHONE_INFO = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x07, (byte) 0x01,
-			(byte) 0x00 };
-
-	private static final byte[] PHONE_IMEI = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x41 };
-
-	private static final byte[] PHONE_RESET = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x05, (byte) 0x80,
-			(byte) 0x00 };
+	public static final int DEFAULT_TIMEOUT = 5000;
 
 	/**
-	 * The header for requesting a file list of a given directory.
-	 * 
-	 * 0xff is replaced with the number of bytes making up the directory path
+	 * The default number of times a read-only command is sent again after a
+	 * timeout or a garbled response
 	 */
-	private static final byte[] FILE_LIST = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x68, (byte) 0x00,
-			(byte) 0xff, (byte) 0x00 };
-
-	private static final byte[] FILE_INFO = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x68, (byte) 0x00,
-			(byte) 0x68, (byte) 0x00 };
-
-	private static final byte[] GET_FILE_ID = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x72, (byte) 0x00,
-			(byte) 0x00, (byte) 0x00, (byte) 0x68, (byte) 0x00 };
+	public static final int DEFAULT_MAX_RETRIES = 3;
 
 	/**
-	 * The header for requesting a file from the phone.
-	 * 
-	 * 0xff 0xff is replaced with the file descriptor (fileDesc)
-	 * 
-	 * 0xee 0xee is replaced with the number of bytes to request for this block.
-	 * The idea implemented by Gnokii is that blocks of size 256 (0x01 0x00) are
-	 * requested until the last block which can be less than 256 bytes.
-	 * 
-	 * 0xdd 0xdd is replaced with the current block number starting from 0x00
-	 * 0x00, at every request this is increased by 1. This would thus result in
-	 * a maximum file size of 16MB. It should be investigated whether or not
-	 * these fields can contain integer values instead of just shorts.
+	 * The default number of commands of a batch written to the phone at once
 	 */
-	private static final byte[] GET_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x5e, (byte) 0x00,
-			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff, (byte) 0x00, (byte) 0xdd, (byte) 0xdd,
-			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xee,
-			(byte) 0xee };
+	public static final int DEFAULT_BATCH_SIZE = 32;
 
 	/**
-	 * Get a file ID on the phone for writing a file
-	 * 
-	 * 0xff 0xff contains the length of the file path
+	 * The delay before the first retry, doubled for every following retry
 	 */
-	private static final byte[] PUT_FILE_ID = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x72, (byte) 0x11,
-			(byte) 0x00, (byte) 0xff, (byte) 0xff };
+	private static final int INITIAL_BACKOFF = 100;
 
 	/**
-	 * Close an open file
-	 * 
-	 * 0xff 0xff contains the file Id
+	 * Some responses (e.g. directory listings) consist of several frames sent
+	 * back to back. When no new frame starts within this many milliseconds the
+	 * response is considered complete.
 	 */
-	private static final byte[] CLOSE_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x74, (byte) 0x00,
-			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff };
-	/**
-	 * Write a file to the phone
-	 * 
-	 * 0xff 0xff contains the fileId, 0xee 0xee contains the number of bytes to
-	 * write to the phone with this command
-	 */
-	private static final byte[] PUT_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x58, (byte) 0x00,
-			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff, (byte) 0x00, (byte) 0x00, (byte) 0xee,
-			(byte) 0xee };
+	private static final int RESPONSE_QUIET_TIME = 100;
 
 	/**
-	 * Delete a file from the phone
-	 * 
-	 * 0xff is replaced with the number of bytes making up the directory path
+	 * The interval in milliseconds at which the input stream is polled while
+	 * waiting for data
 	 */
-	private static final byte[] DELETE_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x62, (byte) 0x00,
-			(byte) 0xff };
+	private static final int POLL_INTERVAL = 5;
 
-	/**
-	 * The block size used for getting and putting files
-	 */
-	private static final short BLOCK_SIZE = 256;
-	private BluetoothSocket con;
+	private final Transport transport;
 
 	private final InputStream is;
 	private final OutputStream os;
 	private final boolean verbose;
+	private final TraceRecorder tracer;
+	private final DeviceProfile profile;
 
 	private String firmwareVersion;
 	private String firmwareDate;
 	private String phoneModel;
 
+	private int timeout = DEFAULT_TIMEOUT;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int commandCount;
+	private long receiveIdleTime;
+	private long connectTime;
+
+	private MetricsListener metrics;
+	private long bytesIn, bytesOut;
+	private int framesIn, framesOut, retries;
+	private int operationDepth;
+	private String operationName;
+	private long operationStart, operationBytesIn, operationBytesOut, operationAllocated;
+	private int operationFramesIn, operationFramesOut, operationRetries;
+
+	private DirectoryListing listing;
+	private final ReentrantLock sessionLock = new ReentrantLock();
+	private final EntryCache entryCache = new EntryCache();
+	private final BufferPool pool = new BufferPool();
+	private final ByteReader frameReader = Protocol.reader(new byte[Protocol.HEADER_LENGTH]);
+	private final ByteWriter frameWriter = Protocol.writer(new byte[Protocol.HEADER_LENGTH]);
+
 	/**
 	 * Open the phone connection and initialize it
 	 * 
@@ -165,17 +129,92 @@ public class Gjokii implements Closeable {
 	 * @throws GjokiiException if the Bluetooth hardware address is invalid
 	 */
 	public Gjokii(final BluetoothDevice device, final boolean verbose) throws GjokiiException {
+		this(device, verbose, null);
+	}
+
+	/**
+	 * Open the phone connection and initialize it, recording every frame
+	 * exchanged with the phone.
+	 * 
+	 * @param device the Bluetooth device to connect to
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null to disable
+	 *            tracing
+	 * @throws GjokiiException if the connection cannot be set up
+	 */
+	public Gjokii(final BluetoothDevice device, final boolean verbose, final TraceRecorder tracer)
+			throws GjokiiException {
+		this(device, verbose, tracer, null);
+	}
+
+	/**
+	 * Open the phone connection and initialize it with what was learned about
+	 * the phone in earlier sessions.
+	 * 
+	 * @param device the Bluetooth device to connect to
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null to disable
+	 *            tracing
+	 * @param profile the profile of the phone, which is applied and kept up
+	 *            to date, or null to probe the phone
+	 * @throws GjokiiException if the connection cannot be set up
+	 */
+	public Gjokii(final BluetoothDevice device, final boolean verbose, final TraceRecorder tracer,
+			final DeviceProfile profile) throws GjokiiException {
+		this(createBluetoothTransport(device, profile), verbose, tracer, profile);
+	}
+
+	/**
+	 * Open the phone connection over an arbitrary link and initialize it.
+	 * 
+	 * @param transport the (not yet connected) link to the phone
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null to disable
+	 *            tracing
+	 * @throws GjokiiException if the connection cannot be set up
+	 */
+	public Gjokii(final Transport transport, final boolean verbose, final TraceRecorder tracer)
+			throws GjokiiException {
+		this(transport, verbose, tracer, null);
+	}
+
+	/**
+	 * Open the phone connection over an arbitrary link and initialize it with
+	 * what was learned about the phone in earlier sessions. The transfer
+	 * parameters of the profile are applied, unless the phone reports another
+	 * model or firmware than the profile.
+	 * 
+	 * @param transport the (not yet connected) link to the phone
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null to disable
+	 *            tracing
+	 * @param profile the profile of the phone, which is applied and kept up
+	 *            to date, or null to probe the phone
+	 * @throws GjokiiException if the connection cannot be set up
+	 */
+	public Gjokii(final Transport transport, final boolean verbose, final TraceRecorder tracer,
+			final DeviceProfile profile) throws GjokiiException {
+		if (transport == null) throw new GjokiiException("No transport specified");
+		this.transport = transport;
 		this.verbose = verbose;
-		if (device == null) throw new GjokiiException("No device specified");
+		this.tracer = tracer;
+		this.profile = profile;
 		try {
-			con = device.createRfcommSocketToServiceRecord(UUID.fromString(COMMON_SPP_UUID));
-			con.connect();
-			is = con.getInputStream();
-			os = con.getOutputStream();
-			phoneInit();
+			final long start = System.nanoTime();
+			transport.connect();
+			connectTime = System.nanoTime() - start;
+			is = transport.getInputStream();
+			os = transport.getOutputStream();
 		} catch (final IOException e) {
+			Utils.closeSliently(transport);
 			throw new GjokiiException(GjokiiException.CONNECTION_PROBLEM, "unable to connect", e);
 		}
+		try {
+			phoneInit();
+		} catch (final GjokiiException e) {
+			Utils.closeSliently(transport);
+			throw e;
+		}
 	}
 
 	/**
@@ -186,7 +225,7 @@ public class Gjokii implements Closeable {
 	@Override
 	public void close() throws GjokiiException {
 		try {
-			con.close();
+			transport.close();
 		} catch (final IOException e) {
 			throw new GjokiiException("unable to close connection: " + e.getMessage());
 		}
@@ -198,14 +237,18 @@ public class Gjokii implements Closeable {
 	 * @param pathFileName the file to delete
 	 */
 	public void deleteFile(final String pathFileName) throws GjokiiException {
-		final DirectoryEntryInfo d = getEntryInfo(pathFileName);
-		if (!d.isFile()) throw new GjokiiException("not a file or does not exist");
-		final byte[] fileNameBytes = Utils.stringToBytes(pathFileName, true);
-		final byte[] deleteFile = Utils.appendToByteArray(DELETE_FILE, fileNameBytes);
-		deleteFile[5] = (byte) fileNameBytes.length;
-		send((byte) 0x6d, deleteFile);
-		/* we assume that if the file exists, deleting succeeds */
-		receive();
+		beginOperation("deleteFile");
+		boolean success = false;
+		try {
+			final DirectoryEntryInfo d = getEntryInfo(pathFileName);
+			if (!d.isFile()) throw new GjokiiException("not a file or does not exist");
+			/* we assume that if the file exists, deleting succeeds */
+			entryCache.invalidate(pathFileName);
+			transceive(Protocol.MSG_FILE, Protocol.deleteFile(pathFileName));
+			success = true;
+		} finally {
+			endOperation(success);
+		}
 	}
 
 	/**
@@ -217,54 +260,160 @@ public class Gjokii implements Closeable {
 	 * @throws GjokiiException if the path is invalid
 	 */
 	public void dumpFileSystem(final String directoryPath, final boolean recursive) throws GjokiiException {
-		final File outputDir = new File("output");
-		outputDir.mkdir();
-		dumpFileSystem("output", directoryPath, recursive);
+		beginOperation("dumpFileSystem");
+		boolean success = false;
+		try {
+			final File outputDir = new File("output");
+			outputDir.mkdir();
+			dumpFileSystem("output", directoryPath, recursive);
+			success = true;
+		} finally {
+			endOperation(success);
+		}
 	}
 
 	/**
-	 * Get a directory list.
+	 * Send a batch of independent commands. Up to 32 commands (see
+	 * {@link #setBatchSize(int)}) are written to the phone at once before
+	 * their responses are collected, so a batch of 200 commands takes a
+	 * handful of round trips. Commands getting entry information are retried
+	 * on a timeout or a garbled response; other commands are reported as
+	 * failed.
 	 * 
-	 * @param directoryPath the directory to list
-	 * @return a list of directories and files
-	 * @throws GjokiiException if getting the file list fails
+	 * @param batch the commands to send
+	 * @return the results, in the order the commands were added
+	 * @throws GjokiiException if the link to the phone was lost
 	 */
-	public ArrayList<DirectoryEntryInfo> getDirectoryList(String directoryPath) throws GjokiiException {
-
-		/* make sure the directory exists */
-		if (!directoryPath.equals("/")) {
-			final DirectoryEntryInfo d = getEntryInfo(directoryPath.substring(0, directoryPath.length() - 1));
-			if (!d.isDirectory()) throw new GjokiiException("not a directory or does not exist");
+	public ArrayList<Batch.Result> execute(final Batch batch) throws GjokiiException {
+		beginOperation("execute");
+		boolean success = false;
+		try {
+			final ArrayList<Batch.Command> commands = batch.getCommands();
+			final Batch.Result[] results = new Batch.Result[commands.size()];
+			final LinkedList<Integer> pending = new LinkedList<Integer>();
+			for (int i = 0; i < commands.size(); i++) {
+				pending.add(i);
+			}
+			/* the number of times each command was sent before */
+			final int[] attempts = new int[commands.size()];
+			while (!pending.isEmpty()) {
+				final ArrayList<Integer> chunk = new ArrayList<Integer>();
+				int attempt = 0;
+				while (!pending.isEmpty() && chunk.size() < batchSize) {
+					final int i = pending.removeFirst();
+					chunk.add(i);
+					attempt = Math.max(attempt, attempts[i]);
+				}
+				final GjokiiException e = transceiveBatch(commands, chunk, results, attempt);
+				if (e == null) {
+					continue;
+				}
+				final int answered = answeredPrefix(chunk, results);
+				if (e.getErrorCode() == GjokiiException.TIMEOUT && answered > 0 && answered < chunk.size()) {
+					/*
+					 * the phone answered the first commands only, as if it
+					 * cannot take more at once: send fewer for the rest of
+					 * this session, a single timeout is not worth remembering
+					 */
+					batchSize = answered;
+					log("(W) sending at most " + batchSize + " batch commands at once");
+				}
+				final ArrayList<Integer> retry = new ArrayList<Integer>();
+				for (final int i : chunk) {
+					if (results[i] != null) {
+						continue;
+					}
+					final Batch.Command c = commands.get(i);
+					if (c.idempotent && attempts[i] < maxRetries) {
+						attempts[i]++;
+						retry.add(i);
+					} else {
+						results[i] = new Batch.Result(c, null, e);
+						if (metrics != null) {
+							metrics.onCommand(Protocol.MSG_FILE, 0, 0, attempts[i], false);
+						}
+					}
+				}
+				if (!retry.isEmpty()) {
+					final long backoff = INITIAL_BACKOFF << attempt;
+					log("(W) " + e.getMessage() + ", retrying " + retry.size() + " commands in " + backoff + " ms");
+					retries++;
+					sleep(backoff);
+					drain();
+					pending.addAll(0, retry);
+				}
+			}
+			final ArrayList<Batch.Result> list = new ArrayList<Batch.Result>(Arrays.asList(results));
+			success = true;
+			return list;
+		} finally {
+			endOperation(success);
 		}
-		directoryPath += "*";
-		byte[] fileList = FILE_LIST;
-		final byte[] filePathBytes = Utils.stringToBytes(directoryPath, true);
+	}
 
-		final ArrayList<DirectoryEntryInfo> directoryListing = new ArrayList<DirectoryEntryInfo>();
+	/**
+	 * Get the number of times the information about an entry was taken from
+	 * the cache instead of asking the phone.
+	 * 
+	 * @return the number of cache hits
+	 */
+	public int getCacheHitCount() {
+		return entryCache.getHitCount();
+	}
+
+	/**
+	 * Get the number of times the information about an entry had to be
+	 * requested from the phone.
+	 * 
+	 * @return the number of cache misses
+	 */
+	public int getCacheMissCount() {
+		return entryCache.getMissCount();
+	}
 
-		/* the length of the path in bytes should be set in the request */
-		fileList[5] = (byte) filePathBytes.length;
+	/**
+	 * Get the number of commands sent to the phone, including retries.
+	 * 
+	 * @return the number of commands sent
+	 */
+	public int getCommandCount() {
+		return commandCount;
+	}
 
-		fileList = Utils.appendToByteArray(fileList, filePathBytes);
-		send((byte) 0x6d, fileList);
+	/**
+	 * Get the profile of the phone given when connecting.
+	 * 
+	 * @return the profile, or null if there is none
+	 */
+	public DeviceProfile getDeviceProfile() {
+		return profile;
+	}
 
-		final byte[] result = receive();
-		/*
-		 * we receive the whole file list in one data block, we need to parse
-		 * this file in order to retrieve all the entries in there
-		 */
-		int offset = 0;
-		while (offset < result.length) {
-			/* the short at offset 4 contains the length of the current block */
-			final short length = Utils.byteArrayToShort(result, offset + 4);
-			final byte[] entryData = new byte[length + 6];
-			System.arraycopy(result, offset, entryData, 0, length + 6);
-			directoryListing.add(new DirectoryEntryInfo(entryData));
-			offset += length + 6;
+	/**
+	 * Get a directory list.
+	 * 
+	 * @param directoryPath the directory to list
+	 * @return a list of directories and files
+	 * @throws GjokiiException if getting the file list fails
+	 */
+	public ArrayList<DirectoryEntryInfo> getDirectoryList(final String directoryPath) throws GjokiiException {
+		beginOperation("getDirectoryList");
+		boolean success = false;
+		try {
+			final ArrayList<DirectoryEntryInfo> directoryListing = new ArrayList<DirectoryEntryInfo>();
+			final DirectoryListing l = listDirectory(directoryPath);
+			while (l.next()) {
+				directoryListing.add(l.getEntry().copy());
+			}
+			entryCache.putListing(directoryPath, directoryListing);
+			success = true;
+			return directoryListing;
+		} finally {
+			endOperation(success);
 		}
-		return directoryListing;
 	}
 
+
 	/**
 	 * Gets a file from the phone located at the specified path.
 	 * 
@@ -293,60 +442,57 @@ public class Gjokii implements Closeable {
 	 *             writing the file to the local file system failed.
 	 */
 	public void getFile(final String fileName, final File targetFile) throws GjokiiException {
-		if (fileName == null) throw new GjokiiException("no file name to get specified");
-		if (fileName.endsWith("/")) throw new GjokiiException("cannot fetch a directory");
-
-		final DirectoryEntryInfo fi = getEntryInfo(fileName);
+		beginOperation("getFile");
+		boolean success = false;
+		try {
+			if (fileName == null) throw new GjokiiException("no file name to get specified");
+			if (fileName.endsWith("/")) throw new GjokiiException("cannot fetch a directory");
 
-		if (fi.isDirectory()) throw new GjokiiException("cannot fetch a directory");
-		if (!fi.isFile()) throw new GjokiiException("file does not exist");
+			final DirectoryEntryInfo fi = getEntryInfo(fileName);
 
-		if (verbose) {
-			log(fi);
-		}
-		final int fileSize = fi.getEntrySize();
-		final int numberOfBlocks = fileSize % BLOCK_SIZE != 0 ? fileSize / BLOCK_SIZE + 1 : fileSize / BLOCK_SIZE;
-		final short fileDesc = getFileDescriptor(fileName);
-		final byte[] getFile = GET_FILE;
-		/* add the fileId to the request byte array */
-		getFile[8] = Utils.shortToByteArray(fileDesc)[0];
-		getFile[9] = Utils.shortToByteArray(fileDesc)[1];
+			if (fi.isDirectory()) throw new GjokiiException("cannot fetch a directory");
+			if (!fi.isFile()) throw new GjokiiException("file does not exist");
 
-		try {
-			final FileOutputStream fos = new FileOutputStream(targetFile);
-			final DataOutputStream fileStream = new DataOutputStream(fos);
-			for (int i = 0; i < numberOfBlocks; i++) {
-				/* add the the current block number to the request byte array */
-				getFile[11] = Utils.shortToByteArray((short) i)[0];
-				getFile[12] = Utils.shortToByteArray((short) i)[1];
-				/* add the requested number of bytes to the request byte array */
-				final short bytesWanted = (short) (i < numberOfBlocks - 1 ? BLOCK_SIZE : fileSize % BLOCK_SIZE);
-				getFile[20] = Utils.shortToByteArray(bytesWanted)[0];
-				getFile[21] = Utils.shortToByteArray(bytesWanted)[1];
-				send((byte) 0x6d, getFile);
-				final byte[] tmp = receive();
-				/*
-				 * maybe we should look at the number receive in tmp buffer
-				 * instead of just assuming we get what we want!
-				 */
-				assert bytesWanted == tmp[15];
-				fileStream.write(tmp, 16, bytesWanted);
+			if (verbose) {
+				log(fi);
 			}
-			fileStream.close();
+			final int fileSize = fi.getEntrySize();
+			final int numberOfBlocks = Protocol.numberOfBlocks(fileSize);
+			final short fileDesc = getFileDescriptor(fileName);
 
-			/* retail file/date of file */
-			targetFile.setLastModified(fi.getEntryTimeStamp());
+			/* one request and one block buffer serve all blocks */
+			final ByteWriter request = Protocol.writer(Protocol.getFile(fileDesc, 0, (short) 0));
+			byte[] block = pool.acquire(Protocol.FILE_BLOCK_DATA + Protocol.BLOCK_SIZE);
+			try {
+				final FileOutputStream fos = new FileOutputStream(targetFile);
+				final DataOutputStream fileStream = new DataOutputStream(fos);
+				for (int i = 0; i < numberOfBlocks; i++) {
+					final short bytesWanted = (short) (i < numberOfBlocks - 1 ? Protocol.BLOCK_SIZE : fileSize
+							- i * Protocol.BLOCK_SIZE);
+					Protocol.getFile(request, i, bytesWanted);
+					block = transceiveIdempotent(Protocol.MSG_FILE, request.getArray(), false, block);
+					Protocol.checkFileBlock(frameReader.reset(block, 0, block.length), bytesWanted);
+					fileStream.write(block, Protocol.FILE_BLOCK_DATA, bytesWanted);
+				}
+				fileStream.close();
 
-			/* close the file */
-			final byte[] closeFile = CLOSE_FILE;
-			closeFile[8] = Utils.shortToByteArray(fileDesc)[0];
-			closeFile[9] = Utils.shortToByteArray(fileDesc)[1];
-			send((byte) 0x6d, closeFile);
-			receive();
-		} catch (final FileNotFoundException e) {
-			throw new GjokiiException("target file cannot be created: " + e.getMessage());
-		} catch (final IOException e) {
-			throw new GjokiiException("error writing to file: " + e.getMessage());
+				/* retail file/date of file */
+				targetFile.setLastModified(fi.getEntryTimeStamp());
+
+				/* close the file */
+				transceive(Protocol.MSG_FILE, Protocol.closeFile(fileDesc));
+			} catch (final GjokiiException e) {
+				throw e;
+			} catch (final FileNotFoundException e) {
+				throw new GjokiiException("target file cannot be created: " + e.getMessage());
+			} catch (final IOException e) {
+				throw new GjokiiException("error writing to file: " + e.getMessage());
+			} finally {
+				pool.release(block);
+			}
+			success = true;
+		} finally {
+			endOperation(success);
 		}
 	}
 
@@ -356,9 +502,16 @@ public class Gjokii implements Closeable {
 	 * @return the IMEI number
 	 */
 	public String getIMEI() throws GjokiiException {
-		send((byte) 0x1b, PHONE_IMEI);
-		final byte[] result = receive();
-		return new String(result, 16, 15);
+		beginOperation("getIMEI");
+		boolean success = false;
+		try {
+			final byte[] result = transceiveIdempotent(Protocol.MSG_INFO, Protocol.PHONE_IMEI, false);
+			final String imei = Protocol.parseIMEI(result);
+			success = true;
+			return imei;
+		} finally {
+			endOperation(success);
+		}
 	}
 
 	/**
@@ -370,6 +523,78 @@ public class Gjokii implements Closeable {
 		return new DeviceInfo(firmwareVersion, firmwareDate, phoneModel);
 	}
 
+	/**
+	 * Get the total time spent waiting for the phone to send data, including
+	 * the quiet time that ends a multi-frame response.
+	 * 
+	 * @return the idle time in milliseconds
+	 */
+	public long getReceiveIdleTime() {
+		return receiveIdleTime / 1000000L;
+	}
+
+	/**
+	 * Forget all information about files and directories, e.g. after they were
+	 * changed on the phone itself.
+	 */
+	public void invalidateCache() {
+		entryCache.clear();
+	}
+
+	/**
+	 * Forget the information about one file or directory, so it is asked
+	 * from the phone the next time it is needed.
+	 * 
+	 * @param filePathName the entry to forget
+	 */
+	public void invalidateCache(final String filePathName) {
+		entryCache.invalidate(filePathName);
+	}
+
+	/**
+	 * Walk through a directory one entry at a time. The entries are parsed as
+	 * the frames of the listing arrive, in a buffer that is reused for every
+	 * entry, so large directories are listed in constant memory.
+	 * 
+	 * The listing has to be walked to the end or closed before the next
+	 * command; sending another command closes it. Walking it from another
+	 * thread is safe, every step waits for the command running at the time.
+	 * 
+	 * @param directoryPath the directory to list, ending with "/"
+	 * @return the listing, positioned before the first entry
+	 * @throws GjokiiException if the directory does not exist or the phone
+	 *             does not answer
+	 */
+	public DirectoryListing listDirectory(final String directoryPath) throws GjokiiException {
+		beginOperation("listDirectory");
+		boolean success = false;
+		try {
+			/* make sure the directory exists */
+			if (!directoryPath.equals("/")) {
+				final DirectoryEntryInfo d = getEntryInfo(directoryPath.substring(0, directoryPath.length() - 1));
+				if (!d.isDirectory()) throw new GjokiiException("not a directory or does not exist");
+			}
+			/* only the first frame is received here, the rest is streamed */
+			final byte[] first = transceiveIdempotent(Protocol.MSG_FILE, Protocol.fileList(directoryPath), false);
+			listing = new DirectoryListing(first);
+			success = true;
+			return listing;
+		} finally {
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Encode the commands for a path used often once, so they cost no
+	 * encoding work when sent. Every path registered is kept for good, so
+	 * this is meant for constant paths only.
+	 * 
+	 * @param path the path of a file, or of a directory ending with "/"
+	 */
+	public static void precompilePath(final String path) {
+		Protocol.precompile(path);
+	}
+
 	/**
 	 * Puts a file on the phone, we assume that the last part of the
 	 * targetPathFileName is a file that exists in the current directory
@@ -391,46 +616,41 @@ public class Gjokii implements Closeable {
 	 * @param sourceFile the local file name
 	 */
 	public void putFile(final String targetPathFileName, final File sourceFile) throws GjokiiException {
-		final byte[] fileNameBytes = Utils.stringToBytes(targetPathFileName, true);
-
-		final byte[] putFileId = Utils.appendToByteArray(PUT_FILE_ID, fileNameBytes);
-		putFileId[6] = Utils.shortToByteArray((short) fileNameBytes.length)[0];
-		putFileId[7] = Utils.shortToByteArray((short) fileNameBytes.length)[1];
-		send((byte) 0x6d, putFileId);
-		byte[] result = receive();
-		final short fileId = Utils.byteArrayToShort(result, 14);
-
-		final byte[] putFile = PUT_FILE;
-		putFile[8] = Utils.shortToByteArray(fileId)[0];
-		putFile[9] = Utils.shortToByteArray(fileId)[1];
-		FileInputStream fis = null;
+		beginOperation("putFile");
+		boolean success = false;
 		try {
-			/* open the source file */
-			fis = new FileInputStream(sourceFile);
-			final byte[] buffer = new byte[BLOCK_SIZE];
-			short bytesRead;
-
-			while ((bytesRead = (short) fis.read(buffer)) >= 0) {
-				byte[] blockPutFile = putFile;
-				/* set the number of bytes in the byte array */
-				blockPutFile[12] = Utils.shortToByteArray(bytesRead)[0];
-				blockPutFile[13] = Utils.shortToByteArray(bytesRead)[1];
-				/* add the byte array data */
-				blockPutFile = Utils.appendToByteArray(blockPutFile, buffer, 0, bytesRead);
-				send((byte) 0x6d, blockPutFile);
-				result = receive();
+			entryCache.invalidate(targetPathFileName);
+			final byte[] result = transceive(Protocol.MSG_FILE, Protocol.putFileId(targetPathFileName));
+			final short fileId = Protocol.parseFileDescriptor(result);
+
+			FileInputStream fis = null;
+			/* the file is read straight into the frame sent */
+			final byte[] frame = pool.acquire(Protocol.PUT_FILE_DATA + Protocol.BLOCK_SIZE);
+			byte[] ack = pool.acquire(Protocol.HEADER_LENGTH);
+			try {
+				/* open the source file */
+				fis = new FileInputStream(sourceFile);
+				int bytesRead;
+
+				while ((bytesRead = fis.read(frame, Protocol.PUT_FILE_DATA, Protocol.BLOCK_SIZE)) >= 0) {
+					final int length = Protocol.putFile(frameWriter.reset(frame, 0, frame.length), fileId, bytesRead);
+					ack = transceive(frame, length, ack);
+				}
+			} catch (final GjokiiException e) {
+				throw e;
+			} catch (final IOException e) {
+				throw new GjokiiException("unable to read from source file: " + e.getMessage());
+			} finally {
+				Utils.closeSliently(fis);
+				pool.release(frame);
+				pool.release(ack);
 			}
-		} catch (final IOException e) {
-			throw new GjokiiException("unable to read from source file: " + e.getMessage());
+			/* close the file */
+			transceive(Protocol.MSG_FILE, Protocol.closeFile(fileId));
+			success = true;
 		} finally {
-			Utils.closeSliently(fis);
+			endOperation(success);
 		}
-		/* close the file */
-		final byte[] closeFile = CLOSE_FILE;
-		closeFile[8] = Utils.shortToByteArray(fileId)[0];
-		closeFile[9] = Utils.shortToByteArray(fileId)[1];
-		send((byte) 0x6d, closeFile);
-		receive();
 	}
 
 	/**
@@ -439,9 +659,141 @@ public class Gjokii implements Closeable {
 	 * @throws GjokiiException if rebooting fails
 	 */
 	public void reboot() throws GjokiiException {
-		send((byte) 0x15, PHONE_RESET);
-		receive();
-		close();
+		beginOperation("reboot");
+		boolean success = false;
+		try {
+			transceive(Protocol.MSG_RESET, Protocol.PHONE_RESET);
+			entryCache.clear();
+			close();
+			success = true;
+		} finally {
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Set how many commands of a batch are written to the phone at once. The
+	 * size is lowered automatically for the rest of the session when the
+	 * phone does not keep up; only a size set here is kept in the profile.
+	 * 
+	 * @param batchSize the number of commands
+	 */
+	public void setBatchSize(final int batchSize) {
+		if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = batchSize;
+		if (profile != null) {
+			profile.setBatchSize(batchSize);
+		}
+	}
+
+	/**
+	 * Set how long the information about files and directories is remembered.
+	 * It is taken from directory listings and from the checks made before
+	 * most operations, and is dropped when this session changes the entry.
+	 * 
+	 * @param ttl the time in milliseconds, 0 to always ask the phone
+	 */
+	public void setCacheTtl(final int ttl) {
+		entryCache.setTtl(ttl);
+	}
+
+	/**
+	 * Set how often a read-only command (FILE_INFO, FILE_LIST, GET_FILE) is
+	 * sent again after a timeout or a garbled response before giving up.
+	 * 
+	 * @param maxRetries the number of retries, 0 disables retrying
+	 */
+	public void setMaxRetries(final int maxRetries) {
+		if (maxRetries < 0) throw new IllegalArgumentException("maxRetries must not be negative");
+		this.maxRetries = maxRetries;
+		if (profile != null) {
+			profile.setMaxRetries(maxRetries);
+		}
+	}
+
+	/**
+	 * Report the cost of every command and public operation from now on.
+	 * 
+	 * @param metrics the listener, or null to stop reporting
+	 */
+	public void setMetricsListener(final MetricsListener metrics) {
+		this.metrics = metrics;
+		if (metrics != null) {
+			metrics.onConnect(BluetoothTransport.getConnectMethod(transport), connectTime);
+			metrics.onDevice(getInfo());
+		}
+	}
+
+	/**
+	 * Set the time the phone gets to answer a single command. Commands that
+	 * need several frames get this time for every frame.
+	 * 
+	 * @param timeout the timeout in milliseconds
+	 */
+	public void setTimeout(final int timeout) {
+		if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive");
+		this.timeout = timeout;
+		if (profile != null) {
+			profile.setTimeout(timeout);
+		}
+	}
+
+	/**
+	 * Mark the start of a public operation. Nested operations are reported as
+	 * part of the outermost one. Operations started from other threads wait
+	 * until the running one ended, so they never mix up their frames.
+	 * 
+	 * @param name the name of the operation
+	 */
+	protected final void beginOperation(final String name) {
+		sessionLock.lock();
+		if (operationDepth++ > 0 || metrics == null) return;
+		operationName = name;
+		operationStart = System.nanoTime();
+		operationBytesIn = bytesIn;
+		operationBytesOut = bytesOut;
+		operationFramesIn = framesIn;
+		operationFramesOut = framesOut;
+		operationRetries = retries;
+		operationAllocated = AllocationProbe.getAllocatedBytes();
+	}
+
+	/**
+	 * Mark the end of a public operation started with
+	 * {@link #beginOperation(String)}.
+	 * 
+	 * @param success whether or not the operation completed
+	 */
+	protected final void endOperation(final boolean success) {
+		try {
+			if (--operationDepth > 0 || operationName == null) return;
+			final String name = operationName;
+			operationName = null;
+			if (metrics == null) return;
+			final long allocated = operationAllocated < 0 ? -1 : AllocationProbe.getAllocatedBytes()
+					- operationAllocated;
+			metrics.onOperation(new OperationSample(name, System.nanoTime() - operationStart, bytesIn
+					- operationBytesIn, bytesOut - operationBytesOut, framesIn - operationFramesIn, framesOut
+					- operationFramesOut, retries - operationRetries, allocated, success));
+		} finally {
+			sessionLock.unlock();
+		}
+	}
+
+	/**
+	 * Get information about a directory entry.
+	 * 
+	 * @param filePathName the entry to get information about
+	 * @return the object containing information about the entry
+	 * @throws GjokiiException
+	 */
+	protected final DirectoryEntryInfo getEntryInfo(final String filePathName) throws GjokiiException {
+		DirectoryEntryInfo d = entryCache.get(filePathName);
+		if (d == null) {
+			d = new DirectoryEntryInfo(transceiveIdempotent(Protocol.MSG_FILE, Protocol.fileInfo(filePathName), false));
+			entryCache.put(filePathName, d);
+		}
+		return d;
 	}
 
 	protected void log(final Object message) {
@@ -449,6 +801,41 @@ public class Gjokii implements Closeable {
 		System.out.println(message);
 	}
 
+	/**
+	 * Take the answer to a batch command as its result, caching the entry
+	 * information it holds.
+	 */
+	private void accept(final Batch.Command c, final int index, final Batch.Result answer,
+			final Batch.Result[] results) {
+		if (c.type == Batch.GET_ENTRY_INFO) {
+			entryCache.put(c.path, answer.getEntryInfo());
+		}
+		results[index] = answer;
+	}
+
+	/**
+	 * Discard whatever the phone still sends, e.g. the late answer to a
+	 * command that already timed out, until the link has been quiet for a
+	 * while.
+	 * 
+	 * @throws GjokiiException if the link was lost
+	 */
+	private void drain() throws GjokiiException {
+		final byte[] buffer = pool.acquire(Protocol.BLOCK_SIZE);
+		try {
+			while (waitForData(System.currentTimeMillis() + RESPONSE_QUIET_TIME)) {
+				if (is.read(buffer, 0, Math.min(buffer.length, is.available())) == -1)
+					throw new GjokiiException(GjokiiException.LINK_LOST, "end of stream reached");
+			}
+		} catch (final GjokiiException e) {
+			throw e;
+		} catch (final IOException e) {
+			throw new GjokiiException(GjokiiException.LINK_LOST, "problem receiving data: " + e.getMessage(), e);
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
 	/**
 	 * Dump the file system of the phone starting from a certain directory.
 	 * 
@@ -460,7 +847,7 @@ public class Gjokii implements Closeable {
 	 */
 	private void dumpFileSystem(final String hostDirPathName, final String phoneDirPathName, final boolean recursive)
 			throws GjokiiException {
-		final ArrayList<DirectoryEntryInfo> fileList = getDirectoryList(phoneDirPathName + "*");
+		final ArrayList<DirectoryEntryInfo> fileList = getDirectoryList(phoneDirPathName);
 		for (final DirectoryEntryInfo d : fileList) {
 			if (d.isDirectory()) {
 				/*
@@ -485,20 +872,6 @@ public class Gjokii implements Closeable {
 		}
 	}
 
-	/**
-	 * Get information about a directory entry.
-	 * 
-	 * @param filePathName the entry to get information about
-	 * @return the object containing information about the entry
-	 * @throws GjokiiException
-	 */
-	private DirectoryEntryInfo getEntryInfo(final String filePathName) throws GjokiiException {
-		final byte[] fileNameBytes = Utils.stringToBytes(filePathName, true);
-		final byte[] getFileInfo = Utils.appendToByteArray(FILE_INFO, fileNameBytes);
-		send((byte) 0x6d, getFileInfo);
-		return new DirectoryEntryInfo(receive());
-	}
-
 	/**
 	 * Get a file descriptor.
 	 * 
@@ -507,78 +880,149 @@ public class Gjokii implements Closeable {
 	 * @return the file descriptor
 	 */
 	private short getFileDescriptor(final String filePathName) throws GjokiiException {
-		final byte[] fileNameBytes = Utils.stringToBytes(filePathName, true);
-		final byte[] getFileID = Utils.appendToByteArray(GET_FILE_ID, fileNameBytes);
-		send((byte) 0x6d, getFileID);
-		final byte[] result = receive();
-		final byte[] fileDescriptor = Utils.subByteArray(result, 14, 2);
-		final short fileDesc = Utils.byteArrayToShort(fileDescriptor, 0);
-		return fileDesc;
+		return Protocol.parseFileDescriptor(transceive(Protocol.MSG_FILE, Protocol.getFileId(filePathName)));
 	}
 
 	/**
-	 * Initialize the phone connection
+	 * Initialize the phone connection. The model and firmware are always asked
+	 * for, so with a profile of the phone a firmware update is noticed before
+	 * the transfer parameters learned for the old firmware are applied.
 	 * 
 	 * @throws GjokiiException if the phone returns unexpected data in response
 	 *             to the initialization
 	 */
 	private void phoneInit() throws GjokiiException {
-		send((byte) 0xd0, PHONE_INIT);
-		byte[] result = receive();
-		if (!Arrays.equals(result, new byte[] { (byte) 0x19, (byte) 0x10, (byte) 0x00, (byte) 0xd0, (byte) 0x00,
-				(byte) 0x01, (byte) 0x05 })) throw new GjokiiException("unexpected response to initiatialization");
-		send((byte) 0x1b, PHONE_INFO);
-		result = receive();
-		try {
-			final BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(result)));
-			br.skip(18);
-			firmwareVersion = br.readLine();
-			firmwareDate = br.readLine();
-			phoneModel = br.readLine();
-		} catch (final IOException e) {
-			throw new GjokiiException("unable to retrieve phone firmware information");
+		if (!Protocol.isInitResponse(transceive(Protocol.MSG_INIT, Protocol.PHONE_INIT)))
+			throw new GjokiiException(GjokiiException.PROTOCOL_ERROR, "unexpected response to initiatialization");
+		final String[] info = Protocol.parsePhoneInfo(transceiveIdempotent(Protocol.MSG_INFO, Protocol.PHONE_INFO,
+				true));
+		firmwareVersion = info[0];
+		firmwareDate = info[1];
+		phoneModel = info[2];
+		if (profile == null) return;
+		/* forgets the learned parameters if the firmware changed */
+		profile.setDeviceInfo(getInfo());
+		if (profile.getTimeout() > 0) {
+			timeout = profile.getTimeout();
+		}
+		if (profile.getMaxRetries() >= 0) {
+			maxRetries = profile.getMaxRetries();
+		}
+		if (profile.getBatchSize() > 0) {
+			batchSize = profile.getBatchSize();
+		}
+		log("(I) using " + profile);
+	}
+
+	/**
+	 * Read exactly <code>length</code> bytes from the phone, giving up when
+	 * the deadline passes.
+	 * 
+	 * @param buffer the buffer to read into
+	 * @param offset the offset in the buffer to start writing at
+	 * @param length the number of bytes to read
+	 * @param deadline the time (as in System.currentTimeMillis()) at which
+	 *            to give up
+	 * @throws GjokiiException on timeout or when the link was lost
+	 */
+	private void readFully(final byte[] buffer, int offset, int length, final long deadline) throws GjokiiException {
+		while (length > 0) {
+			if (!waitForData(deadline))
+				throw new GjokiiException(GjokiiException.TIMEOUT, "phone did not respond within " + timeout + " ms");
+			try {
+				final int bytesRead = is.read(buffer, offset, Math.min(length, is.available()));
+				if (bytesRead == -1) throw new GjokiiException(GjokiiException.LINK_LOST, "end of stream reached");
+				offset += bytesRead;
+				length -= bytesRead;
+			} catch (final GjokiiException e) {
+				throw e;
+			} catch (final IOException e) {
+				throw new GjokiiException(GjokiiException.LINK_LOST, "problem receiving data: " + e.getMessage(), e);
+			}
 		}
 	}
 
 	/**
-	 * Receive data from the phone
+	 * Receive a response from the phone
 	 * 
+	 * @param multiFrame whether or not the response may consist of several
+	 *            frames, in which case frames are collected until the link
+	 *            becomes quiet
+	 * @param buffer the buffer to receive a single frame response into, see
+	 *            {@link #receiveFrame(byte[])}; not used for multi-frame
+	 *            responses
 	 * @return the data
 	 * @throws GjokiiException if there was a problem receiving the data
 	 */
-	private byte[] receive() throws GjokiiException {
-		byte[] received = null;
-		final byte[] buffer = new byte[64];
-		try {
-			do {
-				final int bytesRead = is.read(buffer);
-				if (bytesRead == -1) throw new GjokiiException("end of stream reached");
-				final byte[] result = new byte[bytesRead];
-				System.arraycopy(buffer, 0, result, 0, bytesRead);
-				received = Utils.appendToByteArray(received, result);
-				if (is.available() == 0) {
-					/*
-					 * although there is no data available right now, we wait a
-					 * bit in hopes of still getting more data in a short time
-					 * which belongs to this transfer, otherwise with the next
-					 * command we will be in trouble as we still receive data
-					 * belonging to this command. 100 ms seems to be adequate,
-					 * but I guess it may need to be more if the phone is slower
-					 * in dealing with all the data
-					 */
-					try {
-						Thread.sleep(100);
-					} catch (final InterruptedException e) {
-					}
-				}
-			} while (is.available() > 0);
-			if (verbose) {
-				log("RECEIVED " + received.length + " bytes:\n" + Utils.hexDump(received));
-			}
-			return received;
-		} catch (final IOException e) {
-			throw new GjokiiException("problem receiving data: " + e.getMessage());
+	private byte[] receive(final boolean multiFrame, final byte[] buffer) throws GjokiiException {
+		if (!multiFrame) return receiveFrame(buffer);
+		final byte[] first = receiveFrame();
+		if (!waitForData(System.currentTimeMillis() + RESPONSE_QUIET_TIME)) return first;
+		/* collect the frames first so they are copied together only once */
+		final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+		frames.add(first);
+		int length = first.length;
+		do {
+			final byte[] frame = receiveFrame();
+			frames.add(frame);
+			length += frame.length;
+		} while (waitForData(System.currentTimeMillis() + RESPONSE_QUIET_TIME));
+		final byte[] received = new byte[length];
+		int offset = 0;
+		for (final byte[] frame : frames) {
+			System.arraycopy(frame, 0, received, offset, frame.length);
+			offset += frame.length;
+		}
+		return received;
+	}
+
+	/**
+	 * Receive exactly one frame from the phone
+	 * 
+	 * @return the frame including its header
+	 * @throws GjokiiException if no complete frame arrived in time, or if the
+	 *             data received is not a valid frame
+	 */
+	private byte[] receiveFrame() throws GjokiiException {
+		return receiveFrame(null);
+	}
+
+	/**
+	 * Receive exactly one frame from the phone into a buffer that is reused
+	 * when it is large enough
+	 * 
+	 * @param buffer the buffer to reuse, or null to get a buffer of exactly
+	 *            the size of the frame; when reused, only the length in the
+	 *            header of the frame tells where the frame ends
+	 * @return the buffer holding the frame at offset 0
+	 * @throws GjokiiException if no complete frame arrived in time, or if the
+	 *             data received is not a valid frame
+	 */
+	private byte[] receiveFrame(final byte[] buffer) throws GjokiiException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		byte[] frame = buffer != null && buffer.length >= Protocol.HEADER_LENGTH ? buffer
+				: new byte[Protocol.HEADER_LENGTH];
+		readFully(frame, 0, Protocol.HEADER_LENGTH, deadline);
+		if (!Protocol.isResponseHeader(frame))
+			throw new GjokiiException(GjokiiException.PROTOCOL_ERROR, "invalid frame header: "
+					+ Utils.byteArrayToString(frame, 0, Protocol.HEADER_LENGTH));
+		final int frameLength = Protocol.frameLength(frameReader.reset(frame, 0, Protocol.HEADER_LENGTH));
+		final int length = frameLength - Protocol.HEADER_LENGTH;
+		if (frame.length < frameLength || buffer == null && frame.length != frameLength) {
+			final byte[] larger = new byte[frameLength];
+			System.arraycopy(frame, 0, larger, 0, Protocol.HEADER_LENGTH);
+			frame = larger;
 		}
+		readFully(frame, Protocol.HEADER_LENGTH, length, deadline);
+		if (tracer != null) {
+			tracer.record(TraceRecorder.DIRECTION_RECEIVED, frame, 0, frameLength);
+		}
+		framesIn++;
+		bytesIn += frameLength;
+		if (metrics != null) {
+			metrics.onFrameReceived(frame[3], frameLength);
+		}
+		return frame;
 	}
 
 	/**
@@ -590,26 +1034,432 @@ public class Gjokii implements Closeable {
 	 * @throws GjokiiException if there was a problem sending the data
 	 */
 	private void send(final byte msgType, final byte[] data) throws GjokiiException {
-		byte[] message = BT_HEADER;
-		message[3] = msgType;
-		message[4] = Utils.shortToByteArray((short) data.length)[0];
-		message[5] = Utils.shortToByteArray((short) data.length)[1];
-		message = Utils.appendToByteArray(message, data);
+		final byte[] buffer = pool.acquire(Protocol.HEADER_LENGTH + data.length);
 		try {
-			if (verbose) {
-				log("SENT:\n" + Utils.hexDump(message));
+			write(buffer, Protocol.frame(frameWriter.reset(buffer, 0, buffer.length), msgType, data));
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Send a number of commands to the phone in a single write
+	 * 
+	 * @param msgType the message type of all commands
+	 * @param commands the commands
+	 * @throws GjokiiException if there was a problem sending the data
+	 */
+	private void send(final byte msgType, final ArrayList<byte[]> commands) throws GjokiiException {
+		int length = 0;
+		for (final byte[] data : commands) {
+			length += Protocol.HEADER_LENGTH + data.length;
+		}
+		final byte[] buffer = pool.acquire(length);
+		try {
+			frameWriter.reset(buffer, 0, buffer.length);
+			for (final byte[] data : commands) {
+				Protocol.frame(frameWriter, msgType, data);
+			}
+			write(buffer, length);
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Send a command that changes state on the phone and wait for its single
+	 * frame response. These commands are never retried.
+	 * 
+	 * @param msgType the message type
+	 * @param data the command
+	 * @return the response
+	 * @throws GjokiiException if sending or receiving fails
+	 */
+	private byte[] transceive(final byte msgType, final byte[] data) throws GjokiiException {
+		final byte[] buffer = pool.acquire(Protocol.HEADER_LENGTH + data.length);
+		try {
+			return transceive(buffer, Protocol.frame(frameWriter.reset(buffer, 0, buffer.length), msgType, data),
+					null);
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Send a complete frame that changes state on the phone and wait for its
+	 * single frame response. These commands are never retried.
+	 * 
+	 * @param frame the buffer holding the frame at offset 0
+	 * @param length the length of the frame
+	 * @param response the buffer to receive the response into, see
+	 *            {@link #receiveFrame(byte[])}
+	 * @return the response
+	 * @throws GjokiiException if sending or receiving fails
+	 */
+	private byte[] transceive(final byte[] frame, final int length, final byte[] response) throws GjokiiException {
+		final byte msgType = frame[3];
+		final long start = System.nanoTime();
+		final int frames = framesIn;
+		boolean success = false;
+		try {
+			write(frame, length);
+			final byte[] received = receiveFrame(response);
+			success = true;
+			if (profile != null) {
+				profile.addRoundTrip(System.nanoTime() - start);
+			}
+			return received;
+		} finally {
+			if (metrics != null) {
+				metrics.onCommand(msgType, System.nanoTime() - start, framesIn - frames, 0, success);
+			}
+		}
+	}
+
+	/**
+	 * Write a chunk of batch commands at once and collect their responses.
+	 * Every response is matched to the oldest unanswered command expecting
+	 * that kind of response. Entry information naming an entry is matched by
+	 * that name instead, so a lost response does not shift the entries of
+	 * the commands after it.
+	 * 
+	 * Other responses cannot be told apart, so when the chunk fails part way
+	 * only the results matched by an unambiguous name are kept (and cached);
+	 * the other commands of the chunk count as unanswered.
+	 * 
+	 * @param commands all commands of the batch
+	 * @param chunk the indices of the commands to send
+	 * @param results the results to fill in
+	 * @param attempt the number of times these commands were sent before
+	 * @return null if every command was answered, otherwise the timeout or
+	 *         protocol error that ended the wait
+	 * @throws GjokiiException if the link to the phone was lost
+	 */
+	private GjokiiException transceiveBatch(final ArrayList<Batch.Command> commands, final ArrayList<Integer> chunk,
+			final Batch.Result[] results, final int attempt) throws GjokiiException {
+		final long start = System.nanoTime();
+		final ArrayList<byte[]> messages = new ArrayList<byte[]>(chunk.size());
+		for (final int i : chunk) {
+			final Batch.Command c = commands.get(i);
+			if (c.type == Batch.DELETE_FILE) {
+				entryCache.invalidate(c.path);
+			}
+			messages.add(c.data);
+		}
+		send(Protocol.MSG_FILE, messages);
+		final LinkedList<Integer> waiting = new LinkedList<Integer>(chunk);
+		final HashMap<Integer, Batch.Result> answers = new HashMap<Integer, Batch.Result>();
+		final HashSet<Integer> verified = new HashSet<Integer>();
+		while (!waiting.isEmpty()) {
+			final byte[] frame;
+			try {
+				frame = receiveFrame();
+			} catch (final GjokiiException e) {
+				if (!e.isTransient()) throw e;
+				/* the other answers may belong to commands before a lost one */
+				for (final Integer i : verified) {
+					accept(commands.get(i), i, answers.get(i), results);
+				}
+				return e;
+			}
+			final int key = Protocol.responseKey(frame);
+			final DirectoryEntryInfo d = new DirectoryEntryInfo(frame);
+			final String name = d.getEntryName();
+			Integer match = null;
+			boolean ambiguous = false;
+			for (final Integer i : waiting) {
+				final Batch.Command c = commands.get(i);
+				if (c.key != key) {
+					continue;
+				}
+				if (c.type == Batch.GET_ENTRY_INFO && name != null) {
+					if (!name.equalsIgnoreCase(baseName(c.path))) {
+						continue;
+					}
+					if (match != null) {
+						ambiguous |= !c.path.equalsIgnoreCase(commands.get(match).path);
+						continue;
+					}
+				} else if (match != null) {
+					break;
+				}
+				match = i;
+			}
+			if (match == null) {
+				log("(W) ignoring unexpected frame: " + Utils.byteArrayToString(frame));
+				continue;
+			}
+			waiting.remove(match);
+			final Batch.Command c = commands.get(match);
+			if (c.type == Batch.GET_ENTRY_INFO) {
+				answers.put(match, new Batch.Result(c, d, null));
+				if (name != null && !ambiguous) {
+					verified.add(match);
+				}
+			} else {
+				/* we assume the phone did what was asked when it answers */
+				answers.put(match, new Batch.Result(c, null, null));
+			}
+			if (metrics != null) {
+				metrics.onCommand(Protocol.MSG_FILE, System.nanoTime() - start, 1, attempt, true);
+			}
+		}
+		for (final Integer i : chunk) {
+			accept(commands.get(i), i, answers.get(i), results);
+		}
+		return null;
+	}
+
+	/**
+	 * Send a read-only command and wait for its response. On a timeout or a
+	 * garbled response the command is sent again after an exponentially
+	 * growing backoff; a lost link fails immediately.
+	 * 
+	 * @param msgType the message type
+	 * @param data the command, which must not change state on the phone
+	 * @param multiFrame whether or not the response may consist of several
+	 *            frames
+	 * @return the response
+	 * @throws GjokiiException if all attempts failed
+	 */
+	private byte[] transceiveIdempotent(final byte msgType, final byte[] data, final boolean multiFrame)
+			throws GjokiiException {
+		return transceiveIdempotent(msgType, data, multiFrame, null);
+	}
+
+	/**
+	 * Send a read-only command and wait for its response, see
+	 * {@link #transceiveIdempotent(byte, byte[], boolean)}.
+	 * 
+	 * @param buffer the buffer to receive a single frame response into, see
+	 *            {@link #receiveFrame(byte[])}
+	 */
+	private byte[] transceiveIdempotent(final byte msgType, final byte[] data, final boolean multiFrame,
+			final byte[] buffer) throws GjokiiException {
+		final long start = System.nanoTime();
+		long backoff = INITIAL_BACKOFF;
+		int attempt = 0;
+		boolean success = false;
+		try {
+			for (;; attempt++) {
+				final int frames = framesIn;
+				try {
+					send(msgType, data);
+					final byte[] response = receive(multiFrame, buffer);
+					success = true;
+					if (profile != null && attempt == 0 && !multiFrame) {
+						profile.addRoundTrip(System.nanoTime() - start);
+					}
+					if (metrics != null) {
+						metrics.onCommand(msgType, System.nanoTime() - start, framesIn - frames, attempt, true);
+					}
+					return response;
+				} catch (final GjokiiException e) {
+					if (attempt >= maxRetries || !e.isTransient()) throw e;
+					log("(W) " + e.getMessage() + ", retrying in " + backoff + " ms");
+					retries++;
+					sleep(backoff);
+					drain();
+					backoff *= 2;
+				}
+			}
+		} finally {
+			if (!success && metrics != null) {
+				metrics.onCommand(msgType, System.nanoTime() - start, 0, attempt, false);
+			}
+		}
+	}
+
+	/**
+	 * Wait until there is data available from the phone
+	 * 
+	 * @param deadline the time (as in System.currentTimeMillis()) at which to
+	 *            stop waiting
+	 * @return true if there is data available, false if the deadline passed
+	 * @throws GjokiiException if the link was lost
+	 */
+	private boolean waitForData(final long deadline) throws GjokiiException {
+		final long start = System.nanoTime();
+		try {
+			while (is.available() <= 0) {
+				if (System.currentTimeMillis() >= deadline) return false;
+				sleep(POLL_INTERVAL);
+			}
+			return true;
+		} catch (final GjokiiException e) {
+			throw e;
+		} catch (final IOException e) {
+			throw new GjokiiException(GjokiiException.LINK_LOST, "problem receiving data: " + e.getMessage(), e);
+		} finally {
+			receiveIdleTime += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Write one or more complete frames to the phone at once
+	 * 
+	 * @param buffer the buffer holding the frames from offset 0
+	 * @param length the total length of the frames
+	 * @throws GjokiiException if there was a problem sending the data
+	 */
+	private void write(final byte[] buffer, final int length) throws GjokiiException {
+		if (listing != null) {
+			/* the rest of the listing would be taken for the next response */
+			listing.close();
+		}
+		if (tracer != null) {
+			for (int offset = 0; offset < length;) {
+				final int frameLength = Protocol.frameLength(frameReader.reset(buffer, offset, length - offset));
+				tracer.record(TraceRecorder.DIRECTION_SENT, buffer, offset, frameLength);
+				offset += frameLength;
 			}
-			os.write(message);
+		}
+		try {
+			os.write(buffer, 0, length);
 			os.flush();
 		} catch (final IOException e) {
-			throw new GjokiiException("problem sending data: " + e.getMessage());
+			throw new GjokiiException(GjokiiException.LINK_LOST, "problem sending data: " + e.getMessage(), e);
+		}
+		for (int offset = 0; offset < length;) {
+			final int frameLength = Protocol.frameLength(frameReader.reset(buffer, offset, length - offset));
+			commandCount++;
+			framesOut++;
+			bytesOut += frameLength;
+			if (metrics != null) {
+				metrics.onFrameSent(buffer[offset + 3], frameLength);
+			}
+			offset += frameLength;
+		}
+	}
+
+	/**
+	 * Find out whether the phone answered the commands of a batch chunk up to
+	 * some point and none after it.
+	 * 
+	 * @param chunk the indices of the commands sent
+	 * @param results the results filled in so far
+	 * @return the number of commands answered, or -1 if an unanswered
+	 *         command is followed by an answered one
+	 */
+	private static int answeredPrefix(final ArrayList<Integer> chunk, final Batch.Result[] results) {
+		int answered = 0;
+		while (answered < chunk.size() && results[chunk.get(answered)] != null) {
+			answered++;
+		}
+		for (int i = answered; i < chunk.size(); i++) {
+			if (results[chunk.get(i)] != null) return -1;
+		}
+		return answered;
+	}
+
+	/**
+	 * Get the last element of a path, as named in its entry information.
+	 */
+	private static String baseName(final String path) {
+		final int end = path.endsWith("/") ? path.length() - 1 : path.length();
+		return path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+	}
+
+	private static Transport createBluetoothTransport(final BluetoothDevice device, final DeviceProfile profile)
+			throws GjokiiException {
+		if (device == null) throw new GjokiiException("No device specified");
+		return new BluetoothTransport(device, profile);
+	}
+
+	private static void sleep(final long millis) throws GjokiiException {
+		try {
+			Thread.sleep(millis);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GjokiiException("interrupted while waiting for the phone");
+		}
+	}
+
+	/**
+	 * The entries of a directory, received from the phone while walking
+	 * through them. See {@link Gjokii#listDirectory(String)}.
+	 */
+	public final class DirectoryListing implements Closeable {
+		private byte[] buffer;
+		private final DirectoryEntryInfo entry;
+		private boolean started, finished;
+
+		private DirectoryListing(final byte[] first) {
+			buffer = first;
+			entry = new DirectoryEntryInfo(first, 0);
+		}
+
+		/**
+		 * Skip the remaining entries.
+		 * 
+		 * @throws GjokiiException if the link to the phone was lost
+		 */
+		@Override
+		public void close() throws GjokiiException {
+			sessionLock.lock();
+			try {
+				while (next()) {
+					/* discard */
+				}
+			} finally {
+				sessionLock.unlock();
+			}
+		}
+
+		/**
+		 * Get the current entry. The same object is returned for every entry
+		 * of the listing, use {@link DirectoryEntryInfo#copy()} to keep one.
+		 * 
+		 * @return the entry
+		 */
+		public DirectoryEntryInfo getEntry() {
+			return entry;
+		}
+
+		/**
+		 * Move to the next entry.
+		 * 
+		 * @return false if there are no more entries
+		 * @throws GjokiiException if receiving the entry fails
+		 */
+		public boolean next() throws GjokiiException {
+			/* the session lock was released when the listing was returned */
+			sessionLock.lock();
+			try {
+				if (finished) return false;
+				if (!started) {
+					started = true;
+					return true;
+				}
+				try {
+					if (!waitForData(System.currentTimeMillis() + RESPONSE_QUIET_TIME)) {
+						finish();
+						return false;
+					}
+					buffer = receiveFrame(buffer);
+				} catch (final GjokiiException e) {
+					finish();
+					throw e;
+				}
+				entry.reset(buffer, 0);
+				return true;
+			} finally {
+				sessionLock.unlock();
+			}
+		}
+
+		private void finish() {
+			finished = true;
+			if (listing == this) {
+				listing = null;
+			}
 		}
 	}
 
 	public static final class DeviceInfo {
 		private final String firmwareVersion, firmwareDate, phoneModel;
 
-		private DeviceInfo(final String firmwareVersion, final String firmwareDate, final String phoneModel) {
+		DeviceInfo(final String firmwareVersion, final String firmwareDate, final String phoneModel) {
 			this.firmwareVersion = firmwareVersion;
 			this.firmwareDate = firmwareDate;
 			this.phoneModel = phoneModel;
@@ -25,6 +25,12 @@ public class GjokiiException extends IOException {
 	public static final int UNKNOWN_ERROR = 0;
 	public static final int CONNECTION_PROBLEM = 1;
 	public static final int INVALID_CERT_FILE = 2;
+	/** the phone did not answer before the command deadline passed */
+	public static final int TIMEOUT = 3;
+	/** the phone answered with data that is not a valid response frame */
+	public static final int PROTOCOL_ERROR = 4;
+	/** the Bluetooth link to the phone went away in the middle of a command */
+	public static final int LINK_LOST = 5;
 
 	private final int errorCode;
 
@@ -64,4 +70,14 @@ public class GjokiiException extends IOException {
 	public int getErrorCode() {
 		return errorCode;
 	}
+
+	/**
+	 * Whether or not the failed command may succeed when it is sent again on
+	 * the same connection. A lost link is never retryable.
+	 * 
+	 * @return true if the error is transient
+	 */
+	public boolean isTransient() {
+		return errorCode == TIMEOUT || errorCode == PROTOCOL_ERROR;
+	}
 }
@@ -0,0 +1,267 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a command or operation running on an {@link AsyncGjokii}
+ * session.
+ * 
+ * Callbacks and continuations run on the thread talking to the phone. They
+ * must not block, in particular they must not call {@link #get()} or
+ * {@link #await()} on another future of the same session. A callback throwing
+ * a RuntimeException is skipped, a continuation doing so fails its future.
+ * 
+ * @param <V> the type of the result
+ */
+public class GjokiiFuture<V> implements Future<V> {
+
+	private final ArrayList<Callback<? super V>> callbacks = new ArrayList<Callback<? super V>>();
+	private V value;
+	private GjokiiException error;
+	private boolean done, cancelled;
+
+	/**
+	 * Run a callback when the future completes, right away if it already has.
+	 * A cancelled future calls {@link Callback#onFailure(GjokiiException)}.
+	 * 
+	 * @param callback the callback
+	 */
+	public void addCallback(final Callback<? super V> callback) {
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notify(callback);
+	}
+
+	/**
+	 * Wait for the result.
+	 * 
+	 * @return the result
+	 * @throws GjokiiException if the command failed, was cancelled or the
+	 *             waiting thread was interrupted
+	 */
+	public V await() throws GjokiiException {
+		synchronized (this) {
+			try {
+				while (!done) {
+					wait();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GjokiiException("interrupted while waiting for the phone");
+			}
+			if (error != null) throw error;
+			return value;
+		}
+	}
+
+	/**
+	 * Cancel the command if it was not sent to the phone yet.
+	 */
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		return finish(null, new GjokiiException("cancelled"), true);
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized V get(final long timeout, final TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Start another asynchronous step with the result of this one.
+	 * 
+	 * @param continuation the next step, only run when this future succeeds
+	 * @return the future of the next step, failing with the error of this
+	 *         future if it failed
+	 */
+	public <R> GjokiiFuture<R> then(final Continuation<? super V, R> continuation) {
+		final GjokiiFuture<R> next = new GjokiiFuture<R>();
+		addCallback(new Callback<V>() {
+			@Override
+			public void onFailure(final GjokiiException e) {
+				next.fail(e);
+			}
+
+			@Override
+			public void onSuccess(final V result) {
+				final GjokiiFuture<R> step;
+				try {
+					step = continuation.apply(result);
+				} catch (final GjokiiException e) {
+					next.fail(e);
+					return;
+				} catch (final RuntimeException e) {
+					next.fail(new GjokiiException("continuation failed: " + e, e));
+					return;
+				}
+				step.addCallback(new Callback<R>() {
+					@Override
+					public void onFailure(final GjokiiException e) {
+						next.fail(e);
+					}
+
+					@Override
+					public void onSuccess(final R result) {
+						next.complete(result);
+					}
+				});
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Complete the future.
+	 * 
+	 * @param result the result
+	 * @return false if the future was already done
+	 */
+	boolean complete(final V result) {
+		return finish(result, null, false);
+	}
+
+	/**
+	 * Fail the future.
+	 * 
+	 * @param e the reason
+	 * @return false if the future was already done
+	 */
+	boolean fail(final GjokiiException e) {
+		return finish(null, e, false);
+	}
+
+	private boolean finish(final V result, final GjokiiException e, final boolean cancel) {
+		final ArrayList<Callback<? super V>> toNotify;
+		synchronized (this) {
+			if (done) return false;
+			done = true;
+			cancelled = cancel;
+			value = result;
+			error = e;
+			toNotify = new ArrayList<Callback<? super V>>(callbacks);
+			callbacks.clear();
+			notifyAll();
+		}
+		for (final Callback<? super V> callback : toNotify) {
+			notify(callback);
+		}
+		return true;
+	}
+
+	private void notify(final Callback<? super V> callback) {
+		final V result;
+		final GjokiiException e;
+		synchronized (this) {
+			result = value;
+			e = error;
+		}
+		try {
+			if (e == null) {
+				callback.onSuccess(result);
+			} else {
+				callback.onFailure(e);
+			}
+		} catch (final RuntimeException x) {
+			/* a broken callback must not keep the others or the session from running */
+			x.printStackTrace();
+		}
+	}
+
+	private V result() throws ExecutionException {
+		if (cancelled) throw new CancellationException();
+		if (error != null) throw new ExecutionException(error);
+		return value;
+	}
+
+	/**
+	 * Get a future that is already completed.
+	 * 
+	 * @param result the result
+	 * @return the future
+	 */
+	public static <V> GjokiiFuture<V> completed(final V result) {
+		final GjokiiFuture<V> f = new GjokiiFuture<V>();
+		f.complete(result);
+		return f;
+	}
+
+	/**
+	 * Get a future that already failed.
+	 * 
+	 * @param e the reason
+	 * @return the future
+	 */
+	public static <V> GjokiiFuture<V> failed(final GjokiiException e) {
+		final GjokiiFuture<V> f = new GjokiiFuture<V>();
+		f.fail(e);
+		return f;
+	}
+
+	/**
+	 * Notified when a future completes.
+	 */
+	public interface Callback<V> {
+
+		void onFailure(GjokiiException e);
+
+		void onSuccess(V result);
+	}
+
+	/**
+	 * The next step after a future succeeded.
+	 */
+	public interface Continuation<V, R> {
+
+		GjokiiFuture<R> apply(V result) throws GjokiiException;
+	}
+}
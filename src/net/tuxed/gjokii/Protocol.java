@@ -0,0 +1,487 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tuxed.misc.ByteReader;
+import net.tuxed.misc.ByteWriter;
+
+/**
+ * Encodes the commands sent to the phone and decodes the responses, shared by
+ * {@link Gjokii} and {@link AsyncGjokii}. It is safe to use from several
+ * threads. Commands for paths registered with {@link #precompile(String)} are
+ * encoded once and shared, so commands must never be modified.
+ */
+final class Protocol {
+
+	/**
+	 * The header for sending data over Bluetooth looks like this:
+	 * 
+	 * <pre>
+	 * 0x19 0x00 0x10 (type [1]) (size [2]) (data [size])
+	 * </pre>
+	 * 
+	 * The header for receiving data over Bluetooth looks like this:
+	 * 
+	 * <pre>
+	 * 0x19 0x10 0x00 (type [1]) (size [2]) (data [size])
+	 * </pre>
+	 * 
+	 * 0xff is replaced with the message type, 0xee 0xee is replaced with the
+	 * total length of the message following the header
+	 */
+	private static final byte[] BT_HEADER = { (byte) 0x19, (byte) 0x00, (byte) 0x10, (byte) 0xff, (byte) 0xee,
+			(byte) 0xee };
+
+	static final int HEADER_LENGTH = BT_HEADER.length;
+
+	static final byte MSG_INIT = (byte) 0xd0;
+	static final byte MSG_INFO = (byte) 0x1b;
+	static final byte MSG_RESET = (byte) 0x15;
+	static final byte MSG_FILE = (byte) 0x6d;
+
+	/**
+	 * The block size used for getting and putting files
+	 */
+	static final short BLOCK_SIZE = 256;
+
+	/**
+	 * The offset of the file data in a response to GET_FILE
+	 */
+	static final int FILE_BLOCK_DATA = 16;
+
+	static final byte[] PHONE_INIT = { (byte) 0x04 };
+
+	static final byte[] PHONE_INFO = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x07, (byte) 0x01, (byte) 0x00 };
+
+	static final byte[] PHONE_IMEI = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x41 };
+
+	static final byte[] PHONE_RESET = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x05, (byte) 0x80, (byte) 0x00 };
+
+	/**
+	 * The response to PHONE_INIT of a phone we can talk to
+	 */
+	private static final byte[] PHONE_INIT_RESPONSE = { (byte) 0x19, (byte) 0x10, (byte) 0x00, (byte) 0xd0,
+			(byte) 0x00, (byte) 0x01, (byte) 0x05 };
+
+	/**
+	 * The header for requesting a file list of a given directory.
+	 * 
+	 * 0xff is replaced with the number of bytes making up the directory path
+	 */
+	private static final byte[] FILE_LIST = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x68, (byte) 0x00,
+			(byte) 0xff, (byte) 0x00 };
+
+	private static final byte[] FILE_INFO = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x68, (byte) 0x00,
+			(byte) 0x68, (byte) 0x00 };
+
+	private static final byte[] GET_FILE_ID = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x72, (byte) 0x00,
+			(byte) 0x00, (byte) 0x00, (byte) 0x68, (byte) 0x00 };
+
+	/**
+	 * The header for requesting a file from the phone.
+	 * 
+	 * 0xff 0xff is replaced with the file descriptor (fileDesc)
+	 * 
+	 * 0xee 0xee is replaced with the number of bytes to request for this block.
+	 * The idea implemented by Gnokii is that blocks of size 256 (0x01 0x00) are
+	 * requested until the last block which can be less than 256 bytes.
+	 * 
+	 * 0xdd 0xdd is replaced with the current block number starting from 0x00
+	 * 0x00, at every request this is increased by 1. This would thus result in
+	 * a maximum file size of 16MB. It should be investigated whether or not
+	 * these fields can contain integer values instead of just shorts.
+	 */
+	private static final byte[] GET_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x5e, (byte) 0x00,
+			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff, (byte) 0x00, (byte) 0xdd, (byte) 0xdd,
+			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xee,
+			(byte) 0xee };
+
+	/**
+	 * Get a file ID on the phone for writing a file
+	 * 
+	 * 0xff 0xff contains the length of the file path
+	 */
+	private static final byte[] PUT_FILE_ID = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x72, (byte) 0x11,
+			(byte) 0x00, (byte) 0xff, (byte) 0xff };
+
+	/**
+	 * Close an open file
+	 * 
+	 * 0xff 0xff contains the file Id
+	 */
+	private static final byte[] CLOSE_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x74, (byte) 0x00,
+			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff };
+	/**
+	 * Write a file to the phone
+	 * 
+	 * 0xff 0xff contains the fileId, 0xee 0xee contains the number of bytes to
+	 * write to the phone with this command
+	 */
+	private static final byte[] PUT_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x58, (byte) 0x00,
+			(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xff, (byte) 0xff, (byte) 0x00, (byte) 0x00, (byte) 0xee,
+			(byte) 0xee };
+
+	/**
+	 * Delete a file from the phone
+	 * 
+	 * 0xff is replaced with the number of bytes making up the directory path
+	 */
+	private static final byte[] DELETE_FILE = { (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x62, (byte) 0x00,
+			(byte) 0xff };
+
+	/**
+	 * The offset of the data in a PUT_FILE frame
+	 */
+	static final int PUT_FILE_DATA = HEADER_LENGTH + PUT_FILE.length;
+
+	/**
+	 * The commands taking a path, the index of the command in the arrays of
+	 * PRECOMPILED
+	 */
+	private static final int CMD_DELETE_FILE = 0;
+	private static final int CMD_FILE_INFO = 1;
+	private static final int CMD_FILE_LIST = 2;
+	private static final int CMD_GET_FILE_ID = 3;
+	private static final int CMD_PUT_FILE_ID = 4;
+	private static final int CMD_COUNT = 5;
+
+	/**
+	 * The encoded commands of the paths used often, by path
+	 */
+	private static final ConcurrentHashMap<String, byte[][]> PRECOMPILED = new ConcurrentHashMap<String, byte[][]>();
+
+	private Protocol() {
+	}
+
+	/**
+	 * Check that a response to GET_FILE holds all bytes asked for, starting at
+	 * {@link #FILE_BLOCK_DATA}. The response may be followed by unrelated
+	 * bytes, only the length in its header counts.
+	 * 
+	 * @param response a reader over the response
+	 * @param bytesWanted the number of bytes requested
+	 * @throws GjokiiException if the response is too short
+	 */
+	static void checkFileBlock(final ByteReader response, final int bytesWanted) throws GjokiiException {
+		try {
+			response.require(0, HEADER_LENGTH);
+			final int length = frameLength(response);
+			if (FILE_BLOCK_DATA + bytesWanted > length)
+				throw new EOFException("need " + bytesWanted + " bytes at " + FILE_BLOCK_DATA + ", only "
+						+ Math.max(0, length - FILE_BLOCK_DATA) + " left");
+			response.require(FILE_BLOCK_DATA, bytesWanted);
+		} catch (final EOFException e) {
+			throw new GjokiiException(GjokiiException.PROTOCOL_ERROR, "short block: " + e.getMessage());
+		}
+	}
+
+	static byte[] closeFile(final short fileDesc) {
+		return writer(CLOSE_FILE.clone()).putShort(8, fileDesc).getArray();
+	}
+
+	static byte[] deleteFile(final String pathFileName) {
+		final byte[] precompiled = precompiled(pathFileName, CMD_DELETE_FILE);
+		if (precompiled != null) return precompiled;
+		return command(DELETE_FILE, pathFileName).putByte(5, pathLength(pathFileName)).getArray();
+	}
+
+	static byte[] fileInfo(final String filePathName) {
+		final byte[] precompiled = precompiled(filePathName, CMD_FILE_INFO);
+		if (precompiled != null) return precompiled;
+		return command(FILE_INFO, filePathName).getArray();
+	}
+
+	/**
+	 * @param directoryPath the directory to list, ending with "/"
+	 */
+	static byte[] fileList(final String directoryPath) {
+		final byte[] precompiled = precompiled(directoryPath, CMD_FILE_LIST);
+		if (precompiled != null) return precompiled;
+		final String pattern = directoryPath + "*";
+		/* the length of the path in bytes should be set in the request */
+		return command(FILE_LIST, pattern).putByte(5, pathLength(pattern)).getArray();
+	}
+
+	/**
+	 * Build a complete frame to send to the phone.
+	 * 
+	 * @param msgType the message type
+	 * @param data the command
+	 * @return the header followed by the command
+	 */
+	static byte[] frame(final byte msgType, final byte[] data) {
+		final ByteWriter w = new ByteWriter(HEADER_LENGTH + data.length, ByteOrder.BIG_ENDIAN);
+		frame(w, msgType, data);
+		return w.getArray();
+	}
+
+	/**
+	 * Write a complete frame to send to the phone at the cursor of a writer.
+	 * 
+	 * @param w the big endian writer
+	 * @param msgType the message type
+	 * @param data the command
+	 * @return the number of bytes written
+	 */
+	static int frame(final ByteWriter w, final byte msgType, final byte[] data) {
+		final int start = w.getPosition();
+		w.putBytes(BT_HEADER).putBytes(data).putByte(start + 3, msgType).putShort(start + 4, data.length);
+		return HEADER_LENGTH + data.length;
+	}
+
+	/**
+	 * Get the length of a frame from its header.
+	 * 
+	 * @param header a reader over (at least) the header of the frame
+	 * @return the length of the frame including the header
+	 */
+	static int frameLength(final ByteReader header) {
+		return HEADER_LENGTH + header.getUnsignedShort(4);
+	}
+
+	static byte[] getFile(final short fileDesc, final int block, final short bytesWanted) {
+		/*
+		 * add the fileId, the current block number and the requested number
+		 * of bytes to the request byte array
+		 */
+		return writer(GET_FILE.clone()).putShort(8, fileDesc).putShort(11, block).putShort(20, bytesWanted)
+				.getArray();
+	}
+
+	/**
+	 * Change a GET_FILE command to ask for another block of the same file.
+	 * 
+	 * @param request a writer over a command built by
+	 *            {@link #getFile(short, int, short)}
+	 */
+	static void getFile(final ByteWriter request, final int block, final short bytesWanted) {
+		request.putShort(11, block).putShort(20, bytesWanted);
+	}
+
+	static byte[] getFileId(final String filePathName) {
+		final byte[] precompiled = precompiled(filePathName, CMD_GET_FILE_ID);
+		if (precompiled != null) return precompiled;
+		return command(GET_FILE_ID, filePathName).getArray();
+	}
+
+	/**
+	 * @return whether or not the response is a valid answer to PHONE_INIT
+	 */
+	static boolean isInitResponse(final byte[] response) {
+		return Arrays.equals(response, PHONE_INIT_RESPONSE);
+	}
+
+	/**
+	 * @return whether or not the header is that of a frame from the phone
+	 */
+	static boolean isResponseHeader(final byte[] header) {
+		return header[0] == (byte) 0x19 && header[1] == (byte) 0x10 && header[2] == (byte) 0x00;
+	}
+
+	/**
+	 * Get the number of blocks a file is transferred in.
+	 */
+	static int numberOfBlocks(final int fileSize) {
+		return fileSize % BLOCK_SIZE != 0 ? fileSize / BLOCK_SIZE + 1 : fileSize / BLOCK_SIZE;
+	}
+
+	/**
+	 * Split a (multi-frame) FILE_LIST response in its entries.
+	 */
+	static ArrayList<DirectoryEntryInfo> parseDirectoryList(final byte[] result) throws GjokiiException {
+		final ArrayList<DirectoryEntryInfo> directoryListing = new ArrayList<DirectoryEntryInfo>();
+		/*
+		 * we receive the whole file list in one data block, we need to parse
+		 * this file in order to retrieve all the entries in there
+		 */
+		final ByteReader r = reader(result);
+		int offset = 0;
+		try {
+			while (offset < result.length) {
+				/* the short at offset 4 contains the length of the current block */
+				r.reset(result, offset, result.length - offset).require(0, HEADER_LENGTH);
+				final int length = frameLength(r);
+				r.require(0, length);
+				directoryListing.add(new DirectoryEntryInfo(result, offset));
+				offset += length;
+			}
+		} catch (final EOFException e) {
+			throw new GjokiiException(GjokiiException.PROTOCOL_ERROR, "truncated directory listing: "
+					+ e.getMessage());
+		}
+		return directoryListing;
+	}
+
+	/**
+	 * Get the file descriptor from the response to GET_FILE_ID or PUT_FILE_ID.
+	 */
+	static short parseFileDescriptor(final byte[] result) {
+		return reader(result).getShort(14);
+	}
+
+	static String parseIMEI(final byte[] result) {
+		return new String(result, 16, 15);
+	}
+
+	/**
+	 * Get the firmware version, firmware date and phone model from the
+	 * response to PHONE_INFO.
+	 */
+	static String[] parsePhoneInfo(final byte[] result) throws GjokiiException {
+		try {
+			final BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(result)));
+			br.skip(18);
+			return new String[] { br.readLine(), br.readLine(), br.readLine() };
+		} catch (final IOException e) {
+			throw new GjokiiException("unable to retrieve phone firmware information");
+		}
+	}
+
+	static byte[] putFile(final short fileId, final byte[] buffer, final int offset, final int length) {
+		/* set the file id and the number of bytes, followed by the data */
+		return new ByteWriter(PUT_FILE.length + length, ByteOrder.BIG_ENDIAN).putBytes(PUT_FILE)
+				.putBytes(buffer, offset, length).putShort(8, fileId).putShort(12, length).getArray();
+	}
+
+	/**
+	 * Complete a PUT_FILE frame around data that was already put at
+	 * {@link #PUT_FILE_DATA}, so the data does not have to be copied.
+	 * 
+	 * @param frame a big endian writer over the frame
+	 * @param fileId the file to write to
+	 * @param length the number of bytes of data
+	 * @return the length of the frame
+	 */
+	static int putFile(final ByteWriter frame, final short fileId, final int length) {
+		frame.putBytes(BT_HEADER).putBytes(PUT_FILE).putByte(3, MSG_FILE).putShort(4, PUT_FILE.length + length)
+				.putShort(HEADER_LENGTH + 8, fileId).putShort(HEADER_LENGTH + 12, length);
+		return PUT_FILE_DATA + length;
+	}
+
+	/**
+	 * Encode the commands for a path once, so sending them later costs no
+	 * encoding work. Meant for the constant paths used often, every path
+	 * registered is kept for good.
+	 * 
+	 * @param path the path of a file, or of a directory ending with "/"
+	 */
+	static void precompile(final String path) {
+		if (PRECOMPILED.containsKey(path)) return;
+		final byte[][] commands = new byte[CMD_COUNT][];
+		if (path.endsWith("/")) {
+			final String pattern = path + "*";
+			commands[CMD_FILE_LIST] = command(FILE_LIST, pattern).putByte(5, pathLength(pattern)).getArray();
+		} else {
+			commands[CMD_DELETE_FILE] = command(DELETE_FILE, path).putByte(5, pathLength(path)).getArray();
+			commands[CMD_FILE_INFO] = command(FILE_INFO, path).getArray();
+			commands[CMD_GET_FILE_ID] = command(GET_FILE_ID, path).getArray();
+			commands[CMD_PUT_FILE_ID] = command(PUT_FILE_ID, path).putShort(6, pathLength(path)).getArray();
+		}
+		PRECOMPILED.putIfAbsent(path, commands);
+	}
+
+	static byte[] putFileId(final String targetPathFileName) {
+		final byte[] precompiled = precompiled(targetPathFileName, CMD_PUT_FILE_ID);
+		if (precompiled != null) return precompiled;
+		return command(PUT_FILE_ID, targetPathFileName).putShort(6, pathLength(targetPathFileName)).getArray();
+	}
+
+	/**
+	 * Get a reader for frames and responses, which are big endian.
+	 */
+	static ByteReader reader(final byte[] data) {
+		return new ByteReader(data, ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Get the key of the responses expected for a request, see
+	 * {@link #responseKey(byte[])}.
+	 * 
+	 * @param msgType the message type of the request
+	 * @param data the request
+	 * @return the key
+	 */
+	static int requestKey(final byte msgType, final byte[] data) {
+		final int type = msgType & 0xff;
+		if (msgType == MSG_FILE && data.length > 3) return type << 8 | data[3] & 0xff;
+		return type << 8;
+	}
+
+	/**
+	 * Get the key identifying which request a frame from the phone answers:
+	 * the message type and, for file commands, the sub command. File
+	 * responses carry the sub command of the request plus one.
+	 * 
+	 * @param frame the frame received
+	 * @return the key
+	 */
+	static int responseKey(final byte[] frame) {
+		final int type = frame[3] & 0xff;
+		if (frame[3] == MSG_FILE && frame.length > HEADER_LENGTH + 3)
+			return type << 8 | (frame[HEADER_LENGTH + 3] - 1) & 0xff;
+		return type << 8;
+	}
+
+	/**
+	 * Get a writer for frames and commands, which are big endian.
+	 */
+	static ByteWriter writer(final byte[] data) {
+		return new ByteWriter(data, ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Start a command consisting of a template followed by a path. The path
+	 * is written straight into the command as UTF-16LE with a terminator.
+	 * 
+	 * @return a writer positioned after the path
+	 */
+	private static ByteWriter command(final byte[] template, final String path) {
+		final ByteWriter w = new ByteWriter(template.length + pathLength(path), ByteOrder.BIG_ENDIAN);
+		w.putBytes(template);
+		w.setOrder(ByteOrder.LITTLE_ENDIAN);
+		w.putChars(path).putShort(0);
+		w.setOrder(ByteOrder.BIG_ENDIAN);
+		return w;
+	}
+
+	/**
+	 * Get the number of bytes of an encoded path, including the terminator.
+	 */
+	private static int pathLength(final String path) {
+		return path.length() * 2 + 2;
+	}
+
+	/**
+	 * Get a command of a precompiled path.
+	 * 
+	 * @return the command, or null if the path was not precompiled
+	 */
+	private static byte[] precompiled(final String path, final int command) {
+		final byte[][] commands = PRECOMPILED.get(path);
+		return commands != null ? commands[command] : null;
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte stream link to a phone. {@link Gjokii} only needs a pair of
+ * streams, which makes it possible to talk to something else than a real
+ * phone over Bluetooth.
+ */
+public interface Transport extends Closeable {
+
+	/**
+	 * Set up the link. Called once, before the streams are requested.
+	 * 
+	 * @throws IOException if the link cannot be set up
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Get the stream carrying data from the phone.
+	 * 
+	 * @return the input stream
+	 * @throws IOException if the link is not connected
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Get the stream carrying data to the phone.
+	 * 
+	 * @return the output stream
+	 * @throws IOException if the link is not connected
+	 */
+	OutputStream getOutputStream() throws IOException;
+}
@@ -0,0 +1,71 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.metrics;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads the number of bytes allocated by the current thread, where the VM
+ * supports it (the HotSpot <code>com.sun.management.ThreadMXBean</code>).
+ * Dalvik does not, there the probe reports -1.
+ */
+public final class AllocationProbe {
+
+	private static final Object THREAD_BEAN;
+	private static final Method GET_ALLOCATED_BYTES;
+
+	static {
+		Object bean = null;
+		Method method = null;
+		try {
+			bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+					long.class);
+			if (!method.getDeclaringClass().isInstance(bean)) {
+				method = null;
+			}
+		} catch (final Exception e) {
+			/* not available on this VM */
+			method = null;
+		} catch (final LinkageError e) {
+			method = null;
+		}
+		THREAD_BEAN = bean;
+		GET_ALLOCATED_BYTES = method;
+	}
+
+	private AllocationProbe() {
+	}
+
+	/**
+	 * Get the number of bytes allocated by the current thread so far.
+	 * 
+	 * @return the number of bytes, or -1 if the VM cannot tell
+	 */
+	public static long getAllocatedBytes() {
+		if (GET_ALLOCATED_BYTES == null) return -1;
+		try {
+			return (Long) GET_ALLOCATED_BYTES.invoke(THREAD_BEAN, Thread.currentThread().getId());
+		} catch (final Exception e) {
+			return -1;
+		}
+	}
+
+	public static boolean isSupported() {
+		return GET_ALLOCATED_BYTES != null;
+	}
+}
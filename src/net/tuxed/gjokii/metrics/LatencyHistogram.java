@@ -0,0 +1,108 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.metrics;
+
+/**
+ * A latency histogram with power of two buckets from 1 microsecond up to about
+ * a minute. Percentiles are reported as the upper bound of their bucket, so
+ * they are accurate to within a factor of two.
+ * 
+ * This class is not thread safe.
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * Bucket i holds values below 2^i microseconds, the last bucket holds
+	 * everything else
+	 */
+	private static final int BUCKETS = 27;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the largest value recorded in nanoseconds, 0 if empty
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the average value in nanoseconds, 0 if empty
+	 */
+	public long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * @return the smallest value recorded in nanoseconds, 0 if empty
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * Estimate a percentile.
+	 * 
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the upper bound in nanoseconds of the bucket holding the
+	 *         percentile, capped at the maximum, 0 if empty
+	 */
+	public long getPercentile(final double percentile) {
+		if (count == 0) return 0;
+		final long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) return Math.min(max, (1L << i) * 1000);
+		}
+		return max;
+	}
+
+	/**
+	 * Record a value.
+	 * 
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		final long micros = value / 1000;
+		final int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		counts[bucket]++;
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+}
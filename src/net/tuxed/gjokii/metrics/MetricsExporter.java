@@ -0,0 +1,115 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Periodically writes a snapshot of a {@link MetricsRegistry} to a file. The
+ * snapshot is written to a temporary file first and then renamed, so readers
+ * never see a partial snapshot.
+ */
+public class MetricsExporter {
+
+	/**
+	 * Write snapshots as a JSON object
+	 */
+	public static final int FORMAT_JSON = 0;
+
+	/**
+	 * Write snapshots as CSV
+	 */
+	public static final int FORMAT_CSV = 1;
+
+	private final MetricsRegistry registry;
+	private final File file;
+	private final int format;
+	private Timer timer;
+
+	/**
+	 * @param registry the registry to export
+	 * @param file the file to (over)write with every snapshot
+	 * @param format {@link #FORMAT_JSON} or {@link #FORMAT_CSV}
+	 */
+	public MetricsExporter(final MetricsRegistry registry, final File file, final int format) {
+		if (format != FORMAT_JSON && format != FORMAT_CSV) throw new IllegalArgumentException("unknown format");
+		this.registry = registry;
+		this.file = file;
+		this.format = format;
+	}
+
+	/**
+	 * Write a snapshot now.
+	 * 
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public void export() throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			if (format == FORMAT_JSON) {
+				registry.writeJson(w);
+			} else {
+				registry.writeCsv(w);
+			}
+		} finally {
+			w.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("unable to replace " + file);
+		}
+	}
+
+	/**
+	 * Start writing a snapshot at a fixed interval on a background thread.
+	 * 
+	 * @param period the interval in milliseconds
+	 */
+	public synchronized void start(final long period) {
+		if (timer != null) throw new IllegalStateException("already started");
+		timer = new Timer("MetricsExporter", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					export();
+				} catch (final IOException e) {
+					/* try again next time */
+				}
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Stop the periodic export and write a last snapshot.
+	 * 
+	 * @throws IOException if the last snapshot cannot be written
+	 */
+	public synchronized void stop() throws IOException {
+		if (timer == null) return;
+		timer.cancel();
+		timer = null;
+		export();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.metrics;
+
+import net.tuxed.gjokii.Gjokii.DeviceInfo;
+
+/**
+ * Receives measurements from a {@link net.tuxed.gjokii.Gjokii} session.
+ * 
+ * All methods are called on the thread talking to the phone, in the middle of
+ * an operation, so they should return quickly.
+ */
+public interface MetricsListener {
+
+	/**
+	 * A command completed, or failed for good.
+	 * 
+	 * @param msgType the message type of the command
+	 * @param latency the time from the first send to the complete response in
+	 *            nanoseconds, including retries
+	 * @param frames the number of frames in the response
+	 * @param retries the number of times the command was sent again
+	 * @param success whether or not a response was received
+	 */
+	void onCommand(byte msgType, long latency, int frames, int retries, boolean success);
+
+	/**
+	 * The link to the phone was set up.
+	 * 
+	 * @param method how the link was set up, e.g.
+	 *            {@link net.tuxed.gjokii.BluetoothTransport#CONNECT_CHANNEL}
+	 * @param duration the time it took in nanoseconds
+	 */
+	void onConnect(String method, long duration);
+
+	/**
+	 * The session was opened to a phone.
+	 * 
+	 * @param info the model and firmware of the phone
+	 */
+	void onDevice(DeviceInfo info);
+
+	/**
+	 * A frame was received from the phone.
+	 * 
+	 * @param msgType the message type
+	 * @param length the length of the frame including its header
+	 */
+	void onFrameReceived(byte msgType, int length);
+
+	/**
+	 * A frame was sent to the phone.
+	 * 
+	 * @param msgType the message type
+	 * @param length the length of the frame including its header
+	 */
+	void onFrameSent(byte msgType, int length);
+
+	/**
+	 * A public operation (e.g. getFile or installCertificate) completed.
+	 * 
+	 * @param sample what the operation cost
+	 */
+	void onOperation(OperationSample sample);
+}
@@ -0,0 +1,249 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tuxed.gjokii.Gjokii.DeviceInfo;
+
+/**
+ * A {@link MetricsListener} that aggregates everything it receives: per
+ * connect method, per message type and per operation latency histograms, bytes and frames in and
+ * out, retries, failures and allocations. One registry can be shared by
+ * several sessions.
+ */
+public class MetricsRegistry implements MetricsListener {
+
+	private static final String CSV_HEADER = "kind,name,count,failures,retries,frames_in,frames_out,bytes_in,"
+			+ "bytes_out,allocated_bytes,mean_ms,p50_ms,p90_ms,p99_ms,max_ms";
+
+	private final TreeMap<String, Stats> connects = new TreeMap<String, Stats>();
+	/** by message type, named only when a snapshot is written */
+	private final Stats[] commands = new Stats[256];
+	private final TreeMap<String, Stats> operations = new TreeMap<String, Stats>();
+	private String phoneModel;
+	private String firmwareVersion;
+	private long since = System.currentTimeMillis();
+
+	@Override
+	public synchronized void onCommand(final byte msgType, final long latency, final int frames, final int retries,
+			final boolean success) {
+		final Stats s = command(msgType);
+		s.count++;
+		s.latency.record(latency);
+		s.retries += retries;
+		if (!success) {
+			s.failures++;
+		}
+	}
+
+	@Override
+	public synchronized void onConnect(final String method, final long duration) {
+		Stats s = connects.get(method);
+		if (s == null) {
+			s = new Stats();
+			connects.put(method, s);
+		}
+		s.count++;
+		s.latency.record(duration);
+	}
+
+	@Override
+	public synchronized void onDevice(final DeviceInfo info) {
+		phoneModel = info.getPhoneModel();
+		firmwareVersion = info.getFirmwareVersion();
+	}
+
+	@Override
+	public synchronized void onFrameReceived(final byte msgType, final int length) {
+		final Stats s = command(msgType);
+		s.framesIn++;
+		s.bytesIn += length;
+	}
+
+	@Override
+	public synchronized void onFrameSent(final byte msgType, final int length) {
+		final Stats s = command(msgType);
+		s.framesOut++;
+		s.bytesOut += length;
+	}
+
+	@Override
+	public synchronized void onOperation(final OperationSample sample) {
+		Stats s = operations.get(sample.getName());
+		if (s == null) {
+			s = new Stats();
+			operations.put(sample.getName(), s);
+		}
+		s.count++;
+		s.latency.record(sample.getDuration());
+		s.retries += sample.getRetries();
+		s.framesIn += sample.getFramesIn();
+		s.framesOut += sample.getFramesOut();
+		s.bytesIn += sample.getBytesIn();
+		s.bytesOut += sample.getBytesOut();
+		if (sample.getAllocatedBytes() >= 0) {
+			s.allocatedBytes += sample.getAllocatedBytes();
+		}
+		if (!sample.isSuccess()) {
+			s.failures++;
+		}
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public synchronized void reset() {
+		connects.clear();
+		Arrays.fill(commands, null);
+		operations.clear();
+		since = System.currentTimeMillis();
+	}
+
+	/**
+	 * Write a snapshot as CSV, one line per connect method, per message type
+	 * and per operation.
+	 * 
+	 * @param w the writer to write to
+	 * @throws IOException if writing fails
+	 */
+	public synchronized void writeCsv(final Writer w) throws IOException {
+		w.write(CSV_HEADER);
+		w.write('\n');
+		writeCsv(w, "connect", connects);
+		writeCsv(w, "command", getCommandsByName());
+		writeCsv(w, "operation", operations);
+		w.flush();
+	}
+
+	/**
+	 * Write a snapshot as a JSON object.
+	 * 
+	 * @param w the writer to write to
+	 * @throws IOException if writing fails
+	 */
+	public synchronized void writeJson(final Writer w) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\"since\":").append(since);
+		sb.append(",\"time\":").append(System.currentTimeMillis());
+		sb.append(",\"phone_model\":");
+		appendJsonString(sb, phoneModel);
+		sb.append(",\"firmware_version\":");
+		appendJsonString(sb, firmwareVersion);
+		sb.append(",\"connects\":");
+		appendJson(sb, connects);
+		sb.append(",\"commands\":");
+		appendJson(sb, getCommandsByName());
+		sb.append(",\"operations\":");
+		appendJson(sb, operations);
+		sb.append("}\n");
+		w.write(sb.toString());
+		w.flush();
+	}
+
+	private Stats command(final byte msgType) {
+		Stats s = commands[msgType & 0xff];
+		if (s == null) {
+			s = new Stats();
+			commands[msgType & 0xff] = s;
+		}
+		return s;
+	}
+
+	private TreeMap<String, Stats> getCommandsByName() {
+		final TreeMap<String, Stats> named = new TreeMap<String, Stats>();
+		for (int i = 0; i < commands.length; i++) {
+			if (commands[i] != null) {
+				named.put(String.format("0x%02x", i), commands[i]);
+			}
+		}
+		return named;
+	}
+
+	private static void appendJson(final StringBuilder sb, final TreeMap<String, Stats> stats) {
+		sb.append('{');
+		boolean first = true;
+		for (final Map.Entry<String, Stats> e : stats.entrySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			final Stats s = e.getValue();
+			appendJsonString(sb, e.getKey());
+			sb.append(":{\"count\":").append(s.count);
+			sb.append(",\"failures\":").append(s.failures);
+			sb.append(",\"retries\":").append(s.retries);
+			sb.append(",\"frames_in\":").append(s.framesIn);
+			sb.append(",\"frames_out\":").append(s.framesOut);
+			sb.append(",\"bytes_in\":").append(s.bytesIn);
+			sb.append(",\"bytes_out\":").append(s.bytesOut);
+			sb.append(",\"allocated_bytes\":").append(s.allocatedBytes);
+			sb.append(",\"latency_ms\":{\"mean\":").append(millis(s.latency.getMean()));
+			sb.append(",\"p50\":").append(millis(s.latency.getPercentile(50)));
+			sb.append(",\"p90\":").append(millis(s.latency.getPercentile(90)));
+			sb.append(",\"p99\":").append(millis(s.latency.getPercentile(99)));
+			sb.append(",\"max\":").append(millis(s.latency.getMax()));
+			sb.append("}}");
+		}
+		sb.append('}');
+	}
+
+	private static void appendJsonString(final StringBuilder sb, final String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private static String millis(final long nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1e6);
+	}
+
+	private static void writeCsv(final Writer w, final String kind, final TreeMap<String, Stats> stats)
+			throws IOException {
+		for (final Map.Entry<String, Stats> e : stats.entrySet()) {
+			final Stats s = e.getValue();
+			w.write(kind + "," + e.getKey() + "," + s.count + "," + s.failures + "," + s.retries + "," + s.framesIn
+					+ "," + s.framesOut + "," + s.bytesIn + "," + s.bytesOut + "," + s.allocatedBytes + ","
+					+ millis(s.latency.getMean()) + "," + millis(s.latency.getPercentile(50)) + ","
+					+ millis(s.latency.getPercentile(90)) + "," + millis(s.latency.getPercentile(99)) + ","
+					+ millis(s.latency.getMax()) + "\n");
+		}
+	}
+
+	private static final class Stats {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long count, failures, retries, framesIn, framesOut, bytesIn, bytesOut, allocatedBytes;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.metrics;
+
+/**
+ * The cost of one public operation on a {@link net.tuxed.gjokii.Gjokii}
+ * session.
+ */
+public final class OperationSample {
+	private final String name;
+	private final long duration;
+	private final long bytesIn, bytesOut;
+	private final int framesIn, framesOut;
+	private final int retries;
+	private final long allocatedBytes;
+	private final boolean success;
+
+	public OperationSample(final String name, final long duration, final long bytesIn, final long bytesOut,
+			final int framesIn, final int framesOut, final int retries, final long allocatedBytes,
+			final boolean success) {
+		this.name = name;
+		this.duration = duration;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.framesIn = framesIn;
+		this.framesOut = framesOut;
+		this.retries = retries;
+		this.allocatedBytes = allocatedBytes;
+		this.success = success;
+	}
+
+	/**
+	 * Get the number of bytes allocated by the thread running the operation.
+	 * 
+	 * @return the number of bytes, or -1 if the VM cannot tell
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * Get the wall time of the operation.
+	 * 
+	 * @return the duration in nanoseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public int getFramesIn() {
+		return framesIn;
+	}
+
+	public int getFramesOut() {
+		return framesOut;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Override
+	public String toString() {
+		return "OperationSample [name=" + name + ", duration=" + duration + ", bytesIn=" + bytesIn + ", bytesOut="
+				+ bytesOut + ", framesIn=" + framesIn + ", framesOut=" + framesOut + ", retries=" + retries
+				+ ", allocatedBytes=" + allocatedBytes + ", success=" + success + "]";
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.sim;
+
+/**
+ * The properties of a simulated link to a phone: latency, bandwidth,
+ * fragmentation and injected faults. The defaults describe a perfect link.
+ */
+public class LinkProfile {
+
+	private int latency;
+	private int bandwidth;
+	private int fragmentSize;
+	private double dropRate;
+	private double corruptRate;
+	private int disconnectAfter;
+	private long seed = 1;
+
+	/**
+	 * A perfect link, without latency, bandwidth limit or faults.
+	 */
+	public LinkProfile() {
+	}
+
+	/**
+	 * A link with the given latency and bandwidth.
+	 * 
+	 * @param latency the one-way latency in milliseconds
+	 * @param bandwidth the bandwidth in bytes per second in each direction, 0
+	 *            for unlimited
+	 */
+	public LinkProfile(final int latency, final int bandwidth) {
+		setLatency(latency);
+		setBandwidth(bandwidth);
+	}
+
+	public int getBandwidth() {
+		return bandwidth;
+	}
+
+	public double getCorruptRate() {
+		return corruptRate;
+	}
+
+	public int getDisconnectAfter() {
+		return disconnectAfter;
+	}
+
+	public double getDropRate() {
+		return dropRate;
+	}
+
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Set the bandwidth of the link.
+	 * 
+	 * @param bandwidth the bandwidth in bytes per second in each direction, 0
+	 *            for unlimited
+	 */
+	public void setBandwidth(final int bandwidth) {
+		if (bandwidth < 0) throw new IllegalArgumentException("bandwidth must not be negative");
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Set the probability that a byte in a response frame is flipped.
+	 * 
+	 * @param corruptRate the probability per frame, between 0 and 1
+	 */
+	public void setCorruptRate(final double corruptRate) {
+		if (corruptRate < 0 || corruptRate > 1) throw new IllegalArgumentException("rate must be between 0 and 1");
+		this.corruptRate = corruptRate;
+	}
+
+	/**
+	 * Make the link go down after a number of requests.
+	 * 
+	 * @param disconnectAfter the number of requests after which the link
+	 *            drops, 0 to never drop the link
+	 */
+	public void setDisconnectAfter(final int disconnectAfter) {
+		if (disconnectAfter < 0) throw new IllegalArgumentException("disconnectAfter must not be negative");
+		this.disconnectAfter = disconnectAfter;
+	}
+
+	/**
+	 * Set the probability that a response frame is lost.
+	 * 
+	 * @param dropRate the probability per frame, between 0 and 1
+	 */
+	public void setDropRate(final double dropRate) {
+		if (dropRate < 0 || dropRate > 1) throw new IllegalArgumentException("rate must be between 0 and 1");
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * Deliver responses in pieces of at most this many bytes, each becoming
+	 * readable on its own.
+	 * 
+	 * @param fragmentSize the fragment size in bytes, 0 to deliver every
+	 *            response in one piece
+	 */
+	public void setFragmentSize(final int fragmentSize) {
+		if (fragmentSize < 0) throw new IllegalArgumentException("fragmentSize must not be negative");
+		this.fragmentSize = fragmentSize;
+	}
+
+	/**
+	 * Set the one-way latency of the link.
+	 * 
+	 * @param latency the latency in milliseconds
+	 */
+	public void setLatency(final int latency) {
+		if (latency < 0) throw new IllegalArgumentException("latency must not be negative");
+		this.latency = latency;
+	}
+
+	/**
+	 * Set the seed for the injected faults, so a faulty run can be repeated.
+	 * 
+	 * @param seed the random seed
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public String toString() {
+		return "LinkProfile [latency=" + latency + ", bandwidth=" + bandwidth + ", fragmentSize=" + fragmentSize
+				+ ", dropRate=" + dropRate + ", corruptRate=" + corruptRate + ", disconnectAfter=" + disconnectAfter
+				+ "]";
+	}
+}
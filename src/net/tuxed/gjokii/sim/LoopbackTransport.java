@@ -0,0 +1,293 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Random;
+
+import net.tuxed.gjokii.Transport;
+import net.tuxed.misc.Utils;
+
+/**
+ * An in-process stand-in for the phone end of the link.
+ * 
+ * Everything {@link net.tuxed.gjokii.Gjokii} writes is split into request
+ * frames and handed to {@link #onRequest(byte[])}. Subclasses answer by
+ * queueing data with {@link #respond(byte[], long)}. Responses only become
+ * readable when they would have arrived over the link described by the
+ * {@link LinkProfile}.
+ */
+public abstract class LoopbackTransport implements Transport {
+
+	/**
+	 * The length of the frame header, <code>0x19 0x00 0x10 (type [1])
+	 * (size [2])</code>
+	 */
+	protected static final int HEADER_LENGTH = 6;
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final LinkedList<Chunk> pending = new LinkedList<Chunk>();
+	private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+	private final InputStream in = new LoopbackInputStream();
+	private final OutputStream out = new LoopbackOutputStream();
+
+	private LinkProfile profile = new LinkProfile();
+	private Random random = new Random(profile.getSeed());
+	private boolean connected, closed;
+	private int requests;
+	private long requestBytes, responseBytes;
+	private long uplinkBusyUntil;
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		pending.clear();
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void connect() throws IOException {
+		if (closed) throw new IOException("transport closed");
+		connected = true;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		checkConnected();
+		return in;
+	}
+
+	public synchronized LinkProfile getLinkProfile() {
+		return profile;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		checkConnected();
+		return out;
+	}
+
+	/**
+	 * Get the number of bytes of all request frames received so far.
+	 * 
+	 * @return the number of bytes the client sent
+	 */
+	public synchronized long getRequestBytes() {
+		return requestBytes;
+	}
+
+	/**
+	 * Get the number of request frames received so far.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized int getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Get the number of bytes of all responses queued so far, not counting
+	 * dropped frames.
+	 * 
+	 * @return the number of bytes sent to the client
+	 */
+	public synchronized long getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * Set the properties of the simulated link.
+	 * 
+	 * @param profile the link profile
+	 */
+	public synchronized void setLinkProfile(final LinkProfile profile) {
+		if (profile == null) throw new NullPointerException("profile");
+		this.profile = profile;
+		random = new Random(profile.getSeed());
+	}
+
+	/**
+	 * Called for every complete request frame written by the client.
+	 * 
+	 * @param frame the request frame, including its header
+	 * @throws IOException to fail the write of the client
+	 */
+	protected abstract void onRequest(byte[] frame) throws IOException;
+
+	/**
+	 * Queue a response frame for the client to read.
+	 * 
+	 * The frame is subject to the faults of the link profile. It becomes
+	 * readable after the request was transmitted, a round trip of latency,
+	 * the extra delay and its own transmission time have passed, but never
+	 * before the previously queued response.
+	 * 
+	 * @param frame the response frame
+	 * @param delay an extra delay in milliseconds, e.g. the time the phone
+	 *            needs to process the request
+	 */
+	protected synchronized void respond(final byte[] frame, final long delay) {
+		if (closed) return;
+		if (profile.getDropRate() > 0 && random.nextDouble() < profile.getDropRate()) return;
+		byte[] data = frame;
+		if (profile.getCorruptRate() > 0 && random.nextDouble() < profile.getCorruptRate()) {
+			data = frame.clone();
+			data[random.nextInt(data.length)] ^= 1 << random.nextInt(8);
+		}
+		responseBytes += data.length;
+		final long now = System.nanoTime();
+		long releaseAt = Math.max(Math.max(now, uplinkBusyUntil) + 2 * profile.getLatency() * NANOS_PER_MILLI,
+				pending.isEmpty() ? now : pending.getLast().releaseAt);
+		releaseAt += Math.max(0, delay) * NANOS_PER_MILLI;
+		final int fragmentSize = profile.getFragmentSize() > 0 ? profile.getFragmentSize() : data.length;
+		for (int offset = 0; offset < data.length; offset += fragmentSize) {
+			final int length = Math.min(fragmentSize, data.length - offset);
+			releaseAt += transmissionTime(length);
+			pending.add(new Chunk(Utils.subByteArray(data, offset, length), releaseAt));
+		}
+		notifyAll();
+	}
+
+	private void checkConnected() throws IOException {
+		synchronized (this) {
+			if (!connected || closed) throw new IOException("not connected");
+		}
+	}
+
+	private int released(final long now) {
+		int bytes = 0;
+		for (final Chunk c : pending) {
+			if (c.releaseAt > now) {
+				break;
+			}
+			bytes += c.data.length - c.offset;
+		}
+		return bytes;
+	}
+
+	private long transmissionTime(final int bytes) {
+		final int bandwidth = profile.getBandwidth();
+		return bandwidth > 0 ? bytes * NANOS_PER_SECOND / bandwidth : 0;
+	}
+
+	private void write(final byte[] b, final int off, final int len) throws IOException {
+		synchronized (this) {
+			if (closed) throw new IOException("transport closed");
+			request.write(b, off, len);
+		}
+		while (true) {
+			final byte[] frame;
+			synchronized (this) {
+				final byte[] buffered = request.toByteArray();
+				if (buffered.length < HEADER_LENGTH) return;
+				final int length = HEADER_LENGTH + (Utils.byteArrayToShort(buffered, 4) & 0xffff);
+				if (buffered.length < length) return;
+				frame = Utils.subByteArray(buffered, 0, length);
+				request.reset();
+				request.write(buffered, length, buffered.length - length);
+				uplinkBusyUntil = Math.max(System.nanoTime(), uplinkBusyUntil) + transmissionTime(length);
+				requests++;
+				requestBytes += length;
+				if (profile.getDisconnectAfter() > 0 && requests >= profile.getDisconnectAfter()) {
+					close();
+					throw new IOException("link dropped after " + requests + " requests");
+				}
+			}
+			onRequest(frame);
+		}
+	}
+
+	private static final class Chunk {
+		private final byte[] data;
+		private final long releaseAt;
+		private int offset;
+
+		private Chunk(final byte[] data, final long releaseAt) {
+			this.data = data;
+			this.releaseAt = releaseAt;
+		}
+	}
+
+	private final class LoopbackInputStream extends InputStream {
+
+		@Override
+		public int available() throws IOException {
+			synchronized (LoopbackTransport.this) {
+				if (closed) throw new IOException("transport closed");
+				return released(System.nanoTime());
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) return 0;
+			synchronized (LoopbackTransport.this) {
+				while (true) {
+					if (closed) return -1;
+					final long now = System.nanoTime();
+					final Chunk c = pending.isEmpty() ? null : pending.getFirst();
+					if (c != null && c.releaseAt <= now) {
+						final int n = Math.min(len, c.data.length - c.offset);
+						System.arraycopy(c.data, c.offset, b, off, n);
+						c.offset += n;
+						if (c.offset == c.data.length) {
+							pending.removeFirst();
+						}
+						return n;
+					}
+					try {
+						if (c == null) {
+							LoopbackTransport.this.wait();
+						} else {
+							final long wait = c.releaseAt - now;
+							LoopbackTransport.this.wait(wait / NANOS_PER_MILLI, (int) (wait % NANOS_PER_MILLI));
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		}
+	}
+
+	private final class LoopbackOutputStream extends OutputStream {
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			LoopbackTransport.this.write(b, off, len);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+	}
+}
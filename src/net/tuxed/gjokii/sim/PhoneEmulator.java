@@ -0,0 +1,313 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+
+import net.tuxed.gjokii.sim.VirtualFileSystem.Entry;
+import net.tuxed.misc.Utils;
+
+/**
+ * A Nokia S40 phone living in the same process, answering the commands
+ * {@link net.tuxed.gjokii.Gjokii} sends from a {@link VirtualFileSystem}.
+ * 
+ * Together with a {@link LinkProfile} this allows running the complete
+ * library, including certificate installation, without a phone. An emulator
+ * uses no threads of its own, so many of them can run side by side.
+ */
+public class PhoneEmulator extends LoopbackTransport {
+
+	private static final byte MSG_INIT = (byte) 0xd0;
+	private static final byte MSG_INFO = (byte) 0x1b;
+	private static final byte MSG_RESET = (byte) 0x15;
+	private static final byte MSG_FILE = (byte) 0x6d;
+
+	private static final byte FILE_INFO = (byte) 0x68;
+	private static final byte FILE_OPEN = (byte) 0x72;
+	private static final byte FILE_READ = (byte) 0x5e;
+	private static final byte FILE_WRITE = (byte) 0x58;
+	private static final byte FILE_CLOSE = (byte) 0x74;
+	private static final byte FILE_DELETE = (byte) 0x62;
+
+	private static final byte ENTRY_FILE = (byte) 0x80;
+	private static final byte ENTRY_DIRECTORY = (byte) 0x40;
+
+	private final VirtualFileSystem fs;
+	private final HashMap<Integer, OpenFile> openFiles = new HashMap<Integer, OpenFile>();
+	private String imei = "356938035643809";
+	private String firmwareVersion = "V 07.21";
+	private String firmwareDate = "14-10-08";
+	private String phoneModel = "RM-356";
+	private int nextFileDescriptor = 1;
+
+	/**
+	 * Emulate a phone with an empty certificate directory.
+	 */
+	public PhoneEmulator() {
+		this(VirtualFileSystem.createDefault());
+	}
+
+	/**
+	 * Emulate a phone with the given file system.
+	 * 
+	 * @param fs the file system of the phone
+	 */
+	public PhoneEmulator(final VirtualFileSystem fs) {
+		this.fs = fs;
+	}
+
+	public VirtualFileSystem getFileSystem() {
+		return fs;
+	}
+
+	/**
+	 * Get the number of files opened and not yet closed by the client.
+	 * 
+	 * @return the number of open files
+	 */
+	public synchronized int getOpenFileCount() {
+		return openFiles.size();
+	}
+
+	public void setFirmware(final String firmwareVersion, final String firmwareDate) {
+		this.firmwareVersion = firmwareVersion;
+		this.firmwareDate = firmwareDate;
+	}
+
+	public void setIMEI(final String imei) {
+		if (imei.length() != 15) throw new IllegalArgumentException("an IMEI has 15 digits");
+		this.imei = imei;
+	}
+
+	public void setPhoneModel(final String phoneModel) {
+		this.phoneModel = phoneModel;
+	}
+
+	/**
+	 * Requests the emulator does not understand are ignored, like a phone
+	 * would, so the client runs into its timeout.
+	 */
+	@Override
+	protected synchronized void onRequest(final byte[] frame) throws IOException {
+		final byte type = frame[3];
+		if (type == MSG_INIT) {
+			respond(frame(MSG_INIT, new byte[] { 0x05 }));
+		} else if (type == MSG_INFO && frame[9] == 0x07) {
+			respond(frame(MSG_INFO, concat(new byte[12], (firmwareVersion + "\n" + firmwareDate + "\n" + phoneModel
+					+ "\n").getBytes("US-ASCII"))));
+		} else if (type == MSG_INFO && frame[9] == 0x00) {
+			respond(frame(MSG_INFO, concat(new byte[10], imei.getBytes("US-ASCII"))));
+		} else if (type == MSG_RESET) {
+			openFiles.clear();
+			respond(frame(MSG_RESET, new byte[] { 0x00, 0x01, 0x00, 0x06 }));
+		} else if (type == MSG_FILE) {
+			onFileRequest(frame);
+		}
+	}
+
+	private void closeFile(final int fd) {
+		final OpenFile f = openFiles.remove(fd);
+		if (f != null && f.written != null) {
+			fs.putFile(f.path, f.written.toByteArray());
+		}
+		respond(frame(MSG_FILE, new byte[] { 0x00, 0x01, 0x00, 0x75, 0x00, 0x00 }));
+	}
+
+	private void deleteFile(final String path) {
+		final boolean deleted = fs.delete(path);
+		respond(frame(MSG_FILE, new byte[] { 0x00, 0x01, 0x00, 0x63, 0x00, (byte) (deleted ? 0x00 : 0x06) }));
+	}
+
+	private void entryInfo(final String path) {
+		final Entry e = fs.lookup(path);
+		respond(entryFrame(e, e == null ? "" : e.getName()));
+	}
+
+	private void list(final String pattern) {
+		final String directory = pattern.substring(0, pattern.length() - 1);
+		final List<Entry> entries = fs.list(directory);
+		if (entries == null || entries.isEmpty()) {
+			/* an empty listing still needs an answer */
+			respond(entryFrame(null, ""));
+			return;
+		}
+		for (final Entry e : entries) {
+			respond(entryFrame(e, e.getName()));
+		}
+	}
+
+	private void onFileRequest(final byte[] frame) {
+		final int payload = HEADER_LENGTH;
+		switch (frame[payload + 3]) {
+			case FILE_INFO: {
+				final String path = path(frame, payload + 7);
+				if (path.endsWith("*")) {
+					list(path);
+				} else {
+					entryInfo(path);
+				}
+				break;
+			}
+			case FILE_OPEN:
+				if (frame[payload + 4] == 0x11) {
+					openFile(path(frame, payload + 8), true);
+				} else {
+					openFile(path(frame, payload + 9), false);
+				}
+				break;
+			case FILE_READ:
+				readBlock(Utils.byteArrayToShort(frame, payload + 8) & 0xffff,
+						Utils.byteArrayToInt(frame, payload + 10), Utils.byteArrayToInt(frame, payload + 18));
+				break;
+			case FILE_WRITE:
+				writeBlock(Utils.byteArrayToShort(frame, payload + 8) & 0xffff, frame, payload + 14,
+						Utils.byteArrayToShort(frame, payload + 12) & 0xffff);
+				break;
+			case FILE_CLOSE:
+				closeFile(Utils.byteArrayToShort(frame, payload + 8) & 0xffff);
+				break;
+			case FILE_DELETE:
+				deleteFile(path(frame, payload + 6));
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void openFile(final String path, final boolean write) {
+		final int fd = nextFileDescriptor;
+		nextFileDescriptor = nextFileDescriptor % 0xffff + 1;
+		final OpenFile f = new OpenFile(path);
+		if (write) {
+			f.written = new ByteArrayOutputStream();
+		} else {
+			f.data = fs.getFile(path);
+		}
+		openFiles.put(fd, f);
+		final byte[] payload = new byte[10];
+		payload[1] = 0x01;
+		payload[3] = 0x73;
+		payload[8] = (byte) (fd >> 8);
+		payload[9] = (byte) fd;
+		respond(frame(MSG_FILE, payload));
+	}
+
+	private void readBlock(final int fd, final int offset, final int length) {
+		final OpenFile f = openFiles.get(fd);
+		int count = 0;
+		if (f != null && f.data != null && offset >= 0 && offset < f.data.length) {
+			count = Math.min(Math.max(length, 0), f.data.length - offset);
+		}
+		final byte[] payload = new byte[10 + count];
+		payload[1] = 0x01;
+		payload[3] = 0x5f;
+		System.arraycopy(Utils.intToByteArray(count), 0, payload, 6, 4);
+		if (count > 0) {
+			System.arraycopy(f.data, offset, payload, 10, count);
+		}
+		respond(frame(MSG_FILE, payload));
+	}
+
+	private void respond(final byte[] frame) {
+		respond(frame, 0);
+	}
+
+	private void writeBlock(final int fd, final byte[] frame, final int offset, final int length) {
+		final OpenFile f = openFiles.get(fd);
+		final boolean ok = f != null && f.written != null && offset + length <= frame.length;
+		if (ok) {
+			f.written.write(frame, offset, length);
+		}
+		respond(frame(MSG_FILE, new byte[] { 0x00, 0x01, 0x00, 0x59, 0x00, (byte) (ok ? 0x00 : 0x06) }));
+	}
+
+	private static byte[] concat(final byte[] first, final byte[] second) {
+		return Utils.appendToByteArray(first, second);
+	}
+
+	/**
+	 * The entry layout read by {@link net.tuxed.gjokii.DirectoryEntryInfo},
+	 * an entry of type 0 stands for "does not exist".
+	 */
+	private static byte[] entryFrame(final Entry e, final String name) {
+		final byte[] nameBytes;
+		try {
+			nameBytes = (name + "\0").getBytes("UTF-16BE");
+		} catch (final UnsupportedEncodingException ex) {
+			throw new AssertionError(ex);
+		}
+		final byte[] payload = new byte[32 + nameBytes.length];
+		payload[1] = 0x01;
+		payload[3] = 0x69;
+		if (e != null) {
+			payload[8] = e.isDirectory() ? ENTRY_DIRECTORY : ENTRY_FILE;
+			System.arraycopy(Utils.intToByteArray(e.getSize()), 0, payload, 10, 4);
+			final Calendar c = new GregorianCalendar();
+			c.setTimeInMillis(e.getModified());
+			final int year = c.get(Calendar.YEAR);
+			payload[14] = (byte) (year >> 8);
+			payload[15] = (byte) year;
+			payload[16] = (byte) (c.get(Calendar.MONTH) + 1);
+			payload[17] = (byte) c.get(Calendar.DAY_OF_MONTH);
+			payload[18] = (byte) c.get(Calendar.HOUR_OF_DAY);
+			payload[19] = (byte) c.get(Calendar.MINUTE);
+			payload[20] = (byte) c.get(Calendar.SECOND);
+		}
+		final int nameLength = nameBytes.length / 2;
+		payload[30] = (byte) (nameLength >> 8);
+		payload[31] = (byte) nameLength;
+		System.arraycopy(nameBytes, 0, payload, 32, nameBytes.length);
+		return frame(MSG_FILE, payload);
+	}
+
+	private static byte[] frame(final byte type, final byte[] payload) {
+		final byte[] frame = new byte[HEADER_LENGTH + payload.length];
+		frame[0] = (byte) 0x19;
+		frame[1] = (byte) 0x10;
+		frame[2] = (byte) 0x00;
+		frame[3] = type;
+		frame[4] = (byte) (payload.length >> 8);
+		frame[5] = (byte) payload.length;
+		System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+		return frame;
+	}
+
+	private static String path(final byte[] frame, final int offset) {
+		/* UTF-16 LE, terminated by 0x00 0x00 */
+		int end = offset;
+		while (end + 1 < frame.length && (frame[end] != 0 || frame[end + 1] != 0)) {
+			end += 2;
+		}
+		return Utils.bytesToStringLE(frame, offset, end - offset);
+	}
+
+	private static final class OpenFile {
+		private final String path;
+		private byte[] data;
+		private ByteArrayOutputStream written;
+
+		private OpenFile(final String path) {
+			this.path = path;
+		}
+	}
+}
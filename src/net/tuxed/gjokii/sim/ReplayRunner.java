@@ -0,0 +1,102 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import net.tuxed.gjokii.trace.TraceReader;
+import net.tuxed.gjokii.trace.TraceRecord;
+import net.tuxed.misc.Utils;
+import net.tuxed.nokicert.NokiCert;
+
+/**
+ * Runs NokiCert operations in a loop against a recorded conversation, so
+ * field problems can be reproduced and protocol changes measured without a
+ * phone.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * ReplayRunner &lt;trace file&gt; &lt;iterations&gt; [--delays] [--install &lt;cert file&gt; &lt;usage&gt;]
+ * </pre>
+ */
+public class ReplayRunner {
+
+	private ReplayRunner() {
+	}
+
+	public static void main(final String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: ReplayRunner <trace file> <iterations> [--delays] "
+					+ "[--install <cert file> <usage>]");
+			System.exit(1);
+		}
+		final File traceFile = new File(args[0]);
+		final int iterations = Integer.parseInt(args[1]);
+		boolean delays = false;
+		String certFile = null;
+		int certUsage = 0;
+		for (int i = 2; i < args.length; i++) {
+			if ("--delays".equals(args[i])) {
+				delays = true;
+			} else if ("--install".equals(args[i]) && i + 2 < args.length) {
+				certFile = args[++i];
+				certUsage = Integer.parseInt(args[++i]);
+			}
+		}
+		try {
+			final ArrayList<TraceRecord> records = TraceReader.read(traceFile);
+			long total = 0;
+			for (int i = 0; i < iterations; i++) {
+				final long start = System.nanoTime();
+				run(records, delays, certFile, certUsage);
+				final long elapsed = System.nanoTime() - start;
+				total += elapsed;
+				System.out.println("iteration " + i + ": " + elapsed / 1000 + " us");
+			}
+			System.out.println("average: " + total / Math.max(1, iterations) / 1000 + " us");
+		} catch (final IOException e) {
+			System.err.println("replay failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Run one session against the recorded conversation.
+	 * 
+	 * @param records the recorded frames
+	 * @param delays whether or not to play the recorded delays back
+	 * @param certFile the certificate to install, or null to only list the
+	 *            installed certificates
+	 * @param certUsage the usage bits for the certificate to install
+	 * @throws IOException if the session does not match the recording
+	 */
+	public static void run(final ArrayList<TraceRecord> records, final boolean delays, final String certFile,
+			final int certUsage) throws IOException {
+		final NokiCert nokicert = new NokiCert(new ReplayTransport(records, delays), false, null);
+		try {
+			nokicert.listCertificates();
+			if (certFile != null) {
+				nokicert.installCertificate(certFile, certUsage);
+			}
+		} finally {
+			Utils.closeSliently(nokicert);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.tuxed.gjokii.trace.TraceReader;
+import net.tuxed.gjokii.trace.TraceRecord;
+import net.tuxed.misc.Utils;
+
+/**
+ * Plays the phone side of a recorded conversation back.
+ * 
+ * The recording (see {@link net.tuxed.gjokii.trace.TraceRecorder}) is cut
+ * into exchanges: a sent frame followed by the frames received after it. A
+ * request is answered with the responses of the next recorded exchange with
+ * the same message type and payload, so the same conversation can be played
+ * back any number of times.
+ */
+public class ReplayTransport extends LoopbackTransport {
+
+	private final ArrayList<Exchange> exchanges = new ArrayList<Exchange>();
+	private final boolean playbackDelays;
+	private int cursor;
+
+	/**
+	 * Replay a trace file.
+	 * 
+	 * @param traceFile the trace file to replay
+	 * @param playbackDelays whether or not to wait the recorded time before
+	 *            every response frame
+	 * @throws IOException if the trace cannot be read
+	 */
+	public ReplayTransport(final File traceFile, final boolean playbackDelays) throws IOException {
+		this(TraceReader.read(traceFile), playbackDelays);
+	}
+
+	/**
+	 * Replay recorded frames.
+	 * 
+	 * @param records the recorded frames, oldest first
+	 * @param playbackDelays whether or not to wait the recorded time before
+	 *            every response frame
+	 */
+	public ReplayTransport(final List<TraceRecord> records, final boolean playbackDelays) {
+		this.playbackDelays = playbackDelays;
+		Exchange current = null;
+		long previous = 0;
+		for (final TraceRecord r : records) {
+			if (r.isSent()) {
+				current = new Exchange(r.getFrame());
+				exchanges.add(current);
+			} else if (current != null) {
+				current.responses.add(r.getFrame());
+				current.delays.add(r.getTime() - previous);
+			}
+			previous = r.getTime();
+		}
+	}
+
+	/**
+	 * Get the number of recorded request/response exchanges.
+	 * 
+	 * @return the number of exchanges
+	 */
+	public int getExchangeCount() {
+		return exchanges.size();
+	}
+
+	@Override
+	protected void onRequest(final byte[] frame) throws IOException {
+		final Exchange e = findExchange(frame);
+		if (e == null)
+			throw new IOException("no recorded response for type 0x" + Utils.byteToString(frame[3]) + ": "
+					+ Utils.byteArrayToString(frame));
+		final int size = e.responses.size();
+		for (int i = 0; i < size; i++) {
+			respond(e.responses.get(i), playbackDelays ? e.delays.get(i) : 0);
+		}
+	}
+
+	/**
+	 * Find the first exchange at or after the cursor (wrapping around) whose
+	 * request has the same message type and payload.
+	 */
+	private synchronized Exchange findExchange(final byte[] frame) {
+		final int size = exchanges.size();
+		for (int i = 0; i < size; i++) {
+			final int index = (cursor + i) % size;
+			final Exchange e = exchanges.get(index);
+			if (e.matches(frame)) {
+				cursor = (index + 1) % size;
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private static final class Exchange {
+		private final byte[] request;
+		private final ArrayList<byte[]> responses = new ArrayList<byte[]>();
+		private final ArrayList<Long> delays = new ArrayList<Long>();
+
+		private Exchange(final byte[] request) {
+			this.request = request;
+		}
+
+		/**
+		 * The header only differs in the message type, which sits at the
+		 * same offset in both frames, so comparing whole frames compares
+		 * type and payload.
+		 */
+		private boolean matches(final byte[] frame) {
+			return frame.length > 3 && frame[3] == request[3] && Arrays.equals(frame, request);
+		}
+	}
+}
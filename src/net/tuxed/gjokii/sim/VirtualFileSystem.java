@@ -0,0 +1,206 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * An in-memory file system as seen through the phone protocol. Paths are
+ * absolute and use "/" as separator, e.g.
+ * <code>/predefhiddenfolder/certificates/auth/ext_info.sys</code>.
+ */
+public class VirtualFileSystem {
+
+	/**
+	 * The certificate directory file (CDF) of the phone
+	 */
+	public static final String CERT_DIR_FILE_PATH = "/predefhiddenfolder/certificates/auth/ext_info.sys";
+
+	private final Entry root = new Entry("", true);
+
+	/**
+	 * Create an empty file system containing only the root directory.
+	 */
+	public VirtualFileSystem() {
+	}
+
+	/**
+	 * Delete a file or an empty directory.
+	 * 
+	 * @param path the entry to delete
+	 * @return true if the entry was deleted
+	 */
+	public synchronized boolean delete(final String path) {
+		final Entry parent = lookup(parentOf(path));
+		final Entry e = lookup(path);
+		if (parent == null || e == null || e == root) return false;
+		if (e.isDirectory() && !e.children.isEmpty()) return false;
+		parent.children.remove(e.getName());
+		return true;
+	}
+
+	/**
+	 * Get the contents of a file.
+	 * 
+	 * @param path the file
+	 * @return a copy of the contents, or null if there is no such file
+	 */
+	public synchronized byte[] getFile(final String path) {
+		final Entry e = lookup(path);
+		return e == null || e.isDirectory() ? null : e.data.clone();
+	}
+
+	/**
+	 * List the entries in a directory, sorted by name.
+	 * 
+	 * @param path the directory
+	 * @return the entries, or null if there is no such directory
+	 */
+	public synchronized List<Entry> list(final String path) {
+		final Entry e = lookup(path);
+		if (e == null || !e.isDirectory()) return null;
+		return Collections.unmodifiableList(new ArrayList<Entry>(e.children.values()));
+	}
+
+	/**
+	 * Find the entry at a path.
+	 * 
+	 * @param path the path, a trailing "/" is ignored
+	 * @return the entry, or null if it does not exist
+	 */
+	public synchronized Entry lookup(final String path) {
+		Entry e = root;
+		for (final String name : split(path)) {
+			if (!e.isDirectory()) return null;
+			e = e.children.get(name);
+			if (e == null) return null;
+		}
+		return e;
+	}
+
+	/**
+	 * Create a directory and all its missing parents.
+	 * 
+	 * @param path the directory to create
+	 * @return the directory
+	 * @throws IllegalArgumentException if a file is in the way
+	 */
+	public synchronized Entry mkdirs(final String path) {
+		Entry e = root;
+		for (final String name : split(path)) {
+			Entry child = e.children.get(name);
+			if (child == null) {
+				child = new Entry(name, true);
+				e.children.put(name, child);
+			} else if (!child.isDirectory()) throw new IllegalArgumentException(path + " is not a directory");
+			e = child;
+		}
+		return e;
+	}
+
+	/**
+	 * Create or replace a file, creating its parent directories when needed.
+	 * 
+	 * @param path the file
+	 * @param data the new contents
+	 * @throws IllegalArgumentException if a directory is in the way
+	 */
+	public synchronized void putFile(final String path, final byte[] data) {
+		final Entry parent = mkdirs(parentOf(path));
+		final String name = nameOf(path);
+		if (name.length() == 0) throw new IllegalArgumentException("no file name in " + path);
+		Entry e = parent.children.get(name);
+		if (e == null) {
+			e = new Entry(name, false);
+			parent.children.put(name, e);
+		} else if (e.isDirectory()) throw new IllegalArgumentException(path + " is a directory");
+		e.data = data.clone();
+		e.modified = System.currentTimeMillis();
+	}
+
+	/**
+	 * Create the file system of a phone without any user installed
+	 * certificates: the certificate directory with an empty CDF.
+	 * 
+	 * @return the file system
+	 */
+	public static VirtualFileSystem createDefault() {
+		final VirtualFileSystem fs = new VirtualFileSystem();
+		fs.putFile(CERT_DIR_FILE_PATH, new byte[0]);
+		return fs;
+	}
+
+	private static String nameOf(final String path) {
+		final String[] names = split(path);
+		return names.length == 0 ? "" : names[names.length - 1];
+	}
+
+	private static String parentOf(final String path) {
+		final String[] names = split(path);
+		final StringBuilder sb = new StringBuilder("/");
+		for (int i = 0; i < names.length - 1; i++) {
+			sb.append(names[i]).append('/');
+		}
+		return sb.toString();
+	}
+
+	private static String[] split(final String path) {
+		final ArrayList<String> names = new ArrayList<String>();
+		for (final String name : path.split("/")) {
+			if (name.length() > 0) {
+				names.add(name);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * A file or directory.
+	 */
+	public static final class Entry {
+		private final String name;
+		private final boolean directory;
+		private final TreeMap<String, Entry> children;
+		private byte[] data = new byte[0];
+		private long modified = System.currentTimeMillis();
+
+		private Entry(final String name, final boolean directory) {
+			this.name = name;
+			this.directory = directory;
+			children = directory ? new TreeMap<String, Entry>() : null;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getSize() {
+			return directory ? 0 : data.length;
+		}
+
+		public boolean isDirectory() {
+			return directory;
+		}
+	}
+}
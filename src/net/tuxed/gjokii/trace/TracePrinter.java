@@ -0,0 +1,74 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import net.tuxed.misc.Hex;
+import net.tuxed.misc.Utils;
+
+/**
+ * Offline pretty printer for trace files written by {@link TraceRecorder}.
+ * 
+ * Usage: <code>java net.tuxed.gjokii.trace.TracePrinter gjokii.trace</code>
+ */
+public class TracePrinter {
+
+	private TracePrinter() {
+	}
+
+	public static void main(final String[] args) {
+		if (args.length != 1) {
+			System.err.println("usage: TracePrinter <trace file>");
+			System.exit(1);
+		}
+		try {
+			print(TraceReader.read(new File(args[0])), System.out);
+		} catch (final IOException e) {
+			System.err.println("unable to read trace: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Print trace records in a human readable form.
+	 * 
+	 * @param records the records to print
+	 * @param out the stream to print to
+	 */
+	public static void print(final List<TraceRecord> records, final PrintStream out) {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		long previous = -1;
+		for (final TraceRecord r : records) {
+			final long delta = previous < 0 ? 0 : r.getTime() - previous;
+			previous = r.getTime();
+			out.println("#" + r.getSequence() + " " + format.format(new Date(r.getTime())) + " (+" + delta + " ms) "
+					+ (r.isSent() ? "SENT" : "RECEIVED") + " type 0x" + Utils.byteToString(r.getMessageType())
+					+ ", " + r.getFrame().length + " bytes");
+			try {
+				Hex.dump(r.getFrame(), 0, r.getFrame().length, out);
+			} catch (final IOException e) {
+				/* PrintStream does not throw */
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import net.tuxed.misc.Utils;
+
+/**
+ * Reads the frames back from a trace file written by {@link TraceRecorder},
+ * oldest first.
+ */
+public class TraceReader {
+
+	private TraceReader() {
+	}
+
+	/**
+	 * Read all records from a trace file.
+	 * 
+	 * @param traceFile the trace file
+	 * @return the records, oldest first
+	 * @throws IOException if the file cannot be read or is not a trace file
+	 */
+	public static ArrayList<TraceRecord> read(final File traceFile) throws IOException {
+		final FileInputStream fis = new FileInputStream(traceFile);
+		try {
+			final FileChannel channel = fis.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(TraceRecorder.HEADER_SIZE);
+			readFully(channel, header);
+			if (header.getInt(0) != TraceRecorder.MAGIC) throw new IOException("not a trace file");
+			if (header.getInt(4) != TraceRecorder.VERSION)
+				throw new IOException("unsupported trace version " + header.getInt(4));
+			final int capacity = header.getInt(8);
+			int position = header.getInt(12);
+			final int count = header.getInt(20);
+			final ByteBuffer data = ByteBuffer.allocate(capacity);
+			readFully(channel, data);
+
+			final ArrayList<TraceRecord> records = new ArrayList<TraceRecord>(count);
+			for (int i = 0; i < count; i++) {
+				if (position + 4 > capacity || data.getInt(position) == TraceRecorder.WRAP_MARKER) {
+					position = 0;
+				}
+				final int recordLength = data.getInt(position);
+				if (recordLength < TraceRecorder.RECORD_HEADER_SIZE || position + recordLength > capacity)
+					throw new IOException("corrupt record at offset " + position);
+				final byte[] frame = new byte[recordLength - TraceRecorder.RECORD_HEADER_SIZE];
+				data.position(position + TraceRecorder.RECORD_HEADER_SIZE);
+				data.get(frame);
+				records.add(new TraceRecord(data.getLong(position + 4), data.getInt(position + 12), data
+						.get(position + 16), data.get(position + 17), frame));
+				position += recordLength;
+			}
+			return records;
+		} finally {
+			Utils.closeSliently(fis);
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) throw new IOException("unexpected end of trace file");
+		}
+	}
+}
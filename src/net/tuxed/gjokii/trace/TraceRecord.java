@@ -0,0 +1,76 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.trace;
+
+/**
+ * A single frame read back from a trace file.
+ */
+public final class TraceRecord {
+	private final long time;
+	private final int sequence;
+	private final byte direction;
+	private final byte messageType;
+	private final byte[] frame;
+
+	TraceRecord(final long time, final int sequence, final byte direction, final byte messageType, final byte[] frame) {
+		this.time = time;
+		this.sequence = sequence;
+		this.direction = direction;
+		this.messageType = messageType;
+		this.frame = frame;
+	}
+
+	/**
+	 * Get the direction of the frame.
+	 * 
+	 * @return {@link TraceRecorder#DIRECTION_SENT} or
+	 *         {@link TraceRecorder#DIRECTION_RECEIVED}
+	 */
+	public byte getDirection() {
+		return direction;
+	}
+
+	/**
+	 * Get the raw frame, including its header.
+	 * 
+	 * @return the frame
+	 */
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	public byte getMessageType() {
+		return messageType;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Get the time the frame was recorded.
+	 * 
+	 * @return milliseconds since January 1st 1970
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public boolean isSent() {
+		return direction == TraceRecorder.DIRECTION_SENT;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.gjokii.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the raw frames exchanged with the phone into a memory mapped ring
+ * file.
+ * 
+ * Recording a frame only copies its bytes into the mapped region, there is no
+ * formatting and no system call on the I/O thread. The pages are written back
+ * to disk by a background thread. When the ring is full the oldest frames are
+ * overwritten. Use {@link TracePrinter} to turn the file into something human
+ * readable.
+ * 
+ * The file starts with a header:
+ * 
+ * <pre>
+ * magic [4] version [4] capacity [4] head [4] tail [4] count [4] sequence [4] dropped [4]
+ * </pre>
+ * 
+ * followed by <code>capacity</code> bytes of records:
+ * 
+ * <pre>
+ * length [4] time [8] sequence [4] direction [1] type [1] (frame [length - 18])
+ * </pre>
+ * 
+ * A record length of -1 marks the end of the used space before the ring wraps.
+ */
+public class TraceRecorder implements Closeable {
+
+	public static final byte DIRECTION_SENT = 0;
+	public static final byte DIRECTION_RECEIVED = 1;
+
+	/**
+	 * The default size of the ring, enough for a few complete certificate
+	 * installations
+	 */
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+	static final int MAGIC = 0x474a5452; /* "GJTR" */
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_HEADER_SIZE = 18;
+	static final int WRAP_MARKER = -1;
+
+	/**
+	 * The interval in milliseconds at which the mapped pages are forced to disk
+	 */
+	private static final int FLUSH_INTERVAL = 1000;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final Thread flusher;
+
+	private int head, tail, count, sequence, dropped;
+	private volatile boolean dirty, closed;
+
+	/**
+	 * Open a trace file with the default capacity.
+	 * 
+	 * @param traceFile the ring file, created if it does not exist
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public TraceRecorder(final File traceFile) throws IOException {
+		this(traceFile, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Open a trace file. An existing trace with the same capacity is
+	 * continued, anything else is overwritten.
+	 * 
+	 * @param traceFile the ring file, created if it does not exist
+	 * @param capacity the number of bytes available for records
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public TraceRecorder(final File traceFile, final int capacity) throws IOException {
+		if (capacity < RECORD_HEADER_SIZE) throw new IllegalArgumentException("capacity too small");
+		this.capacity = capacity;
+		file = new RandomAccessFile(traceFile, "rw");
+		try {
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+		} catch (final IOException e) {
+			file.close();
+			throw e;
+		}
+		if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == capacity) {
+			head = buffer.getInt(12);
+			tail = buffer.getInt(16);
+			count = buffer.getInt(20);
+			sequence = buffer.getInt(24);
+			dropped = buffer.getInt(28);
+		} else {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, capacity);
+			writeHeader();
+		}
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(FLUSH_INTERVAL);
+					} catch (final InterruptedException e) {
+						return;
+					}
+					flush();
+				}
+			}
+		}, "TraceRecorder-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stop recording and write all recorded frames to disk.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+		flusher.interrupt();
+		buffer.force();
+		file.close();
+	}
+
+	/**
+	 * Force the recorded frames to disk now instead of waiting for the
+	 * background flush.
+	 */
+	public void flush() {
+		if (!dirty || closed) return;
+		dirty = false;
+		buffer.force();
+	}
+
+	/**
+	 * Get the number of frames that were not recorded because they were
+	 * larger than the ring.
+	 * 
+	 * @return the number of dropped frames
+	 */
+	public synchronized int getDroppedFrames() {
+		return dropped;
+	}
+
+	/**
+	 * Record a frame.
+	 * 
+	 * @param direction {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}
+	 * @param frame the array containing the frame, including its header
+	 * @param offset the offset of the frame in the array
+	 * @param length the length of the frame
+	 */
+	public synchronized void record(final byte direction, final byte[] frame, final int offset, final int length) {
+		if (closed) return;
+		final int recordLength = RECORD_HEADER_SIZE + length;
+		if (recordLength > capacity) {
+			dropped++;
+			buffer.putInt(28, dropped);
+			return;
+		}
+		if (tail + recordLength > capacity) {
+			/* the record does not fit before the end, wrap around */
+			while (count > 0 && head >= tail) {
+				evictHead();
+			}
+			if (tail + 4 <= capacity) {
+				buffer.putInt(HEADER_SIZE + tail, WRAP_MARKER);
+			}
+			tail = 0;
+		}
+		while (count > 0 && head >= tail && head < tail + recordLength) {
+			evictHead();
+		}
+		if (count == 0) {
+			head = tail;
+		}
+		final int position = HEADER_SIZE + tail;
+		buffer.putInt(position, recordLength);
+		buffer.putLong(position + 4, System.currentTimeMillis());
+		buffer.putInt(position + 12, sequence++);
+		buffer.put(position + 16, direction);
+		buffer.put(position + 17, length > 3 ? frame[offset + 3] : 0);
+		buffer.position(position + RECORD_HEADER_SIZE);
+		buffer.put(frame, offset, length);
+		tail += recordLength;
+		count++;
+		writeHeader();
+		dirty = true;
+	}
+
+	/**
+	 * Record a complete frame.
+	 * 
+	 * @param direction {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}
+	 * @param frame the frame, including its header
+	 */
+	public void record(final byte direction, final byte[] frame) {
+		record(direction, frame, 0, frame.length);
+	}
+
+	/**
+	 * Drop the oldest record to make room at the tail.
+	 */
+	private void evictHead() {
+		head += buffer.getInt(HEADER_SIZE + head);
+		count--;
+		if (count > 0 && (head + 4 > capacity || buffer.getInt(HEADER_SIZE + head) == WRAP_MARKER)) {
+			head = 0;
+		}
+	}
+
+	private void writeHeader() {
+		buffer.putInt(12, head);
+		buffer.putInt(16, tail);
+		buffer.putInt(20, count);
+		buffer.putInt(24, sequence);
+		buffer.putInt(28, dropped);
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+/**
+ * A small pool of byte arrays that are borrowed and given back, so code
+ * sending and receiving data over and over does not leave a new array behind
+ * for every message.
+ * 
+ * Arrays come in power of two sizes from 64 bytes up to 64 KiB and are at
+ * least as large as asked for, so the length of the data in a borrowed array
+ * has to be tracked separately. Larger arrays are allocated every time and
+ * not kept. Only a few arrays of every size are kept; arrays given back when
+ * that many are idle are left to the garbage collector.
+ * 
+ * The pool is safe to use from several threads.
+ */
+public final class BufferPool {
+
+	/**
+	 * The default number of idle arrays kept of every size
+	 */
+	public static final int DEFAULT_MAX_IDLE = 4;
+
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+
+	private final byte[][][] idle;
+	private final int[] idleCount;
+	private int allocationCount;
+	private int reuseCount;
+
+	public BufferPool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * @param maxIdle the number of idle arrays kept of every size
+	 */
+	public BufferPool(final int maxIdle) {
+		if (maxIdle < 0) throw new IllegalArgumentException("maxIdle must not be negative");
+		idle = new byte[MAX_SHIFT - MIN_SHIFT + 1][maxIdle][];
+		idleCount = new int[idle.length];
+	}
+
+	/**
+	 * Borrow an array.
+	 * 
+	 * @param minSize the number of bytes needed
+	 * @return an array of at least minSize bytes, with undefined contents
+	 */
+	public synchronized byte[] acquire(final int minSize) {
+		final int sizeClass = sizeClass(minSize);
+		if (sizeClass < 0) {
+			allocationCount++;
+			return new byte[minSize];
+		}
+		if (idleCount[sizeClass] > 0) {
+			reuseCount++;
+			final byte[] buffer = idle[sizeClass][--idleCount[sizeClass]];
+			idle[sizeClass][idleCount[sizeClass]] = null;
+			return buffer;
+		}
+		allocationCount++;
+		return new byte[1 << sizeClass + MIN_SHIFT];
+	}
+
+	/**
+	 * Get the number of arrays allocated because none was idle.
+	 * 
+	 * @return the number of allocations
+	 */
+	public synchronized int getAllocationCount() {
+		return allocationCount;
+	}
+
+	/**
+	 * Get the number of times an idle array was handed out again.
+	 * 
+	 * @return the number of reuses
+	 */
+	public synchronized int getReuseCount() {
+		return reuseCount;
+	}
+
+	/**
+	 * Give back an array borrowed with {@link #acquire(int)}. It must not be
+	 * used anymore afterwards.
+	 * 
+	 * @param buffer the array, null is ignored
+	 */
+	public synchronized void release(final byte[] buffer) {
+		if (buffer == null) return;
+		final int sizeClass = sizeClass(buffer.length);
+		/* arrays not of a pooled size did not come from the pool */
+		if (sizeClass < 0 || buffer.length != 1 << sizeClass + MIN_SHIFT) return;
+		if (idleCount[sizeClass] == idle[sizeClass].length) return;
+		idle[sizeClass][idleCount[sizeClass]++] = buffer;
+	}
+
+	/**
+	 * Get the index of the smallest size holding a number of bytes.
+	 * 
+	 * @return the index, or -1 if the size is too large to be pooled
+	 */
+	private static int sizeClass(final int size) {
+		if (size > 1 << MAX_SHIFT) return -1;
+		int shift = MIN_SHIFT;
+		while (1 << shift < size) {
+			shift++;
+		}
+		return shift - MIN_SHIFT;
+	}
+}
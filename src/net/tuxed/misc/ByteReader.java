@@ -0,0 +1,259 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Reads integers and byte arrays from a window of a byte array through a
+ * {@link ByteBuffer}, with an explicit byte order. Reads are either relative
+ * to a cursor or at an index from the start of the window.
+ * 
+ * The window can be moved to another array or offset with
+ * {@link #reset(byte[], int, int)}; the buffer is only wrapped again when the
+ * array changes, so one reader can decode many frames without allocating.
+ * 
+ * Reading outside the window throws an {@link IndexOutOfBoundsException}.
+ * For data received from the phone, {@link #require(int)} and
+ * {@link #require(int, int)} check the bounds first and throw a checked
+ * {@link EOFException} instead.
+ */
+public final class ByteReader {
+	private ByteOrder order;
+	private byte[] array;
+	private ByteBuffer buffer;
+	private int base;
+	private int length;
+	private int position;
+
+	/**
+	 * Read a whole array.
+	 * 
+	 * @param data the array
+	 * @param order the byte order of the integers
+	 */
+	public ByteReader(final byte[] data, final ByteOrder order) {
+		this(data, 0, data.length, order);
+	}
+
+	/**
+	 * Read a window of an array.
+	 * 
+	 * @param data the array
+	 * @param offset the start of the window
+	 * @param length the length of the window
+	 * @param order the byte order of the integers
+	 */
+	public ByteReader(final byte[] data, final int offset, final int length, final ByteOrder order) {
+		this.order = order;
+		reset(data, offset, length);
+	}
+
+	public byte getByte(final int index) {
+		check(index, 1);
+		return array[base + index];
+	}
+
+	public int getInt(final int index) {
+		check(index, 4);
+		return buffer.getInt(base + index);
+	}
+
+	/**
+	 * Get the length of the window.
+	 * 
+	 * @return the number of bytes that can be read
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public ByteOrder getOrder() {
+		return order;
+	}
+
+	/**
+	 * Get the cursor, relative to the start of the window.
+	 * 
+	 * @return the index of the next byte to read
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	public short getShort(final int index) {
+		check(index, 2);
+		return buffer.getShort(base + index);
+	}
+
+	/**
+	 * Decode bytes as text.
+	 * 
+	 * @param index the index of the first byte
+	 * @param count the number of bytes
+	 * @param charset the encoding of the text
+	 * @return the text
+	 */
+	public String getString(final int index, final int count, final Charset charset) {
+		check(index, count);
+		return new String(array, base + index, count, charset);
+	}
+
+	public int getUnsignedByte(final int index) {
+		return getByte(index) & 0xff;
+	}
+
+	public int getUnsignedShort(final int index) {
+		return getShort(index) & 0xffff;
+	}
+
+	public byte readByte() {
+		final byte b = getByte(position);
+		position++;
+		return b;
+	}
+
+	/**
+	 * Read bytes into an array.
+	 * 
+	 * @param dst the array to fill completely
+	 */
+	public void readBytes(final byte[] dst) {
+		readBytes(dst, 0, dst.length);
+	}
+
+	/**
+	 * Read bytes into part of an array.
+	 * 
+	 * @param dst the array
+	 * @param offset where to start writing in dst
+	 * @param count the number of bytes to read
+	 */
+	public void readBytes(final byte[] dst, final int offset, final int count) {
+		check(position, count);
+		System.arraycopy(array, base + position, dst, offset, count);
+		position += count;
+	}
+
+	public int readInt() {
+		final int i = getInt(position);
+		position += 4;
+		return i;
+	}
+
+	public short readShort() {
+		final short s = getShort(position);
+		position += 2;
+		return s;
+	}
+
+	public int readUnsignedByte() {
+		return readByte() & 0xff;
+	}
+
+	public int readUnsignedShort() {
+		return readShort() & 0xffff;
+	}
+
+	/**
+	 * Get the number of bytes after the cursor.
+	 * 
+	 * @return the number of bytes left to read
+	 */
+	public int remaining() {
+		return length - position;
+	}
+
+	/**
+	 * Check that bytes can be read at the cursor.
+	 * 
+	 * @param count the number of bytes that will be read
+	 * @throws EOFException if fewer bytes are left
+	 */
+	public void require(final int count) throws EOFException {
+		require(position, count);
+	}
+
+	/**
+	 * Check that bytes can be read at an index.
+	 * 
+	 * @param index the index relative to the start of the window
+	 * @param count the number of bytes that will be read
+	 * @throws EOFException if the bytes are not all inside the window
+	 */
+	public void require(final int index, final int count) throws EOFException {
+		if (index < 0 || count < 0 || count > length - index)
+			throw new EOFException("need " + count + " bytes at " + index + ", only " + Math.max(0, length - index)
+					+ " left");
+	}
+
+	/**
+	 * Move the window, and put the cursor at its start.
+	 * 
+	 * @param data the array
+	 * @param offset the start of the window
+	 * @param length the length of the window
+	 * @return this reader
+	 */
+	public ByteReader reset(final byte[] data, final int offset, final int length) {
+		if (offset < 0 || length < 0 || length > data.length - offset) throw new IndexOutOfBoundsException();
+		if (data != array) {
+			array = data;
+			buffer = ByteBuffer.wrap(data).order(order);
+		}
+		base = offset;
+		this.length = length;
+		position = 0;
+		return this;
+	}
+
+	/**
+	 * Change the byte order of the integers read from now on.
+	 * 
+	 * @param order the byte order
+	 */
+	public void setOrder(final ByteOrder order) {
+		this.order = order;
+		buffer.order(order);
+	}
+
+	/**
+	 * Move the cursor.
+	 * 
+	 * @param position the index relative to the start of the window
+	 */
+	public void setPosition(final int position) {
+		if (position < 0 || position > length) throw new IndexOutOfBoundsException();
+		this.position = position;
+	}
+
+	/**
+	 * Move the cursor forward.
+	 * 
+	 * @param count the number of bytes to skip
+	 */
+	public void skip(final int count) {
+		setPosition(position + count);
+	}
+
+	private void check(final int index, final int count) {
+		if (index < 0 || count < 0 || count > length - index) throw new IndexOutOfBoundsException();
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes integers and byte arrays into a window of a byte array through a
+ * {@link ByteBuffer}, with an explicit byte order. Writes are either relative
+ * to a cursor or at an index from the start of the window. Writing outside
+ * the window throws an {@link IndexOutOfBoundsException}.
+ * 
+ * Like {@link ByteReader}, the window can be moved with
+ * {@link #reset(byte[], int, int)} without allocating as long as the array
+ * stays the same.
+ */
+public final class ByteWriter {
+	private ByteOrder order;
+	private byte[] array;
+	private ByteBuffer buffer;
+	private int base;
+	private int length;
+	private int position;
+
+	/**
+	 * Write into a new array.
+	 * 
+	 * @param capacity the size of the array
+	 * @param order the byte order of the integers
+	 */
+	public ByteWriter(final int capacity, final ByteOrder order) {
+		this(new byte[capacity], order);
+	}
+
+	/**
+	 * Write into a whole array.
+	 * 
+	 * @param data the array
+	 * @param order the byte order of the integers
+	 */
+	public ByteWriter(final byte[] data, final ByteOrder order) {
+		this(data, 0, data.length, order);
+	}
+
+	/**
+	 * Write into a window of an array.
+	 * 
+	 * @param data the array
+	 * @param offset the start of the window
+	 * @param length the length of the window
+	 * @param order the byte order of the integers
+	 */
+	public ByteWriter(final byte[] data, final int offset, final int length, final ByteOrder order) {
+		this.order = order;
+		reset(data, offset, length);
+	}
+
+	/**
+	 * Get the array written to.
+	 * 
+	 * @return the array
+	 */
+	public byte[] getArray() {
+		return array;
+	}
+
+	/**
+	 * Get the cursor, relative to the start of the window.
+	 * 
+	 * @return the index of the next byte to write
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	public ByteWriter putByte(final int b) {
+		putByte(position, b);
+		position++;
+		return this;
+	}
+
+	public ByteWriter putByte(final int index, final int b) {
+		check(index, 1);
+		array[base + index] = (byte) b;
+		return this;
+	}
+
+	public ByteWriter putBytes(final byte[] src) {
+		return putBytes(src, 0, src.length);
+	}
+
+	public ByteWriter putBytes(final byte[] src, final int offset, final int count) {
+		check(position, count);
+		System.arraycopy(src, offset, array, base + position, count);
+		position += count;
+		return this;
+	}
+
+	/**
+	 * Write text as UTF-16 code units, in the byte order of the writer,
+	 * without a terminator.
+	 * 
+	 * @param s the text
+	 * @return this writer
+	 */
+	public ByteWriter putChars(final CharSequence s) {
+		final int count = s.length();
+		check(position, count * 2);
+		int index = base + position;
+		for (int i = 0; i < count; i++) {
+			buffer.putChar(index, s.charAt(i));
+			index += 2;
+		}
+		position += count * 2;
+		return this;
+	}
+
+	public ByteWriter putInt(final int i) {
+		putInt(position, i);
+		position += 4;
+		return this;
+	}
+
+	public ByteWriter putInt(final int index, final int i) {
+		check(index, 4);
+		buffer.putInt(base + index, i);
+		return this;
+	}
+
+	public ByteWriter putShort(final int s) {
+		putShort(position, s);
+		position += 2;
+		return this;
+	}
+
+	public ByteWriter putShort(final int index, final int s) {
+		check(index, 2);
+		buffer.putShort(base + index, (short) s);
+		return this;
+	}
+
+	/**
+	 * Write zero bytes.
+	 * 
+	 * @param count the number of zero bytes
+	 * @return this writer
+	 */
+	public ByteWriter putZeros(final int count) {
+		check(position, count);
+		for (int i = base + position; i < base + position + count; i++) {
+			array[i] = 0;
+		}
+		position += count;
+		return this;
+	}
+
+	/**
+	 * Get the number of bytes that can still be written at the cursor.
+	 * 
+	 * @return the room left
+	 */
+	public int remaining() {
+		return length - position;
+	}
+
+	/**
+	 * Move the window, and put the cursor at its start.
+	 * 
+	 * @param data the array
+	 * @param offset the start of the window
+	 * @param length the length of the window
+	 * @return this writer
+	 */
+	public ByteWriter reset(final byte[] data, final int offset, final int length) {
+		if (offset < 0 || length < 0 || length > data.length - offset) throw new IndexOutOfBoundsException();
+		if (data != array) {
+			array = data;
+			buffer = ByteBuffer.wrap(data).order(order);
+		}
+		base = offset;
+		this.length = length;
+		position = 0;
+		return this;
+	}
+
+	/**
+	 * Change the byte order of the integers written from now on.
+	 * 
+	 * @param order the byte order
+	 */
+	public void setOrder(final ByteOrder order) {
+		this.order = order;
+		buffer.order(order);
+	}
+
+	/**
+	 * Move the cursor.
+	 * 
+	 * @param position the index relative to the start of the window
+	 */
+	public void setPosition(final int position) {
+		if (position < 0 || position > length) throw new IndexOutOfBoundsException();
+		this.position = position;
+	}
+
+	private void check(final int index, final int count) {
+		if (index < 0 || count < 0 || count > length - index) throw new IndexOutOfBoundsException();
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Look through data (hay stack) for the continuous sub arrays that hash to
+ * one of a set of known values (needles), for example to find out what a hash
+ * field in a file is calculated over.
+ * 
+ * Every offset is searched by one thread of a pool. The digest state of the
+ * bytes seen so far is cloned for every length, so each longer sub array
+ * costs hashing one more byte instead of the whole sub array again. All
+ * needles and algorithms are checked in the same pass.
+ */
+public final class HashSearch {
+	/**
+	 * How often, in milliseconds, progress is reported.
+	 */
+	private static final long PROGRESS_INTERVAL = 250;
+
+	private final byte[] hayStack;
+	private final LinkedHashMap<String, ArrayList<byte[]>> needles = new LinkedHashMap<String, ArrayList<byte[]>>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private ProgressListener progressListener;
+
+	/**
+	 * Construct the search.
+	 * 
+	 * @param hayStack the data to analyze
+	 */
+	public HashSearch(final byte[] hayStack) {
+		this.hayStack = hayStack;
+	}
+
+	/**
+	 * Add a hash to look for.
+	 * 
+	 * @param algorithm the digest algorithm the hash was made with, for
+	 *            example "SHA-1", "SHA-256" or "MD5"
+	 * @param needle the hash being looked for
+	 * @throws NoSuchAlgorithmException if the algorithm is not available
+	 */
+	public void addNeedle(final String algorithm, final byte[] needle) throws NoSuchAlgorithmException {
+		final MessageDigest digest = MessageDigest.getInstance(algorithm);
+		if (digest.getDigestLength() != needle.length)
+			throw new IllegalArgumentException("needle is not a " + algorithm + " hash");
+		try {
+			digest.clone();
+		} catch (final CloneNotSupportedException e) {
+			throw new NoSuchAlgorithmException(algorithm + " digest cannot be cloned");
+		}
+		ArrayList<byte[]> list = needles.get(algorithm);
+		if (list == null) {
+			list = new ArrayList<byte[]>();
+			needles.put(algorithm, list);
+		}
+		list.add(needle.clone());
+	}
+
+	/**
+	 * Run the search. Progress is reported on the calling thread.
+	 * 
+	 * @return all matches, shortest sub array first and then by offset
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public List<Match> search() throws InterruptedException {
+		final List<Match> matches = Collections.synchronizedList(new ArrayList<Match>());
+		final int offsets = hayStack.length + 1;
+		final AtomicInteger nextOffset = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < threads; i++) {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						final MessageDigest[] digests = newDigests();
+						/*
+						 * offsets are handed out in ascending order, so the
+						 * longest runs are started first and the threads end
+						 * at about the same time
+						 */
+						for (int offset = nextOffset.getAndIncrement(); offset < offsets
+								&& !Thread.currentThread().isInterrupted(); offset = nextOffset.getAndIncrement()) {
+							searchOffset(offset, digests, matches);
+							done.incrementAndGet();
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			while (!pool.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+				reportProgress(done.get(), offsets);
+			}
+			reportProgress(done.get(), offsets);
+		} finally {
+			pool.shutdownNow();
+		}
+		Collections.sort(matches, new Comparator<Match>() {
+			@Override
+			public int compare(final Match lhs, final Match rhs) {
+				if (lhs.length != rhs.length) return lhs.length < rhs.length ? -1 : 1;
+				return lhs.offset < rhs.offset ? -1 : lhs.offset > rhs.offset ? 1 : 0;
+			}
+		});
+		return matches;
+	}
+
+	/**
+	 * Set the listener to report progress to.
+	 * 
+	 * @param progressListener the listener, or null
+	 */
+	public void setProgressListener(final ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Set the number of threads to search with, the number of processors by
+	 * default.
+	 * 
+	 * @param threads the number of threads
+	 */
+	public void setThreads(final int threads) {
+		if (threads < 1) throw new IllegalArgumentException("need at least one thread");
+		this.threads = threads;
+	}
+
+	private MessageDigest[] newDigests() {
+		final MessageDigest[] digests = new MessageDigest[needles.size()];
+		int i = 0;
+		for (final String algorithm : needles.keySet()) {
+			try {
+				digests[i++] = MessageDigest.getInstance(algorithm);
+			} catch (final NoSuchAlgorithmException e) {
+				/* checked when the needle was added */
+				throw new IllegalStateException(e);
+			}
+		}
+		return digests;
+	}
+
+	private void reportProgress(final int done, final int total) {
+		if (progressListener != null) {
+			progressListener.onProgress(done, total);
+		}
+	}
+
+	/**
+	 * Check all sub arrays starting at an offset.
+	 * 
+	 * @param offset the offset in the hay stack
+	 * @param digests one digest for every algorithm, in the order of
+	 *            <code>needles</code>
+	 * @param matches the list to add matches to
+	 */
+	private void searchOffset(final int offset, final MessageDigest[] digests, final List<Match> matches) {
+		for (final MessageDigest d : digests) {
+			d.reset();
+		}
+		for (int length = 0; offset + length <= hayStack.length; length++) {
+			if (length > 0) {
+				for (final MessageDigest d : digests) {
+					d.update(hayStack[offset + length - 1]);
+				}
+			}
+			int i = 0;
+			for (final Map.Entry<String, ArrayList<byte[]>> e : needles.entrySet()) {
+				final byte[] hash;
+				try {
+					hash = ((MessageDigest) digests[i++].clone()).digest();
+				} catch (final CloneNotSupportedException ex) {
+					/* checked when the needle was added */
+					throw new IllegalStateException(ex);
+				}
+				for (final byte[] needle : e.getValue()) {
+					if (Arrays.equals(hash, needle)) {
+						matches.add(new Match(e.getKey(), needle, offset, length));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A sub array of the hay stack hashing to one of the needles.
+	 */
+	public static final class Match {
+		private final String algorithm;
+		private final byte[] needle;
+		private final int offset;
+		private final int length;
+
+		private Match(final String algorithm, final byte[] needle, final int offset, final int length) {
+			this.algorithm = algorithm;
+			this.needle = needle;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getAlgorithm() {
+			return algorithm;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getNeedle() {
+			return needle;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		@Override
+		public String toString() {
+			return "Match [algorithm=" + algorithm + ", offset=" + offset + ", length=" + length + ", needle="
+					+ Utils.byteArrayToString(needle) + "]";
+		}
+	}
+
+	/**
+	 * Receives the progress of a search.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called regularly while searching.
+		 * 
+		 * @param done the number of offsets searched
+		 * @param total the number of offsets to search
+		 */
+		void onProgress(int done, int total);
+	}
+}
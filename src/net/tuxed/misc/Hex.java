@@ -0,0 +1,381 @@
+/*
+ *  This file is part of Gjokii.
+ *
+ *  Gjokii is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Gjokii is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Gjokii.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.misc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Table driven hexadecimal encoding and decoding. Output is written straight
+ * into a <code>char[]</code>, an {@link Appendable} or a {@link ByteBuffer}
+ * (as ASCII) without building intermediate strings.
+ * 
+ * Bytes are encoded as plain ("0a1b"), separated ("0A:1B") or as a hex dump
+ * with an ASCII column, 16 bytes per line.
+ */
+public final class Hex {
+	/**
+	 * Use as separator for plain output, without anything between the bytes.
+	 */
+	public static final char NO_SEPARATOR = 0;
+
+	private static final int DUMP_WIDTH = 16;
+
+	/**
+	 * Size of the chunks used when writing to an {@link Appendable}.
+	 */
+	private static final int CHUNK = 256;
+
+	/**
+	 * The two digits of every byte value, lower and upper case.
+	 */
+	private static final char[] LOWER = pairs("0123456789abcdef");
+	private static final char[] UPPER = pairs("0123456789ABCDEF");
+
+	/**
+	 * The value of every hexadecimal digit, -1 for other characters.
+	 */
+	private static final byte[] VALUES = new byte[128];
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = (byte) Character.digit(i, 16);
+		}
+	}
+
+	private Hex() {
+	}
+
+	/**
+	 * Decode hexadecimal digits, skipping separators (':', '-' and white
+	 * space) between the bytes.
+	 * 
+	 * @param s the digits
+	 * @return the decoded bytes
+	 * @throws IllegalArgumentException if s contains other characters or an
+	 *             odd number of digits
+	 */
+	public static byte[] decode(final CharSequence s) {
+		final byte[] tmp = new byte[s.length() / 2];
+		final int n = decode(s, tmp, 0);
+		if (n == tmp.length) return tmp;
+		final byte[] result = new byte[n];
+		System.arraycopy(tmp, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Decode hexadecimal digits into a buffer, skipping separators.
+	 * 
+	 * @param s the digits
+	 * @param dst the buffer to write the bytes to
+	 * @throws IllegalArgumentException if s contains other characters or an
+	 *             odd number of digits
+	 * @throws java.nio.BufferOverflowException if dst is too small
+	 */
+	public static void decode(final CharSequence s, final ByteBuffer dst) {
+		final int length = s.length();
+		for (int i = nextDigit(s, 0); i < length; i = nextDigit(s, i + 2)) {
+			dst.put(decodeByte(s, i));
+		}
+	}
+
+	/**
+	 * Decode hexadecimal digits into an array, skipping separators.
+	 * 
+	 * @param s the digits
+	 * @param dst the array to write the bytes to
+	 * @param dstOffset where to start writing
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if s contains other characters or an
+	 *             odd number of digits
+	 */
+	public static int decode(final CharSequence s, final byte[] dst, final int dstOffset) {
+		final int length = s.length();
+		int j = dstOffset;
+		for (int i = nextDigit(s, 0); i < length; i = nextDigit(s, i + 2)) {
+			dst[j++] = decodeByte(s, i);
+		}
+		return j - dstOffset;
+	}
+
+	/**
+	 * Write a hex dump of bytes: 16 bytes per line followed by their
+	 * printable ASCII characters.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @return the hex dump
+	 */
+	public static String dump(final byte[] a, final int offset, final int length) {
+		checkBounds(a, offset, length);
+		final char[] dst = new char[dumpLength(length)];
+		dump(a, offset, length, dst, 0);
+		return new String(dst);
+	}
+
+	/**
+	 * Write a hex dump of bytes to an {@link Appendable}, one line at a time.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param out where to write the hex dump to
+	 * @throws IOException if writing to out fails
+	 */
+	public static void dump(final byte[] a, final int offset, final int length, final Appendable out)
+			throws IOException {
+		checkBounds(a, offset, length);
+		final char[] line = new char[dumpLength(DUMP_WIDTH)];
+		final CharBuffer wrapped = CharBuffer.wrap(line);
+		for (int i = 0; i < length; i += DUMP_WIDTH) {
+			final int n = dump(a, offset + i, Math.min(DUMP_WIDTH, length - i), line, 0);
+			out.append(wrapped, 0, n);
+		}
+	}
+
+	/**
+	 * Write a hex dump of bytes to a char array.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param dst the array to write to, with room for
+	 *            {@link #dumpLength(int)} chars
+	 * @param dstOffset where to start writing
+	 * @return the number of chars written
+	 */
+	public static int dump(final byte[] a, final int offset, final int length, final char[] dst, final int dstOffset) {
+		checkBounds(a, offset, length);
+		int j = dstOffset;
+		for (int row = 0; row < length; row += DUMP_WIDTH) {
+			final int m = Math.min(DUMP_WIDTH, length - row);
+			final int start = offset + row;
+			for (int i = 0; i < m; i++) {
+				final int v = (a[start + i] & 0xff) << 1;
+				dst[j++] = LOWER[v];
+				dst[j++] = LOWER[v + 1];
+				dst[j++] = ' ';
+			}
+			for (int i = 3 * (DUMP_WIDTH - m) + 1; i > 0; i--) {
+				dst[j++] = ' ';
+			}
+			dst[j++] = '|';
+			for (int i = 0; i < m; i++) {
+				final byte b = a[start + i];
+				dst[j++] = b >= 0x20 && b < 0x7f ? (char) b : '.';
+			}
+			dst[j++] = '|';
+			dst[j++] = '\n';
+		}
+		return j - dstOffset;
+	}
+
+	/**
+	 * Get the number of chars a hex dump of some bytes takes.
+	 * 
+	 * @param length the number of bytes
+	 * @return the number of chars
+	 */
+	public static int dumpLength(final int length) {
+		final int rows = (length + DUMP_WIDTH - 1) / DUMP_WIDTH;
+		return rows * (3 * DUMP_WIDTH + 4) + length;
+	}
+
+	/**
+	 * Encode bytes as lower case digits without separators.
+	 * 
+	 * @param a the bytes
+	 * @return the digits
+	 */
+	public static String encode(final byte[] a) {
+		return encode(a, 0, a.length, false, NO_SEPARATOR);
+	}
+
+	/**
+	 * Encode bytes.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param upperCase whether to use upper case digits
+	 * @param separator the character between the bytes, or
+	 *            {@link #NO_SEPARATOR}
+	 * @return the digits
+	 */
+	public static String encode(final byte[] a, final int offset, final int length, final boolean upperCase,
+			final char separator) {
+		return new String(encodeToChars(a, offset, length, upperCase, separator));
+	}
+
+	/**
+	 * Encode bytes to an {@link Appendable}.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param upperCase whether to use upper case digits
+	 * @param separator the character between the bytes, or
+	 *            {@link #NO_SEPARATOR}
+	 * @param out where to write the digits to
+	 * @throws IOException if writing to out fails
+	 */
+	public static void encode(final byte[] a, final int offset, final int length, final boolean upperCase,
+			final char separator, final Appendable out) throws IOException {
+		checkBounds(a, offset, length);
+		final int step = CHUNK / 3;
+		final char[] chunk = new char[encodedLength(step, separator) + 1];
+		final CharBuffer wrapped = CharBuffer.wrap(chunk);
+		for (int i = 0; i < length; i += step) {
+			int n = 0;
+			if (i > 0 && separator != NO_SEPARATOR) {
+				chunk[n++] = separator;
+			}
+			n += encode(a, offset + i, Math.min(step, length - i), upperCase, separator, chunk, n);
+			out.append(wrapped, 0, n);
+		}
+	}
+
+	/**
+	 * Encode bytes as ASCII digits into a buffer.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param upperCase whether to use upper case digits
+	 * @param separator the character between the bytes, or
+	 *            {@link #NO_SEPARATOR}
+	 * @param dst the buffer to write to
+	 * @throws java.nio.BufferOverflowException if dst is too small
+	 */
+	public static void encode(final byte[] a, final int offset, final int length, final boolean upperCase,
+			final char separator, final ByteBuffer dst) {
+		checkBounds(a, offset, length);
+		final char[] table = upperCase ? UPPER : LOWER;
+		for (int i = 0; i < length; i++) {
+			if (i > 0 && separator != NO_SEPARATOR) {
+				dst.put((byte) separator);
+			}
+			final int v = (a[offset + i] & 0xff) << 1;
+			dst.put((byte) table[v]);
+			dst.put((byte) table[v + 1]);
+		}
+	}
+
+	/**
+	 * Encode bytes into a char array.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param upperCase whether to use upper case digits
+	 * @param separator the character between the bytes, or
+	 *            {@link #NO_SEPARATOR}
+	 * @param dst the array to write to, with room for
+	 *            {@link #encodedLength(int, char)} chars
+	 * @param dstOffset where to start writing
+	 * @return the number of chars written
+	 */
+	public static int encode(final byte[] a, final int offset, final int length, final boolean upperCase,
+			final char separator, final char[] dst, final int dstOffset) {
+		checkBounds(a, offset, length);
+		final char[] table = upperCase ? UPPER : LOWER;
+		int j = dstOffset;
+		for (int i = 0; i < length; i++) {
+			if (i > 0 && separator != NO_SEPARATOR) {
+				dst[j++] = separator;
+			}
+			final int v = (a[offset + i] & 0xff) << 1;
+			dst[j++] = table[v];
+			dst[j++] = table[v + 1];
+		}
+		return j - dstOffset;
+	}
+
+	/**
+	 * Get the number of chars encoding some bytes takes.
+	 * 
+	 * @param length the number of bytes
+	 * @param separator the character between the bytes, or
+	 *            {@link #NO_SEPARATOR}
+	 * @return the number of chars
+	 */
+	public static int encodedLength(final int length, final char separator) {
+		if (length == 0) return 0;
+		return separator == NO_SEPARATOR ? length * 2 : length * 3 - 1;
+	}
+
+	/**
+	 * Encode bytes into a new char array.
+	 * 
+	 * @param a the bytes
+	 * @param offset the offset in the array
+	 * @param length the number of bytes
+	 * @param upperCase whether to use upper case digits
+	 * @param separator the character between the bytes, or
+	 *            {@link #NO_SEPARATOR}
+	 * @return the digits
+	 */
+	public static char[] encodeToChars(final byte[] a, final int offset, final int length, final boolean upperCase,
+			final char separator) {
+		checkBounds(a, offset, length);
+		final char[] dst = new char[encodedLength(length, separator)];
+		encode(a, offset, length, upperCase, separator, dst, 0);
+		return dst;
+	}
+
+	private static void checkBounds(final byte[] a, final int offset, final int length) {
+		if (offset < 0 || length < 0 || length > a.length - offset) throw new IndexOutOfBoundsException();
+	}
+
+	private static byte decodeByte(final CharSequence s, final int i) {
+		if (i + 1 >= s.length()) throw new IllegalArgumentException("odd number of hexadecimal digits");
+		final int hi = value(s.charAt(i));
+		final int lo = value(s.charAt(i + 1));
+		if (hi < 0 || lo < 0)
+			throw new IllegalArgumentException("not a hexadecimal digit at " + (hi < 0 ? i : i + 1));
+		return (byte) (hi << 4 | lo);
+	}
+
+	/**
+	 * Skip separators.
+	 * 
+	 * @return the index of the next digit, or the length of s
+	 */
+	private static int nextDigit(final CharSequence s, final int from) {
+		final int length = s.length();
+		for (int i = from; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c != ':' && c != '-' && !Character.isWhitespace(c)) return i;
+		}
+		return length;
+	}
+
+	private static char[] pairs(final String digits) {
+		final char[] table = new char[512];
+		for (int i = 0; i < 256; i++) {
+			table[i << 1] = digits.charAt(i >>> 4);
+			table[(i << 1) + 1] = digits.charAt(i & 0x0f);
+		}
+		return table;
+	}
+
+	private static int value(final char c) {
+		return c < VALUES.length ? VALUES[c] : -1;
+	}
+}
@@ -20,10 +20,11 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.List;
 
 /**
  * General purpose class with all kinds of useful methods
@@ -33,6 +34,12 @@ import java.util.Arrays;
  */
 public class Utils {
 
+	/**
+	 * Looked up once instead of by name for every conversion
+	 */
+	private static final Charset UTF_16 = Charset.forName("UTF-16");
+	private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
 	private Utils() {
 	}
 
@@ -134,12 +141,7 @@ public class Utils {
 	public static String byteArrayToString(final byte[] a, final int offset, final int length) {
 		if (a == null) return "[null]";
 		if (a.length == 0) return "[empty]";
-		if (offset < 0 || length < 0 || length + offset > a.length) throw new IndexOutOfBoundsException();
-		String result = "";
-		for (int i = offset; i < offset + length; i++) {
-			result += byteToString(a[i]);
-		}
-		return result;
+		return Hex.encode(a, offset, length, false, Hex.NO_SEPARATOR);
 	}
 
 	/**
@@ -153,12 +155,7 @@ public class Utils {
 	 */
 	public static String bytesToString(final byte[] data, final int offset, final int length) {
 		if (data == null) return null;
-		String s = null;
-		try {
-			s = new String(data, offset, length, "UTF-16");
-		} catch (final UnsupportedEncodingException e) {
-		}
-		return s;
+		return new String(data, offset, length, UTF_16);
 	}
 
 	/**
@@ -187,12 +184,7 @@ public class Utils {
 	 */
 	public static String bytesToStringLE(final byte[] data, final int offset, final int length) {
 		if (data == null) return null;
-		String s = null;
-		try {
-			s = new String(data, offset, length, "UTF-16LE");
-		} catch (final UnsupportedEncodingException e) {
-		}
-		return s;
+		return new String(data, offset, length, UTF_16LE);
 	}
 
 	/**
@@ -202,13 +194,7 @@ public class Utils {
 	 * @return the human readable representation
 	 */
 	public static String byteToString(final int b) {
-		String s = Integer.toHexString(b);
-		if (s.length() == 1) {
-			s = "0" + s;
-		} else {
-			s = s.substring(s.length() - 2);
-		}
-		return s;
+		return Hex.encode(new byte[] { (byte) b });
 	}
 
 	public static void closeSliently(final Closeable c) {
@@ -251,31 +237,30 @@ public class Utils {
 	 * Look through data (hay stack) looking for a pattern that results in a
 	 * certain SHA1 hash (needle).
 	 * 
-	 * This is a brute force search. For every possible (continuous) sub array
-	 * of hayStack we calculate the SHA1 hash and match it with the hash we were
-	 * looking for (needle).
+	 * Every possible (continuous) sub array of hayStack is hashed and matched
+	 * with the hash we were looking for (needle). See {@link HashSearch} for
+	 * searching several hashes and algorithms at once.
 	 * 
 	 * @param hayStack the data to analyze
 	 * @param needle the hash being looked for
-	 * @return the {offset, length} of some sub array in hay stack resulting in
-	 *         the hash specified by needle, or null if no match was found
+	 * @return the {offset, length} of the shortest sub array in hay stack
+	 *         resulting in the hash specified by needle, or null if no match
+	 *         was found
 	 */
 	public static int[] hashCalculator(final byte[] hayStack, final byte[] needle) {
-		MessageDigest hash = null;
+		final HashSearch search = new HashSearch(hayStack);
 		try {
-			hash = MessageDigest.getInstance("SHA1");
+			search.addNeedle("SHA-1", needle);
+			final List<HashSearch.Match> matches = search.search();
+			if (matches.isEmpty()) return null;
+			return new int[] { matches.get(0).getOffset(), matches.get(0).getLength() };
 		} catch (final NoSuchAlgorithmException e) {
+			/* we assume SHA1 always exists... */
+			return null;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
-		/* for every possible size */
-		for (int i = 0; i <= hayStack.length; i++) {
-			/* every possible offset */
-			for (int j = 0; j <= hayStack.length - i; j++) {
-				hash.update(hayStack, j, i);
-				final byte[] dig = hash.digest();
-				if (Arrays.equals(dig, needle)) return new int[] { j, i };
-			}
-		}
-		return null;
 	}
 
 	public static String hexDump(final byte[] a) {
@@ -283,37 +268,9 @@ public class Utils {
 	}
 
 	public static String hexDump(final byte[] a, final int offset, final int length) {
-		final int WIDTH = 16;
 		if (a == null) return "[null]";
 		if (a.length == 0) return "[empty]";
-		String result = "";
-		if (offset < 0 || length < 0 || length + offset > a.length) throw new IndexOutOfBoundsException();
-		int rows = length / WIDTH;
-		final int lastRow = length % WIDTH;
-		if (lastRow != 0) {
-			rows++;
-		}
-
-		for (int i = 0; i < rows; i++) {
-			final int m = lastRow != 0 && i == rows - 1 ? lastRow : WIDTH;
-
-			for (int j = 0; j < m; j++) {
-				result += byteToString(a[offset + i * WIDTH + j]) + " ";
-			}
-			for (int z = 0; z < WIDTH - m; z++) {
-				result += "   ";
-			}
-			result += " |";
-			for (int j = 0; j < m; j++) {
-				if (a[offset + i * WIDTH + j] >= 0x20 && a[offset + i * WIDTH + j] < 0x7f) {
-					result += (char) a[offset + i * WIDTH + j];
-				} else {
-					result += ".";
-				}
-			}
-			result += "|\n";
-		}
-		return result;
+		return Hex.dump(a, offset, length);
 	}
 
 	/**
@@ -384,16 +341,10 @@ public class Utils {
 
 		/*
 		 * we may want to reserve two bytes at the end to contain 0x00 0x00 to
-		 * indicate end of string (depending on terminator bool),
-		 * String.getBytes does not do this
+		 * indicate end of string (depending on terminator bool), the UTF-16
+		 * code units are written straight into the result
 		 */
-		final byte[] stringBytes = new byte[s.length() * 2 + (terminator ? 2 : 0)];
-		try {
-			final byte[] bA = s.getBytes("UTF-16LE");
-			System.arraycopy(bA, 0, stringBytes, 0, bA.length);
-		} catch (final UnsupportedEncodingException e) {
-		}
-		return stringBytes;
+		return new ByteWriter(s.length() * 2 + (terminator ? 2 : 0), ByteOrder.LITTLE_ENDIAN).putChars(s).getArray();
 	}
 
 	/**
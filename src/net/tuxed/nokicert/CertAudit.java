@@ -0,0 +1,100 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tuxed.nokicert.CertListParser.CertListItem;
+
+/**
+ * The outcome of checking the certificate list file (CDF) against the
+ * certificate files on the phone.
+ */
+public class CertAudit {
+	private final ArrayList<CertListItem> danglingEntries = new ArrayList<CertListItem>();
+	private final ArrayList<CertListItem> duplicateEntries = new ArrayList<CertListItem>();
+	private final ArrayList<String> orphanFiles = new ArrayList<String>();
+	private boolean repaired;
+
+	/**
+	 * Get the CDF entries whose certificate file does not exist.
+	 * 
+	 * @return the entries
+	 */
+	public List<CertListItem> getDanglingEntries() {
+		return danglingEntries;
+	}
+
+	/**
+	 * Get the CDF entries with the same fingerprint as an earlier entry.
+	 * 
+	 * @return the entries
+	 */
+	public List<CertListItem> getDuplicateEntries() {
+		return duplicateEntries;
+	}
+
+	/**
+	 * Get the names of the certificate files no CDF entry points to.
+	 * 
+	 * @return the file names
+	 */
+	public List<String> getOrphanFiles() {
+		return orphanFiles;
+	}
+
+	/**
+	 * Whether or not no problems were found.
+	 * 
+	 * @return true if the CDF and the certificate files match
+	 */
+	public boolean isClean() {
+		return danglingEntries.isEmpty() && duplicateEntries.isEmpty() && orphanFiles.isEmpty();
+	}
+
+	/**
+	 * Whether or not the problems found were repaired on the phone.
+	 * 
+	 * @return true if the phone was repaired
+	 */
+	public boolean isRepaired() {
+		return repaired;
+	}
+
+	@Override
+	public String toString() {
+		return "CertAudit [danglingEntries=" + danglingEntries.size() + ", duplicateEntries="
+				+ duplicateEntries.size() + ", orphanFiles=" + orphanFiles + ", repaired=" + repaired + "]";
+	}
+
+	void addDanglingEntry(final CertListItem item) {
+		danglingEntries.add(item);
+	}
+
+	void addDuplicateEntry(final CertListItem item) {
+		duplicateEntries.add(item);
+	}
+
+	void addOrphanFile(final String fileName) {
+		orphanFiles.add(fileName);
+	}
+
+	void setRepaired(final boolean repaired) {
+		this.repaired = repaired;
+	}
+}
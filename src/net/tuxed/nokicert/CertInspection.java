@@ -0,0 +1,138 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.util.Date;
+
+import net.tuxed.gjokii.GjokiiException;
+
+/**
+ * What was found out about one certificate file installed on the phone.
+ */
+public class CertInspection {
+	private final String fileName;
+	private final GjokiiException error;
+	private String subjectCommonName;
+	private String issuerCommonName;
+	private String issuerOrganization;
+	private int modulusSize;
+	private Date notBefore;
+	private Date notAfter;
+
+	/**
+	 * Construct the result for a certificate file that could not be
+	 * downloaded or parsed.
+	 * 
+	 * @param fileName the name of the certificate file
+	 * @param error the reason
+	 */
+	CertInspection(final String fileName, final GjokiiException error) {
+		this.fileName = fileName;
+		this.error = error;
+	}
+
+	/**
+	 * Construct the result for a parsed certificate file.
+	 * 
+	 * @param fileName the name of the certificate file
+	 * @param cert the parsed certificate
+	 */
+	CertInspection(final String fileName, final CertParser cert) {
+		this.fileName = fileName;
+		error = null;
+		subjectCommonName = cert.getSubjectCommonName();
+		issuerCommonName = cert.getIssuerCommonName();
+		issuerOrganization = cert.getIssuerOrganization();
+		modulusSize = cert.getModulusSize();
+		notBefore = cert.getNotBefore();
+		notAfter = cert.getNotAfter();
+	}
+
+	/**
+	 * Get the reason the certificate could not be inspected.
+	 * 
+	 * @return the error, or null if the certificate was parsed
+	 */
+	public GjokiiException getError() {
+		return error;
+	}
+
+	/**
+	 * Get the name of the certificate file on the phone.
+	 * 
+	 * @return the file name
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getIssuerCommonName() {
+		return issuerCommonName;
+	}
+
+	public String getIssuerOrganization() {
+		return issuerOrganization;
+	}
+
+	/**
+	 * Returns the size of the public modulus in bits
+	 * 
+	 * @return the bit size of the public modulus
+	 */
+	public int getModulusSize() {
+		return modulusSize;
+	}
+
+	public Date getNotAfter() {
+		return notAfter;
+	}
+
+	public Date getNotBefore() {
+		return notBefore;
+	}
+
+	public String getSubjectCommonName() {
+		return subjectCommonName;
+	}
+
+	/**
+	 * Whether the validity period of the certificate has ended.
+	 * 
+	 * @return true if the certificate is expired, false if it is still valid
+	 *         or could not be parsed
+	 */
+	public boolean isExpired() {
+		return notAfter != null && notAfter.getTime() < System.currentTimeMillis();
+	}
+
+	/**
+	 * Whether the certificate file was downloaded and parsed.
+	 * 
+	 * @return true if the certificate details are available
+	 */
+	public boolean isParsed() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		if (error != null) return "CertInspection [fileName=" + fileName + ", error=" + error.getMessage() + "]";
+		return "CertInspection [fileName=" + fileName + ", subjectCommonName=" + subjectCommonName
+				+ ", issuerCommonName=" + issuerCommonName + ", issuerOrganization=" + issuerOrganization
+				+ ", modulusSize=" + modulusSize + ", notAfter=" + notAfter + ", expired=" + isExpired() + "]";
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tuxed.nokicert.CertListParser.CertListItem;
+
+/**
+ * Keeps the certificate lists of many phones, so questions about all of them
+ * are answered without connecting to any. A phone's list is brought up to
+ * date by {@link NokiCert#syncInventory(CertInventory)}.
+ * 
+ * Certificates are looked up by their SHA-1 fingerprint.
+ */
+public interface CertInventory {
+
+	/**
+	 * Get the stored certificate list of a phone.
+	 * 
+	 * @param imei the IMEI number of the phone
+	 * @return the entries, empty if the phone is unknown
+	 * @throws IOException if reading the inventory fails
+	 */
+	ArrayList<CertListItem> getCertificates(String imei) throws IOException;
+
+	/**
+	 * Get what is stored about a phone.
+	 * 
+	 * @param imei the IMEI number of the phone
+	 * @return the record, or null if the phone is unknown
+	 * @throws IOException if reading the inventory fails
+	 */
+	DeviceRecord getDevice(String imei) throws IOException;
+
+	/**
+	 * Get all phones in the inventory.
+	 * 
+	 * @return the records
+	 * @throws IOException if reading the inventory fails
+	 */
+	ArrayList<DeviceRecord> getDevices() throws IOException;
+
+	/**
+	 * Get the phones that have a certificate in their certificate list.
+	 * 
+	 * @param fingerprint the SHA-1 fingerprint of the certificate
+	 * @return the records
+	 * @throws IOException if reading the inventory fails
+	 */
+	ArrayList<DeviceRecord> getDevicesWith(byte[] fingerprint) throws IOException;
+
+	/**
+	 * Get the phones that do not have a certificate in their certificate
+	 * list.
+	 * 
+	 * @param fingerprint the SHA-1 fingerprint of the certificate
+	 * @return the records
+	 * @throws IOException if reading the inventory fails
+	 */
+	ArrayList<DeviceRecord> getDevicesWithout(byte[] fingerprint) throws IOException;
+
+	/**
+	 * Store a phone together with its certificate list, replacing what was
+	 * stored about it.
+	 * 
+	 * @param device the record, identified by its IMEI number
+	 * @param certificates the certificate list of the phone
+	 * @throws IOException if writing the inventory fails
+	 */
+	void put(DeviceRecord device, List<CertListItem> certificates) throws IOException;
+
+	/**
+	 * Update the record of a phone, keeping its stored certificate list.
+	 * 
+	 * @param device the record, identified by its IMEI number
+	 * @throws IOException if writing the inventory fails
+	 */
+	void putDevice(DeviceRecord device) throws IOException;
+
+	/**
+	 * Forget a phone.
+	 * 
+	 * @param imei the IMEI number of the phone
+	 * @throws IOException if writing the inventory fails
+	 */
+	void remove(String imei) throws IOException;
+}
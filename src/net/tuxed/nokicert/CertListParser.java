@@ -17,13 +17,15 @@
 package net.tuxed.nokicert;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.ByteReader;
 import net.tuxed.misc.Utils;
 
 /**
@@ -41,51 +43,68 @@ public class CertListParser {
 		this.file = file;
 	}
 
+	/**
+	 * @param file the certificate list file (CDF)
+	 * @param littleEndian the byte order of the entry sizes expected, e.g.
+	 *            remembered from an earlier session; it is also reported by
+	 *            {@link #hasLittleEndianSizeBytes()} for a CDF without
+	 *            entries. Entries not fitting it are still detected.
+	 */
+	public CertListParser(final File file, final boolean littleEndian) {
+		this.file = file;
+		this.littleEndian = littleEndian;
+	}
+
 	public boolean hasLittleEndianSizeBytes() {
 		return littleEndian;
 	}
 
 	public ArrayList<CertListItem> parse() throws GjokiiException {
 		final ArrayList<CertListItem> list = new ArrayList<CertListItem>();
-		FileInputStream fis = null;
+		RandomAccessFile in = null;
 		try {
-			fis = new FileInputStream(file);
-			while (fis.available() > 4) {
-				int bytesRead = 0;
-				final byte[] lengthBytes = new byte[2];
-				fis.read(lengthBytes);
-				int size = Utils.byteArrayToShort(lengthBytes, 0) - 2;
-				if (size >= file.length() || size < 0) {
-					/* we seem to have a little endian length indicator */
-					littleEndian = true;
-					size = Utils.byteArrayToShortLE(lengthBytes, 0) - 2;
+			in = new RandomAccessFile(file, "r");
+			final byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			final ByteReader r = new ByteReader(data, ByteOrder.BIG_ENDIAN);
+			final ByteReader entry = new ByteReader(data, ByteOrder.BIG_ENDIAN);
+			int entryOffset = 0;
+			while (data.length - entryOffset > 4) {
+				/* try the byte order found last first */
+				r.setOrder(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+				int size = r.getShort(entryOffset) - 2;
+				if (size >= data.length || size < 0) {
+					/* we seem to have a length indicator of the other byte order */
+					littleEndian = !littleEndian;
+					r.setOrder(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+					size = r.getShort(entryOffset) - 2;
 				}
-				// System.out.println(Utils.byteArrayToString(lengthBytes));
-				// System.out.println("Size of block: " + size);
-				bytesRead += fis.skip(10);
+				/* the CDF comes from the phone, check every length against the entry */
+				r.require(entryOffset + 2, size);
+				entry.reset(data, entryOffset + 2, size);
+				entry.require(111);
+				entry.skip(10);
 				final byte[] fingerprint = new byte[20];
-				bytesRead += fis.read(fingerprint);
+				entry.readBytes(fingerprint);
 				final byte[] hashOfModulus = new byte[20];
-				bytesRead += fis.read(hashOfModulus);
+				entry.readBytes(hashOfModulus);
 				final byte[] unknownField = new byte[20];
-				bytesRead += fis.read(unknownField);
+				entry.readBytes(unknownField);
 				final byte[] hashOfSubject = new byte[20];
-				bytesRead += fis.read(hashOfSubject);
+				entry.readBytes(hashOfSubject);
 				final byte[] hashOfIssuer = new byte[20];
-				bytesRead += fis.read(hashOfIssuer);
-				final int sizeOfFileName = fis.read();
-				bytesRead++;
+				entry.readBytes(hashOfIssuer);
+				final int sizeOfFileName = entry.readUnsignedByte();
+				entry.require(sizeOfFileName - 1);
 				final byte[] fileName = new byte[sizeOfFileName - 1];
-				bytesRead += fis.read(fileName);
-				// System.out.println(new String(fileName));
-				bytesRead += fis.skip(2);
+				entry.readBytes(fileName);
+				entry.require(3);
+				entry.skip(2);
 				int keyUsage = 0;
-				final int keyUsageLength = fis.read();
-				// System.out.println(keyUsageLength);
-				bytesRead++;
+				final int keyUsageLength = entry.readUnsignedByte();
+				entry.require(keyUsageLength);
 				final byte[] keyUsageBytes = new byte[keyUsageLength];
-				bytesRead += fis.read(keyUsageBytes);
-				// System.out.println(Utils.byteArrayToString(keyUsageBytes));
+				entry.readBytes(keyUsageBytes);
 				/* read all usages */
 				int offset = 1;
 				while (offset < keyUsageBytes.length) {
@@ -103,18 +122,17 @@ public class CertListParser {
 					keyUsage |= NokiCertUtils.keyUsageBytesToType(t);
 					offset += curKeyUsageLength + 1;
 				}
-				// System.out.println("Skipping " + (size - bytesRead)
-				// + " bytes...");
-				fis.skip(size - bytesRead);
 				list.add(new CertListItem(new String(fileName), fingerprint, hashOfModulus, unknownField,
-						hashOfSubject, hashOfIssuer, keyUsage));
+						hashOfSubject, hashOfIssuer, keyUsage, entryOffset, size + 2));
+				entryOffset += size + 2;
 			}
 		} catch (final FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (final IOException e) {
+			/* also a truncated entry, the entries before it are kept */
 			e.printStackTrace();
 		} finally {
-			Utils.closeSliently(fis);
+			Utils.closeSliently(in);
 		}
 		return list;
 	}
@@ -124,9 +142,20 @@ public class CertListParser {
 		public final String fileName;
 		public final byte[] fingerprint, hashOfModulus, unknownField, hashOfSubject, hashOfIssuer;
 		public final int keyUsage;
+		final int entryOffset, entryLength;
 
-		CertListItem(final String fileName, final byte[] fingerprint, final byte[] hashOfModulus,
+		/**
+		 * Restore an entry kept elsewhere, e.g. in a {@link CertInventory}. It
+		 * does not point into a CDF file.
+		 */
+		public CertListItem(final String fileName, final byte[] fingerprint, final byte[] hashOfModulus,
 				final byte[] unknownField, final byte[] hashOfSubject, final byte[] hashOfIssuer, final int keyUsage) {
+			this(fileName, fingerprint, hashOfModulus, unknownField, hashOfSubject, hashOfIssuer, keyUsage, -1, 0);
+		}
+
+		CertListItem(final String fileName, final byte[] fingerprint, final byte[] hashOfModulus,
+				final byte[] unknownField, final byte[] hashOfSubject, final byte[] hashOfIssuer, final int keyUsage,
+				final int entryOffset, final int entryLength) {
 			this.fileName = fileName;
 			this.fingerprint = fingerprint;
 			this.hashOfModulus = hashOfModulus;
@@ -134,6 +163,8 @@ public class CertListParser {
 			this.hashOfSubject = hashOfSubject;
 			this.hashOfIssuer = hashOfIssuer;
 			this.keyUsage = keyUsage;
+			this.entryOffset = entryOffset;
+			this.entryLength = entryLength;
 		}
 
 		public String getFileName() {
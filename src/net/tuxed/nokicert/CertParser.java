@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
@@ -30,10 +31,12 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
 
 import javax.security.auth.x500.X500Principal;
 
 import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.misc.ByteWriter;
 import net.tuxed.misc.Utils;
 
 /**
@@ -100,58 +103,58 @@ public class CertParser {
 	 * @throws GjokiiException
 	 */
 	public byte[] getCDFEntry(final boolean littleEndian, final int certUsage) throws GjokiiException {
-		byte[] output;
 		final byte[] header = new byte[] { 0x01, 0x41, 0x02, 0x10 };
 		final byte[] fields = new byte[] { 0x14, 0x00, 0x14, 0x14 };
-		output = Utils.appendToByteArray(header, fields);
-		output = Utils.appendToByteArray(output, getFingerprint());
-		output = Utils.appendToByteArray(output, getModulusHash());
-		output = Utils.appendToByteArray(output, new byte[20]);
-		output = Utils.appendToByteArray(output, getSubjectHash());
-		output = Utils.appendToByteArray(output, getIssuerHash());
-		output = Utils.appendToByteArray(output, new byte[] { (byte) ((byte) getSubjectCommonName().length() + 1) });
-		output = Utils.appendToByteArray(output, getSubjectCommonName().getBytes());
-		output = Utils.appendToByteArray(output, new byte[2]); /* separator */
-
-		byte[] keyUsage = new byte[1]; /* first byte contains length */
+		final String subjectCN = getSubjectCommonName();
+		final byte[] name = subjectCN.getBytes();
+
+		int keyUsageLength = 0;
 		if ((certUsage & NokiCertUtils.APPS_SIGNING) == NokiCertUtils.APPS_SIGNING) {
-			keyUsage = Utils.appendToByteArray(keyUsage, APPS_SIGNING_BYTES);
+			keyUsageLength += APPS_SIGNING_BYTES.length;
 		}
 		if ((certUsage & NokiCertUtils.CROSS_CERTIFICATION) == NokiCertUtils.CROSS_CERTIFICATION) {
-			keyUsage = Utils.appendToByteArray(keyUsage, CROSS_CERTIFICATION_BYTES);
+			keyUsageLength += CROSS_CERTIFICATION_BYTES.length;
 		}
 		if ((certUsage & NokiCertUtils.SERVER_AUTHENTIC) == NokiCertUtils.SERVER_AUTHENTIC) {
-			keyUsage = Utils.appendToByteArray(keyUsage, SERVER_AUTHENTIC_BYTES);
+			keyUsageLength += SERVER_AUTHENTIC_BYTES.length;
 		}
-		keyUsage[0] = (byte) (keyUsage.length - 1); /* set length */
 
-		output = Utils.appendToByteArray(output, keyUsage);
+		/* header, fields, five hashes, name, separator and key usage */
+		final int entryLength = 8 + 5 * 20 + 1 + name.length + 2 + 1 + keyUsageLength;
 
 		/* now make the total length a divisor of 4 */
-		int padding = 4 - output.length % 4;
+		int padding = 4 - entryLength % 4;
 
 		/* for some reason we need extra space in some situations?! */
 		if (padding != 4) {
 			padding += 4;
 		}
 
-		output = Utils.appendToByteArray(output, new byte[padding]); /* padding */
-
 		/* prepend with total length, which is 4 bytes, we add that as well */
-		final short outputLength = (short) (output.length + 4);
-		byte[] sizeBytes = null;
-
-		if (littleEndian) {
-			// if (Config.hasLittleEndianCDFSize(platform)) {
-			/* the two? size bytes are little endian */
-			sizeBytes = Utils.shortToByteArrayLE(outputLength);
-		} else {
-			/* the two? size bytes are big endian */
-			sizeBytes = Utils.shortToByteArray(outputLength);
+		final int outputLength = 4 + entryLength + padding;
+
+		/* the two? size bytes are little or big endian */
+		final ByteWriter w = new ByteWriter(outputLength, littleEndian ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN);
+		w.putShort(outputLength).putZeros(2);
+		w.putBytes(header).putBytes(fields);
+		w.putBytes(getFingerprint()).putBytes(getModulusHash()).putZeros(20).putBytes(getSubjectHash())
+				.putBytes(getIssuerHash());
+		w.putByte((byte) subjectCN.length() + 1).putBytes(name);
+		w.putZeros(2); /* separator */
+
+		w.putByte(keyUsageLength); /* first byte contains length */
+		if ((certUsage & NokiCertUtils.APPS_SIGNING) == NokiCertUtils.APPS_SIGNING) {
+			w.putBytes(APPS_SIGNING_BYTES);
 		}
-		sizeBytes = Utils.appendToByteArray(sizeBytes, new byte[2]);
-		output = Utils.appendToByteArray(sizeBytes, output);
-		return output;
+		if ((certUsage & NokiCertUtils.CROSS_CERTIFICATION) == NokiCertUtils.CROSS_CERTIFICATION) {
+			w.putBytes(CROSS_CERTIFICATION_BYTES);
+		}
+		if ((certUsage & NokiCertUtils.SERVER_AUTHENTIC) == NokiCertUtils.SERVER_AUTHENTIC) {
+			w.putBytes(SERVER_AUTHENTIC_BYTES);
+		}
+		w.putZeros(padding); /* padding */
+		return w.getArray();
 	}
 
 	/**
@@ -293,6 +296,24 @@ public class CertParser {
 		return output;
 	}
 
+	/**
+	 * Get the date after which the certificate is no longer valid
+	 * 
+	 * @return the end of the validity period
+	 */
+	public Date getNotAfter() {
+		return cert.getNotAfter();
+	}
+
+	/**
+	 * Get the date before which the certificate is not yet valid
+	 * 
+	 * @return the start of the validity period
+	 */
+	public Date getNotBefore() {
+		return cert.getNotBefore();
+	}
+
 	/**
 	 * Get the common name (CN) of the subject
 	 * 
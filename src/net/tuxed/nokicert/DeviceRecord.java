@@ -0,0 +1,107 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.Serializable;
+
+/**
+ * What a {@link CertInventory} knows about a phone, apart from its
+ * certificate list. The size and time stamp of the certificate list file
+ * (CDF) tell whether the stored list is still current.
+ */
+public final class DeviceRecord implements Serializable {
+	private static final long serialVersionUID = -2846013399731541075L;
+	private final String imei, address, phoneModel, firmwareVersion, firmwareDate;
+	private final int certificateListSize;
+	private final long certificateListTimeStamp, syncTime;
+
+	/**
+	 * @param imei the IMEI number of the phone
+	 * @param address the Bluetooth hardware address of the phone, or null
+	 * @param phoneModel the phone model
+	 * @param firmwareVersion the firmware version
+	 * @param firmwareDate the firmware date
+	 * @param certificateListSize the size of the CDF on the phone
+	 * @param certificateListTimeStamp the time stamp of the CDF on the phone
+	 * @param syncTime when the phone was last synchronised, in milliseconds
+	 *            since the epoch
+	 */
+	public DeviceRecord(final String imei, final String address, final String phoneModel,
+			final String firmwareVersion, final String firmwareDate, final int certificateListSize,
+			final long certificateListTimeStamp, final long syncTime) {
+		this.imei = imei;
+		this.address = address;
+		this.phoneModel = phoneModel;
+		this.firmwareVersion = firmwareVersion;
+		this.firmwareDate = firmwareDate;
+		this.certificateListSize = certificateListSize;
+		this.certificateListTimeStamp = certificateListTimeStamp;
+		this.syncTime = syncTime;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getCertificateListSize() {
+		return certificateListSize;
+	}
+
+	public long getCertificateListTimeStamp() {
+		return certificateListTimeStamp;
+	}
+
+	public String getFirmwareDate() {
+		return firmwareDate;
+	}
+
+	public String getFirmwareVersion() {
+		return firmwareVersion;
+	}
+
+	public String getIMEI() {
+		return imei;
+	}
+
+	public String getPhoneModel() {
+		return phoneModel;
+	}
+
+	public long getSyncTime() {
+		return syncTime;
+	}
+
+	/**
+	 * Whether or not the stored certificate list of this record is still the
+	 * one on the phone.
+	 * 
+	 * @param current a record made from the phone just now
+	 * @return true if the CDF did not change since this record was made
+	 */
+	public boolean hasSameCertificateList(final DeviceRecord current) {
+		return certificateListSize == current.certificateListSize
+				&& certificateListTimeStamp == current.certificateListTimeStamp;
+	}
+
+	@Override
+	public String toString() {
+		return "DeviceRecord [imei=" + imei + ", address=" + address + ", phoneModel=" + phoneModel
+				+ ", firmwareVersion=" + firmwareVersion + ", firmwareDate=" + firmwareDate
+				+ ", certificateListSize=" + certificateListSize + ", certificateListTimeStamp="
+				+ certificateListTimeStamp + ", syncTime=" + syncTime + "]";
+	}
+}
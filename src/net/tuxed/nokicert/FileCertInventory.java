@@ -0,0 +1,219 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import net.tuxed.misc.Hex;
+import net.tuxed.misc.Utils;
+import net.tuxed.nokicert.CertListParser.CertListItem;
+
+/**
+ * A {@link CertInventory} keeping one file per phone in a directory. All
+ * files are read on first use and kept in memory with an index on the
+ * certificate fingerprints, so queries do not touch the disk. A phone's file
+ * is replaced as a whole whenever it is stored.
+ * 
+ * A damaged file is skipped, that phone is simply synchronised again.
+ */
+public final class FileCertInventory implements CertInventory {
+	private static final String SUFFIX = ".inventory";
+
+	private final File directory;
+	private final HashMap<String, DeviceRecord> devices = new HashMap<String, DeviceRecord>();
+	private final HashMap<String, ArrayList<CertListItem>> certificates = new HashMap<String, ArrayList<CertListItem>>();
+	/** the IMEI numbers of the phones having a certificate, by fingerprint */
+	private final HashMap<String, HashSet<String>> fingerprints = new HashMap<String, HashSet<String>>();
+	private boolean loaded;
+
+	/**
+	 * @param directory the directory to keep the files in, it is created
+	 *            when needed
+	 */
+	public FileCertInventory(final File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public synchronized ArrayList<CertListItem> getCertificates(final String imei) {
+		load();
+		final ArrayList<CertListItem> list = certificates.get(imei);
+		return list != null ? new ArrayList<CertListItem>(list) : new ArrayList<CertListItem>();
+	}
+
+	@Override
+	public synchronized DeviceRecord getDevice(final String imei) {
+		load();
+		return devices.get(imei);
+	}
+
+	@Override
+	public synchronized ArrayList<DeviceRecord> getDevices() {
+		load();
+		return new ArrayList<DeviceRecord>(devices.values());
+	}
+
+	@Override
+	public synchronized ArrayList<DeviceRecord> getDevicesWith(final byte[] fingerprint) {
+		load();
+		final ArrayList<DeviceRecord> list = new ArrayList<DeviceRecord>();
+		final HashSet<String> imeis = fingerprints.get(Hex.encode(fingerprint));
+		if (imeis != null) {
+			for (final String imei : imeis) {
+				list.add(devices.get(imei));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized ArrayList<DeviceRecord> getDevicesWithout(final byte[] fingerprint) {
+		load();
+		final ArrayList<DeviceRecord> list = new ArrayList<DeviceRecord>();
+		final HashSet<String> imeis = fingerprints.get(Hex.encode(fingerprint));
+		for (final DeviceRecord device : devices.values()) {
+			if (imeis == null || !imeis.contains(device.getIMEI())) {
+				list.add(device);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized void put(final DeviceRecord device, final List<CertListItem> list) throws IOException {
+		load();
+		final ArrayList<CertListItem> copy = new ArrayList<CertListItem>(list);
+		write(device, copy);
+		unindex(device.getIMEI());
+		add(device, copy);
+	}
+
+	@Override
+	public synchronized void putDevice(final DeviceRecord device) throws IOException {
+		load();
+		ArrayList<CertListItem> list = certificates.get(device.getIMEI());
+		if (list == null) {
+			list = new ArrayList<CertListItem>();
+		}
+		write(device, list);
+		unindex(device.getIMEI());
+		add(device, list);
+	}
+
+	@Override
+	public synchronized void remove(final String imei) throws IOException {
+		load();
+		final File f = getFile(imei);
+		if (f.exists() && !f.delete()) throw new IOException("unable to delete " + f);
+		unindex(imei);
+	}
+
+	private void add(final DeviceRecord device, final ArrayList<CertListItem> list) {
+		final String imei = device.getIMEI();
+		devices.put(imei, device);
+		certificates.put(imei, list);
+		for (final CertListItem item : list) {
+			final String key = Hex.encode(item.fingerprint);
+			HashSet<String> imeis = fingerprints.get(key);
+			if (imeis == null) {
+				imeis = new HashSet<String>();
+				fingerprints.put(key, imeis);
+			}
+			imeis.add(imei);
+		}
+	}
+
+	private File getFile(final String imei) {
+		return new File(directory, imei + SUFFIX);
+	}
+
+	private void load() {
+		if (loaded) return;
+		loaded = true;
+		final File[] files = directory.listFiles();
+		if (files == null) return;
+		for (final File f : files) {
+			if (!f.getName().endsWith(SUFFIX)) {
+				continue;
+			}
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+				final DeviceRecord device = (DeviceRecord) in.readObject();
+				@SuppressWarnings("unchecked")
+				final ArrayList<CertListItem> list = (ArrayList<CertListItem>) in.readObject();
+				add(device, list);
+			} catch (final IOException e) {
+				continue;
+			} catch (final ClassNotFoundException e) {
+				continue;
+			} catch (final ClassCastException e) {
+				continue;
+			} finally {
+				Utils.closeSliently(in);
+			}
+		}
+	}
+
+	/**
+	 * Remove a phone from the memory and the fingerprint index.
+	 */
+	private void unindex(final String imei) {
+		devices.remove(imei);
+		final ArrayList<CertListItem> list = certificates.remove(imei);
+		if (list == null) return;
+		for (final CertListItem item : list) {
+			final String key = Hex.encode(item.fingerprint);
+			final HashSet<String> imeis = fingerprints.get(key);
+			if (imeis != null && imeis.remove(imei) && imeis.isEmpty()) {
+				fingerprints.remove(key);
+			}
+		}
+	}
+
+	private void write(final DeviceRecord device, final ArrayList<CertListItem> list) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("unable to create " + directory);
+		final File file = getFile(device.getIMEI());
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fos));
+			out.writeObject(device);
+			out.writeObject(list);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		/* some platforms do not rename over an existing file */
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("unable to replace " + file);
+		}
+	}
+}
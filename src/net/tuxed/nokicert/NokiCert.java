@@ -20,10 +20,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import net.tuxed.gjokii.Batch;
+import net.tuxed.gjokii.DeviceProfile;
+import net.tuxed.gjokii.DirectoryEntryInfo;
 import net.tuxed.gjokii.Gjokii;
 import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.gjokii.Transport;
+import net.tuxed.gjokii.trace.TraceRecorder;
+import net.tuxed.misc.Utils;
 import net.tuxed.nokicert.CertListParser.CertListItem;
 import android.bluetooth.BluetoothDevice;
 
@@ -35,7 +51,22 @@ import android.bluetooth.BluetoothDevice;
  * 
  */
 public class NokiCert extends Gjokii {
-	private static final String CERT_DIR_FILE_PATH = "/predefhiddenfolder/certificates/auth/ext_info.sys";
+	private static final String AUTH_DIR_PATH = "/predefhiddenfolder/certificates/auth/";
+	private static final String CERT_DIR_FILE_NAME = "ext_info.sys";
+	private static final String CERT_DIR_FILE_PATH = AUTH_DIR_PATH + CERT_DIR_FILE_NAME;
+	/**
+	 * The device profile property holding whether the entry sizes of the CDF
+	 * are little endian
+	 */
+	private static final String CDF_LITTLE_ENDIAN = "cdf.littleEndian";
+	static {
+		/* every operation of this class uses these */
+		precompilePath(AUTH_DIR_PATH);
+		precompilePath(CERT_DIR_FILE_PATH);
+	}
+
+	private Thread prefetcher;
+	private Prefetch prefetched;
 
 	/**
 	 * Construct the NokiCert object
@@ -48,6 +79,146 @@ public class NokiCert extends Gjokii {
 		super(device, verbose);
 	}
 
+	/**
+	 * Construct the NokiCert object, recording all frames exchanged with the
+	 * phone
+	 * 
+	 * @param device the phone to connect to
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null
+	 * @throws GjokiiException
+	 */
+	public NokiCert(final BluetoothDevice device, final boolean verbose, final TraceRecorder tracer)
+			throws GjokiiException {
+		super(device, verbose, tracer);
+	}
+
+	/**
+	 * Construct the NokiCert object over an arbitrary link to the phone
+	 * 
+	 * @param transport the (not yet connected) link to the phone
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null
+	 * @throws GjokiiException
+	 */
+	public NokiCert(final Transport transport, final boolean verbose, final TraceRecorder tracer)
+			throws GjokiiException {
+		super(transport, verbose, tracer);
+	}
+
+	/**
+	 * Construct the NokiCert object, using and updating what was learned
+	 * about the phone before, including the byte order of its CDF
+	 * 
+	 * @param device the phone to connect to
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null
+	 * @param profile the profile of the phone, or null
+	 * @throws GjokiiException
+	 */
+	public NokiCert(final BluetoothDevice device, final boolean verbose, final TraceRecorder tracer,
+			final DeviceProfile profile) throws GjokiiException {
+		super(device, verbose, tracer, profile);
+	}
+
+	/**
+	 * Construct the NokiCert object over an arbitrary link to the phone, using
+	 * and updating what was learned about the phone before
+	 * 
+	 * @param transport the (not yet connected) link to the phone
+	 * @param verbose whether or not to print debugging information
+	 * @param tracer the recorder to write the frames to, or null
+	 * @param profile the profile of the phone, or null
+	 * @throws GjokiiException
+	 */
+	public NokiCert(final Transport transport, final boolean verbose, final TraceRecorder tracer,
+			final DeviceProfile profile) throws GjokiiException {
+		super(transport, verbose, tracer, profile);
+	}
+
+	/**
+	 * Check the certificate list file (CDF) against the certificate files on
+	 * the phone. The auth directory is listed once and compared in memory
+	 * with the entries of the CDF, instead of checking every entry on the
+	 * phone.
+	 * 
+	 * When repairing, dangling and duplicate entries are removed with a
+	 * single rewrite of the CDF and orphan certificate files are deleted in
+	 * one batch.
+	 * 
+	 * @param repair whether or not to fix the problems found
+	 * @return the problems found
+	 * @throws GjokiiException if talking to the phone fails
+	 */
+	public CertAudit auditCertificates(final boolean repair) throws GjokiiException {
+		awaitPrefetch();
+		beginOperation("auditCertificates");
+		boolean success = false;
+		File f = null, repaired = null;
+		try {
+			f = downloadCertificateListFile();
+			final ArrayList<CertListItem> items = parseCertificateList(newCertListParser(f));
+			/* the phone does not tell names apart by case */
+			final TreeSet<String> files = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+			for (final DirectoryEntryInfo d : getDirectoryList(AUTH_DIR_PATH)) {
+				if (d.isFile() && !d.getEntryName().equalsIgnoreCase(CERT_DIR_FILE_NAME)) {
+					files.add(d.getEntryName());
+				}
+			}
+
+			final CertAudit audit = new CertAudit();
+			final TreeSet<String> referenced = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+			final HashSet<String> fingerprints = new HashSet<String>();
+			final ArrayList<CertListItem> keep = new ArrayList<CertListItem>();
+			for (final CertListItem item : items) {
+				if (!files.contains(item.fileName)) {
+					audit.addDanglingEntry(item);
+				} else if (!fingerprints.add(Utils.byteArrayToString(item.fingerprint))) {
+					audit.addDuplicateEntry(item);
+				} else {
+					keep.add(item);
+					/* the file of a duplicate is an orphan once the entry is dropped */
+					referenced.add(item.fileName);
+				}
+			}
+			for (final String name : files) {
+				if (!referenced.contains(name)) {
+					audit.addOrphanFile(name);
+				}
+			}
+			log("(I) " + audit);
+
+			if (repair && !audit.isClean()) {
+				if (keep.size() < items.size()) {
+					log("(I) uploading repaired CDF to the phone...");
+					repaired = rewriteCertificateListFile(f, keep);
+					putFile(CERT_DIR_FILE_PATH, repaired);
+				}
+				if (!audit.getOrphanFiles().isEmpty()) {
+					log("(I) deleting orphan certificate files...");
+					final Batch batch = new Batch();
+					for (final String name : audit.getOrphanFiles()) {
+						batch.deleteFile(AUTH_DIR_PATH + name);
+					}
+					for (final Batch.Result r : execute(batch)) {
+						if (!r.isSuccess()) throw r.getException();
+					}
+				}
+				audit.setRepaired(true);
+			}
+			success = true;
+			return audit;
+		} finally {
+			if (f != null) {
+				f.delete();
+			}
+			if (repaired != null) {
+				repaired.delete();
+			}
+			endOperation(success);
+		}
+	}
+
 	/**
 	 * Retrieve the certificate list file (CDF) from the phone.
 	 * 
@@ -55,6 +226,277 @@ public class NokiCert extends Gjokii {
 	 * @throws GjokiiException
 	 */
 	public File getCertificateListFile() throws GjokiiException {
+		awaitPrefetch();
+		beginOperation("getCertificateListFile");
+		boolean success = false;
+		try {
+			final File f = downloadCertificateListFile();
+			success = true;
+			return f;
+		} finally {
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Download and analyse all certificate files installed on the phone. The
+	 * calling thread keeps pulling files over the link while a pool of worker
+	 * threads parses the ones already downloaded, so the transfer of the next
+	 * certificate overlaps with parsing the previous ones.
+	 * 
+	 * Results are handed to the listener on the calling thread as soon as
+	 * they are ready, in the order parsing finishes. A certificate file that
+	 * cannot be parsed is reported with its error, it does not stop the
+	 * inspection.
+	 * 
+	 * @param listener receives the result for every certificate file
+	 * @throws GjokiiException if talking to the phone fails
+	 */
+	public void inspectCertificates(final InspectionListener listener) throws GjokiiException {
+		awaitPrefetch();
+		beginOperation("inspectCertificates");
+		boolean success = false;
+		final ExecutorService parsers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final CompletionService<CertInspection> parsed = new ExecutorCompletionService<CertInspection>(parsers);
+		File f = null;
+		try {
+			try {
+				f = File.createTempFile("CERT", null);
+			} catch (final IOException e) {
+				throw new GjokiiException("unable to create temporary file");
+			}
+			int pending = 0;
+			for (final DirectoryEntryInfo d : getDirectoryList(AUTH_DIR_PATH)) {
+				if (!d.isFile() || d.getEntryName().equals(CERT_DIR_FILE_NAME)) {
+					continue;
+				}
+				final String name = d.getEntryName();
+				getFile(AUTH_DIR_PATH + name, f);
+				final byte[] data = readFile(f);
+				parsed.submit(new Callable<CertInspection>() {
+					@Override
+					public CertInspection call() {
+						try {
+							return new CertInspection(name, new CertParser(data));
+						} catch (final GjokiiException e) {
+							return new CertInspection(name, e);
+						} catch (final RuntimeException e) {
+							return new CertInspection(name, new GjokiiException(GjokiiException.INVALID_CERT_FILE,
+									"unable to analyse certificate: " + e.getMessage()));
+						}
+					}
+				});
+				pending++;
+				/* hand over what was parsed while this file was downloading */
+				for (Future<CertInspection> r = parsed.poll(); r != null; r = parsed.poll()) {
+					listener.onInspected(r.get());
+					pending--;
+				}
+			}
+			for (; pending > 0; pending--) {
+				listener.onInspected(parsed.take().get());
+			}
+			success = true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GjokiiException("interrupted while inspecting certificates");
+		} catch (final ExecutionException e) {
+			throw new GjokiiException("unable to inspect certificates", e.getCause());
+		} finally {
+			parsers.shutdownNow();
+			if (f != null) {
+				f.delete();
+			}
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Install a X.509 certificate on the phone.
+	 * 
+	 * @param certFilePathName the full path name of the certificate file
+	 * @param certUsage the certificate usage bits for this certificate
+	 * @throws GjokiiException if an error occurs
+	 */
+	public void installCertificate(final String certFilePathName, final int certUsage) throws GjokiiException {
+		awaitPrefetch();
+		beginOperation("installCertificate");
+		boolean success = false;
+		try {
+			final File f = downloadCertificateListFile();
+			final File derFile = NokiCertUtils.convertToDER(new File(certFilePathName));
+			final CertListParser c = newCertListParser(f);
+			parseCertificateList(c);
+			String subjectCN;
+
+			/* add the new certificate to the certificate directory file */
+			try {
+				final CertParser x = new CertParser(derFile);
+				subjectCN = x.getSubjectCommonName();
+				final byte[] certEntry = x.getCDFEntry(c.hasLittleEndianSizeBytes(), certUsage);
+				final FileOutputStream fos = new FileOutputStream(f, true);
+				fos.write(certEntry);
+				fos.flush();
+				fos.close();
+			} catch (final FileNotFoundException e) {
+				throw new GjokiiException("cannot find certificate directory file");
+			} catch (final IOException e) {
+				throw new GjokiiException(GjokiiException.INVALID_CERT_FILE, "not a cert file!");
+			}
+			/* upload the certificate */
+			final String certPath = AUTH_DIR_PATH + subjectCN;
+
+			log("(I) uploading certificate to the phone...");
+			putFile(certPath, derFile);
+
+			log("(I) uploading CDF to the phone...");
+			/* upload the new certificate directory file (CDF) */
+			putFile(CERT_DIR_FILE_PATH, f);
+			success = true;
+		} finally {
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Retrieve a (formatted) list of installed certificates and their SHA-1
+	 * hash.
+	 * 
+	 * @return the list
+	 * @throws GjokiiException
+	 */
+	public ArrayList<CertListItem> listCertificates() throws GjokiiException {
+		awaitPrefetch();
+		beginOperation("listCertificates");
+		boolean success = false;
+		try {
+			final Prefetch p = takePrefetch();
+			final ArrayList<CertListItem> list = p != null ? p.list
+					: parseCertificateList(newCertListParser(downloadCertificateListFile()));
+			success = true;
+			return list;
+		} finally {
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Start downloading and parsing the certificate list file (CDF) in the
+	 * background, so the next operation of this class finds it ready. Other
+	 * operations wait for the download to finish. The prefetched CDF is used
+	 * once, and only if the file did not change on the phone in the meantime.
+	 */
+	public void prefetchCertificateList() {
+		synchronized (this) {
+			if (prefetcher != null) return;
+			prefetcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					beginOperation("prefetchCertificateList");
+					boolean success = false;
+					try {
+						final File f = downloadCertificateListFile();
+						final Prefetch p = new Prefetch(f, parseCertificateList(newCertListParser(f)),
+								getEntryInfo(CERT_DIR_FILE_PATH));
+						synchronized (NokiCert.this) {
+							prefetched = p;
+						}
+						success = true;
+					} catch (final GjokiiException e) {
+						log("(W) unable to prefetch CDF: " + e.getMessage());
+					} finally {
+						endOperation(success);
+						synchronized (NokiCert.this) {
+							prefetcher = null;
+						}
+					}
+				}
+			}, "NokiCert CDF prefetch");
+			prefetcher.setDaemon(true);
+			prefetcher.start();
+		}
+	}
+
+	/**
+	 * Bring the record of this phone in an inventory up to date. The
+	 * certificate list is only downloaded when the size or time stamp of the
+	 * CDF changed since the phone was synchronised last, otherwise only the
+	 * device record is refreshed.
+	 * 
+	 * @param inventory the inventory to update
+	 * @return the record of this phone
+	 * @throws GjokiiException if talking to the phone or updating the
+	 *             inventory fails
+	 */
+	public DeviceRecord syncInventory(final CertInventory inventory) throws GjokiiException {
+		awaitPrefetch();
+		beginOperation("syncInventory");
+		boolean success = false;
+		try {
+			final String imei = getIMEI();
+			final DeviceInfo info = getInfo();
+			final DirectoryEntryInfo cdf = getEntryInfo(CERT_DIR_FILE_PATH);
+			final DeviceProfile profile = getDeviceProfile();
+			final DeviceRecord device = new DeviceRecord(imei, profile != null ? profile.getAddress() : null,
+					info.getPhoneModel(), info.getFirmwareVersion(), info.getFirmwareDate(), cdf.getEntrySize(),
+					cdf.getEntryTimeStamp(), System.currentTimeMillis());
+			final DeviceRecord known;
+			try {
+				known = inventory.getDevice(imei);
+			} catch (final IOException e) {
+				throw new GjokiiException("unable to read inventory: " + e.getMessage());
+			}
+			final ArrayList<CertListItem> list;
+			if (known != null && known.hasSameCertificateList(device)) {
+				log("(I) CDF unchanged since last sync, not downloading it");
+				list = null;
+			} else {
+				list = listCertificates();
+			}
+			try {
+				if (list != null) {
+					inventory.put(device, list);
+				} else {
+					inventory.putDevice(device);
+				}
+			} catch (final IOException e) {
+				throw new GjokiiException("unable to update inventory: " + e.getMessage());
+			}
+			success = true;
+			return device;
+		} finally {
+			endOperation(success);
+		}
+	}
+
+	/**
+	 * Wait until a prefetch started with {@link #prefetchCertificateList()}
+	 * is done.
+	 */
+	private void awaitPrefetch() throws GjokiiException {
+		final Thread t;
+		synchronized (this) {
+			t = prefetcher;
+		}
+		if (t == null || t == Thread.currentThread()) return;
+		try {
+			t.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GjokiiException("interrupted while waiting for the CDF prefetch");
+		}
+	}
+
+	/**
+	 * Get the CDF, from the prefetch if it is still current, otherwise from
+	 * the phone.
+	 * 
+	 * @return file handle to certificate list file (CDF)
+	 * @throws GjokiiException
+	 */
+	private File downloadCertificateListFile() throws GjokiiException {
+		final Prefetch p = takePrefetch();
+		if (p != null) return p.file;
 		log("(I) downloading CDF from the phone...");
 		File f = null;
 		/* get the current certificate directory file */
@@ -69,55 +511,131 @@ public class NokiCert extends Gjokii {
 	}
 
 	/**
-	 * Install a X.509 certificate on the phone.
+	 * Get a parser for a CDF expecting the byte order found in this phone's
+	 * CDF before, so a CDF without entries gets new entries of the right
+	 * byte order.
+	 */
+	private CertListParser newCertListParser(final File f) {
+		final DeviceProfile profile = getDeviceProfile();
+		return new CertListParser(f, profile != null && Boolean.parseBoolean(profile.getProperty(CDF_LITTLE_ENDIAN)));
+	}
+
+	/**
+	 * Parse a CDF and remember its byte order in the device profile, if it
+	 * had entries to tell.
 	 * 
-	 * @param certFilePathName the full path name of the certificate file
-	 * @param certUsage the certificate usage bits for this certificate
-	 * @throws GjokiiException if an error occurs
+	 * @return the entries
 	 */
-	public void installCertificate(final String certFilePathName, final int certUsage) throws GjokiiException {
-		final File f = getCertificateListFile();
-		final File derFile = NokiCertUtils.convertToDER(new File(certFilePathName));
-		getFile(CERT_DIR_FILE_PATH, f);
-		final CertListParser c = new CertListParser(f);
-		c.parse();
-		String subjectCN;
+	private ArrayList<CertListItem> parseCertificateList(final CertListParser c) throws GjokiiException {
+		final ArrayList<CertListItem> list = c.parse();
+		final DeviceProfile profile = getDeviceProfile();
+		if (profile != null && !list.isEmpty()) {
+			profile.setProperty(CDF_LITTLE_ENDIAN, String.valueOf(c.hasLittleEndianSizeBytes()));
+		}
+		return list;
+	}
 
-		/* add the new certificate to the certificate directory file */
+	/**
+	 * Read a downloaded file into memory.
+	 * 
+	 * @param f the file
+	 * @return the contents of the file
+	 * @throws GjokiiException if reading the file fails
+	 */
+	private byte[] readFile(final File f) throws GjokiiException {
+		RandomAccessFile in = null;
 		try {
-			final CertParser x = new CertParser(derFile);
-			subjectCN = x.getSubjectCommonName();
-			final byte[] certEntry = x.getCDFEntry(c.hasLittleEndianSizeBytes(), certUsage);
-			final FileOutputStream fos = new FileOutputStream(f, true);
-			fos.write(certEntry);
-			fos.flush();
-			fos.close();
-		} catch (final FileNotFoundException e) {
-			throw new GjokiiException("cannot find certificate directory file");
+			in = new RandomAccessFile(f, "r");
+			final byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
 		} catch (final IOException e) {
-			throw new GjokiiException(GjokiiException.INVALID_CERT_FILE, "not a cert file!");
+			throw new GjokiiException("unable to read downloaded file: " + e.getMessage());
+		} finally {
+			Utils.closeSliently(in);
 		}
-		/* upload the certificate */
-		final String certPath = "/predefhiddenfolder/certificates/auth/" + subjectCN;
-
-		log("(I) uploading certificate to the phone...");
-		putFile(certPath, derFile);
+	}
 
-		log("(I) uploading CDF to the phone...");
-		/* upload the new certificate directory file (CDF) */
-		putFile(CERT_DIR_FILE_PATH, f);
+	/**
+	 * Write a new certificate list file (CDF) containing only some of the
+	 * entries of an existing one.
+	 * 
+	 * @param f the existing CDF
+	 * @param keep the entries to copy, as parsed from <code>f</code>
+	 * @return the new CDF
+	 * @throws GjokiiException if reading or writing the file fails
+	 */
+	private File rewriteCertificateListFile(final File f, final ArrayList<CertListItem> keep) throws GjokiiException {
+		RandomAccessFile in = null;
+		FileOutputStream out = null;
+		try {
+			final File target = File.createTempFile("CDF", null);
+			in = new RandomAccessFile(f, "r");
+			out = new FileOutputStream(target);
+			for (final CertListItem item : keep) {
+				final byte[] entry = new byte[item.entryLength];
+				in.seek(item.entryOffset);
+				in.readFully(entry);
+				out.write(entry);
+			}
+			return target;
+		} catch (final IOException e) {
+			throw new GjokiiException("unable to rewrite certificate directory file");
+		} finally {
+			Utils.closeSliently(in);
+			Utils.closeSliently(out);
+		}
 	}
 
 	/**
-	 * Retrieve a (formatted) list of installed certificates and their SHA-1
-	 * hash.
+	 * Take the prefetched CDF, if any. It is only returned when the size and
+	 * time stamp of the CDF on the phone still match.
 	 * 
-	 * @return the list
+	 * @return the prefetched CDF, or null
 	 * @throws GjokiiException
 	 */
-	public ArrayList<CertListItem> listCertificates() throws GjokiiException {
-		final CertListParser c = new CertListParser(getCertificateListFile());
-		return c.parse();
+	private Prefetch takePrefetch() throws GjokiiException {
+		final Prefetch p;
+		synchronized (this) {
+			p = prefetched;
+			prefetched = null;
+		}
+		if (p == null) return null;
+		/* the cached entry could be older than the prefetch itself */
+		invalidateCache(CERT_DIR_FILE_PATH);
+		final DirectoryEntryInfo current = getEntryInfo(CERT_DIR_FILE_PATH);
+		if (current.getEntrySize() == p.info.getEntrySize()
+				&& current.getEntryTimeStamp() == p.info.getEntryTimeStamp()) {
+			log("(I) using prefetched CDF: " + p.file.getAbsolutePath());
+			return p;
+		}
+		p.file.delete();
+		return null;
+	}
+
+	/**
+	 * Receives the results of {@link NokiCert#inspectCertificates}.
+	 */
+	public interface InspectionListener {
+		/**
+		 * Called for every certificate file, on the thread that called
+		 * {@link NokiCert#inspectCertificates}.
+		 * 
+		 * @param result what was found out about the certificate
+		 */
+		void onInspected(CertInspection result);
+	}
+
+	private static final class Prefetch {
+		private final File file;
+		private final ArrayList<CertListItem> list;
+		private final DirectoryEntryInfo info;
+
+		private Prefetch(final File file, final ArrayList<CertListItem> list, final DirectoryEntryInfo info) {
+			this.file = file;
+			this.list = list;
+			this.info = info;
+		}
 	}
 
 }
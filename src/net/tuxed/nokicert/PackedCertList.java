@@ -0,0 +1,160 @@
+/*
+ *  This file is part of NokiCert.
+ *
+ *  NokiCert is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NokiCert is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with NokiCert.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.tuxed.nokicert;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import net.tuxed.misc.ByteReader;
+import net.tuxed.misc.ByteWriter;
+import net.tuxed.nokicert.CertListParser.CertListItem;
+
+/**
+ * A certificate list packed into a single byte array, e.g. to hand it to
+ * another process or activity without serializing every entry. Entries are
+ * only decoded when they are asked for.
+ * 
+ * The array starts with the number of entries and the offset of every entry.
+ * An entry holds the five 20 byte hashes, the key usage, and the length of
+ * the UTF-8 file name followed by the name itself.
+ */
+public final class PackedCertList extends AbstractList<CertListItem> implements RandomAccess {
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+	private static final int HASH_LENGTH = 20;
+	private static final int KEY_USAGE_OFFSET = 5 * HASH_LENGTH;
+	private static final int NAME_LENGTH_OFFSET = KEY_USAGE_OFFSET + 4;
+	private static final int NAME_OFFSET = NAME_LENGTH_OFFSET + 2;
+
+	private final byte[] packed;
+	private final ByteReader data;
+	private final int size;
+
+	/**
+	 * @param packed an array made by {@link #pack(List)}
+	 * @throws IllegalArgumentException if the array is too short for the
+	 *             entries it claims to hold
+	 */
+	public PackedCertList(final byte[] packed) {
+		this.packed = packed;
+		data = new ByteReader(packed, ByteOrder.BIG_ENDIAN);
+		if (packed.length < 4) throw new IllegalArgumentException("packed certificate list too short");
+		size = data.getInt(0);
+		if (size < 0 || 4 + size * 4L > packed.length)
+			throw new IllegalArgumentException("packed certificate list too short");
+	}
+
+	@Override
+	public CertListItem get(final int index) {
+		final int offset = getOffset(index);
+		return new CertListItem(decodeFileName(offset), decodeHash(offset, 0), decodeHash(offset, 1), decodeHash(
+				offset, 2), decodeHash(offset, 3), decodeHash(offset, 4), data.getInt(offset + KEY_USAGE_OFFSET));
+	}
+
+	/**
+	 * Get the file name of an entry without decoding the rest of it.
+	 * 
+	 * @param index the index of the entry
+	 * @return the file name
+	 */
+	public String getFileName(final int index) {
+		return decodeFileName(getOffset(index));
+	}
+
+	/**
+	 * Get the fingerprint of an entry without decoding the rest of it.
+	 * 
+	 * @param index the index of the entry
+	 * @return the SHA-1 fingerprint
+	 */
+	public byte[] getFingerprint(final int index) {
+		return decodeHash(getOffset(index), 0);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the packed list. The array is not copied.
+	 * 
+	 * @return the array, as taken by {@link #PackedCertList(byte[])}
+	 */
+	public byte[] toByteArray() {
+		return packed;
+	}
+
+	private String decodeFileName(final int offset) {
+		return data.getString(offset + NAME_OFFSET, data.getUnsignedShort(offset + NAME_LENGTH_OFFSET), NAME_CHARSET);
+	}
+
+	private byte[] decodeHash(final int offset, final int hash) {
+		final byte[] b = new byte[HASH_LENGTH];
+		System.arraycopy(packed, offset + hash * HASH_LENGTH, b, 0, HASH_LENGTH);
+		return b;
+	}
+
+	private int getOffset(final int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		return data.getInt(4 + index * 4);
+	}
+
+	/**
+	 * Pack a certificate list.
+	 * 
+	 * @param list the entries
+	 * @return the packed list
+	 */
+	public static byte[] pack(final List<CertListItem> list) {
+		final int count = list.size();
+		final byte[][] names = new byte[count][];
+		int length = 4 + count * 4;
+		for (int i = 0; i < count; i++) {
+			names[i] = list.get(i).fileName.getBytes(NAME_CHARSET);
+			length += NAME_OFFSET + names[i].length;
+		}
+		final ByteWriter w = new ByteWriter(length, ByteOrder.BIG_ENDIAN);
+		w.putInt(count);
+		int offset = 4 + count * 4;
+		for (int i = 0; i < count; i++) {
+			w.putInt(offset);
+			offset += NAME_OFFSET + names[i].length;
+		}
+		for (int i = 0; i < count; i++) {
+			final CertListItem item = list.get(i);
+			putHash(w, item.fingerprint);
+			putHash(w, item.hashOfModulus);
+			putHash(w, item.unknownField);
+			putHash(w, item.hashOfSubject);
+			putHash(w, item.hashOfIssuer);
+			w.putInt(item.keyUsage).putShort(names[i].length).putBytes(names[i]);
+		}
+		return w.getArray();
+	}
+
+	private static void putHash(final ByteWriter w, final byte[] hash) {
+		/* a missing hash is packed as zeros, every entry has the same layout */
+		if (hash != null && hash.length == HASH_LENGTH) {
+			w.putBytes(hash);
+		} else {
+			w.putZeros(HASH_LENGTH);
+		}
+	}
+}
@@ -1,27 +1,52 @@
 package org.mariotaku.anokicert.activity;
 
-import java.util.ArrayList;
-
-import net.tuxed.nokicert.CertListParser.CertListItem;
+import net.tuxed.nokicert.PackedCertList;
 
 import org.mariotaku.anokicert.Constants;
+import org.mariotaku.anokicert.R;
 import org.mariotaku.anokicert.adapter.DeviceCertListAdapter;
 
 import android.app.ListActivity;
 import android.os.Bundle;
+import android.view.Menu;
+import android.widget.SearchView;
+import android.widget.SearchView.OnQueryTextListener;
 
-public class DeviceCertListActivity extends ListActivity implements Constants {
+public class DeviceCertListActivity extends ListActivity implements Constants, OnQueryTextListener {
 
 	private DeviceCertListAdapter mAdapter;
 
+	@Override
+	public boolean onCreateOptionsMenu(final Menu menu) {
+		getMenuInflater().inflate(R.menu.cert_list, menu);
+		final SearchView search = (SearchView) menu.findItem(R.id.search).getActionView();
+		search.setQueryHint(getString(R.string.search_certificates_hint));
+		search.setOnQueryTextListener(this);
+		return true;
+	}
+
+	@Override
+	public boolean onQueryTextChange(final String newText) {
+		// Filtered off the UI thread, the list is updated when it is done.
+		mAdapter.getFilter().filter(newText);
+		return true;
+	}
+
+	@Override
+	public boolean onQueryTextSubmit(final String query) {
+		mAdapter.getFilter().filter(query);
+		return true;
+	}
+
 	@Override
 	protected void onCreate(final Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		@SuppressWarnings("unchecked")
-		final ArrayList<CertListItem> list = (ArrayList<CertListItem>) getIntent()
-				.getSerializableExtra(EXTRA_CERT_LIST);
+		// The list arrives packed, entries are decoded as their rows are shown.
+		final byte[] packed = getIntent().getByteArrayExtra(EXTRA_CERT_LIST);
 		mAdapter = new DeviceCertListAdapter(this);
-		mAdapter.addAll(list);
+		if (packed != null) {
+			mAdapter.setData(new PackedCertList(packed));
+		}
 		setListAdapter(mAdapter);
 	}
 
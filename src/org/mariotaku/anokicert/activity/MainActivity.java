@@ -8,10 +8,12 @@ import net.tuxed.gjokii.GjokiiException;
 import net.tuxed.nokicert.CertListParser.CertListItem;
 import net.tuxed.nokicert.CertParser;
 import net.tuxed.nokicert.NokiCertUtils;
+import net.tuxed.nokicert.PackedCertList;
 
 import org.mariotaku.anokicert.Constants;
 import org.mariotaku.anokicert.R;
 import org.mariotaku.anokicert.fragment.AlertDialogFragment;
+import org.mariotaku.anokicert.fragment.SessionFragment;
 import org.mariotaku.anokicert.util.AsyncNokiCertWrapper;
 import org.mariotaku.anokicert.util.AsyncNokiCertWrapper.TaskListener;
 
@@ -43,6 +45,7 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 	private File mCertFile;
 	private boolean mHasRunningTask;
 
+	private SessionFragment mSession;
 	private AsyncNokiCertWrapper mNokiCert;
 
 	private BluetoothAdapter mBluetoothAdapter;
@@ -139,7 +142,8 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 					mBluetoothDevice = data.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 					mEmptyView.setVisibility(View.GONE);
 					mContentScroller.setVisibility(View.VISIBLE);
-					mNokiCert = new AsyncNokiCertWrapper(mBluetoothDevice);
+					mSession.connect(mBluetoothDevice);
+					mNokiCert = mSession.getNokiCert();
 					showDeviceInfo();
 				} else if (mNokiCert == null && (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled())) {
 					mEmptyView.setVisibility(View.VISIBLE);
@@ -170,6 +174,8 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 		mActionBar = getActionBar();
 		mContentScroller.setVisibility(View.GONE);
 		mEmptyView.setVisibility(View.VISIBLE);
+		// Kept across configuration changes, so running tasks keep their connection.
+		mSession = SessionFragment.get(this);
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 		if (mBluetoothAdapter == null) {
 			// Device does not support Bluetooth
@@ -179,8 +185,11 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 		}
 		if (savedInstanceState != null) {
 			mBluetoothDevice = savedInstanceState.getParcelable(EXTRA_DEVICE);
-
-			mNokiCert = new AsyncNokiCertWrapper(mBluetoothDevice);
+			if (mSession.getNokiCert() == null && mBluetoothDevice != null) {
+				// The process was restarted, connect again.
+				mSession.connect(mBluetoothDevice);
+			}
+			mNokiCert = mSession.getNokiCert();
 			mCertFile = (File) savedInstanceState.getSerializable(EXTRA_FILE);
 			if (mCertFile.isFile()) {
 				mInstallCertificateContainer.setVisibility(View.VISIBLE);
@@ -232,12 +241,12 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 		if (((CheckBox) findViewById(R.id.server_authentication)).isChecked()) {
 			keyUsage |= NokiCertUtils.SERVER_AUTHENTIC;
 		}
-		mNokiCert.installCert(certFile, keyUsage, new InstallCertListener(this));
+		mNokiCert.installCert(certFile, keyUsage, new InstallCertListener(mSession));
 	}
 
 	private void listCertificates() {
 		if (mNokiCert == null || hasRunningTask()) return;
-		mNokiCert.listCertificates(new ListCertsListener(this));
+		mNokiCert.listCertificates(new ListCertsListener(mSession));
 	}
 
 	private void setHasRunningTask(final boolean hasRunningTask) {
@@ -259,7 +268,7 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 
 	private void showDeviceInfo() {
 		if (mNokiCert == null || hasRunningTask()) return;
-		mNokiCert.getDeviceInfo(new GetPhoneInfoListener(this));
+		mNokiCert.getDeviceInfo(new GetPhoneInfoListener(mSession));
 
 	}
 
@@ -276,6 +285,18 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 					message = getString(R.string.invalid_cert_message);
 					break;
 				}
+				case GjokiiException.TIMEOUT: {
+					message = getString(R.string.timeout_message);
+					break;
+				}
+				case GjokiiException.PROTOCOL_ERROR: {
+					message = getString(R.string.protocol_error_message);
+					break;
+				}
+				case GjokiiException.LINK_LOST: {
+					message = getString(R.string.link_lost_message);
+					break;
+				}
 				default: {
 					message = ge.getMessage();
 					break;
@@ -298,84 +319,101 @@ public class MainActivity extends Activity implements Constants, OnClickListener
 		}
 	}
 
-	private static class GetPhoneInfoListener implements TaskListener<DeviceInfo> {
-
-		private final MainActivity mActivity;
-
-		public GetPhoneInfoListener(final MainActivity activity) {
-			mActivity = activity;
-		}
+	private static class GetPhoneInfoListener extends SessionTaskListener<DeviceInfo> {
 
-		@Override
-		public void onError(final Exception reason) {
-			mActivity.setHasRunningTask(false);
-			mActivity.showErrorDialog(reason, true);
+		private GetPhoneInfoListener(final SessionFragment session) {
+			super(session);
 		}
 
 		@Override
-		public void onFinished(final DeviceInfo result) {
-			mActivity.setHasRunningTask(false);
-			mActivity.showPhoneInfo(result);
+		void onError(final MainActivity activity, final Exception reason) {
+			activity.showErrorDialog(reason, true);
 		}
 
 		@Override
-		public void onStart() {
-			mActivity.setHasRunningTask(true);
+		void onFinished(final MainActivity activity, final DeviceInfo result) {
+			activity.showPhoneInfo(result);
 		}
 
 	}
 
-	private static class InstallCertListener implements TaskListener<Void> {
-		private final MainActivity mActivity;
+	private static class InstallCertListener extends SessionTaskListener<Void> {
 
-		private InstallCertListener(final MainActivity activity) {
-			mActivity = activity;
+		private InstallCertListener(final SessionFragment session) {
+			super(session);
 		}
 
 		@Override
-		public void onError(final Exception reason) {
-			mActivity.setHasRunningTask(false);
-			mActivity.showErrorDialog(reason, false);
+		void onError(final MainActivity activity, final Exception reason) {
+			activity.showErrorDialog(reason, false);
 		}
 
 		@Override
-		public void onFinished(final Void result) {
-			mActivity.setHasRunningTask(false);
-			AlertDialogFragment.show(mActivity, R.string.successfully_installed,
-					R.string.successfully_installed_message, false, mActivity.getFragmentManager());
+		void onFinished(final MainActivity activity, final Void result) {
+			AlertDialogFragment.show(activity, R.string.successfully_installed,
+					R.string.successfully_installed_message, false, activity.getFragmentManager());
+		}
+	}
+
+	private static class ListCertsListener extends SessionTaskListener<ArrayList<CertListItem>> {
+
+		private ListCertsListener(final SessionFragment session) {
+			super(session);
 		}
 
 		@Override
-		public void onStart() {
-			mActivity.setHasRunningTask(true);
+		void onError(final MainActivity activity, final Exception reason) {
+			activity.showErrorDialog(reason, false);
+		}
+
+		@Override
+		void onFinished(final MainActivity activity, final ArrayList<CertListItem> result) {
+			final Intent intent = new Intent(activity, DeviceCertListActivity.class);
+			// Packed, a serialized list of a few hundred entries is too large for an intent.
+			intent.putExtra(EXTRA_CERT_LIST, PackedCertList.pack(result));
+			activity.startActivity(intent);
 		}
 	}
 
-	private static class ListCertsListener implements TaskListener<ArrayList<CertListItem>> {
-		private final MainActivity mActivity;
+	/**
+	 * Reports to the activity currently showing the session, which after a
+	 * configuration change is not the one that started the task. Nothing is
+	 * reported once the activity is finished.
+	 */
+	private static abstract class SessionTaskListener<R> implements TaskListener<R> {
+
+		private final SessionFragment mSession;
 
-		private ListCertsListener(final MainActivity activity) {
-			mActivity = activity;
+		SessionTaskListener(final SessionFragment session) {
+			mSession = session;
 		}
 
 		@Override
-		public void onError(final Exception reason) {
-			mActivity.setHasRunningTask(false);
-			mActivity.showErrorDialog(reason, false);
+		public final void onError(final Exception reason) {
+			final MainActivity activity = (MainActivity) mSession.getActivity();
+			if (activity == null) return;
+			activity.setHasRunningTask(false);
+			onError(activity, reason);
 		}
 
 		@Override
-		public void onFinished(final ArrayList<CertListItem> result) {
-			mActivity.setHasRunningTask(false);
-			final Intent intent = new Intent(mActivity, DeviceCertListActivity.class);
-			intent.putExtra(EXTRA_CERT_LIST, result);
-			mActivity.startActivity(intent);
+		public final void onFinished(final R result) {
+			final MainActivity activity = (MainActivity) mSession.getActivity();
+			if (activity == null) return;
+			activity.setHasRunningTask(false);
+			onFinished(activity, result);
 		}
 
 		@Override
-		public void onStart() {
-			mActivity.setHasRunningTask(true);
+		public final void onStart() {
+			final MainActivity activity = (MainActivity) mSession.getActivity();
+			if (activity == null) return;
+			activity.setHasRunningTask(true);
 		}
+
+		abstract void onError(MainActivity activity, Exception reason);
+
+		abstract void onFinished(MainActivity activity, R result);
 	}
 
 }
@@ -1,33 +1,223 @@
 package org.mariotaku.anokicert.adapter;
 
+import java.util.Collections;
+import java.util.List;
+
 import net.tuxed.nokicert.CertListParser.CertListItem;
+import net.tuxed.nokicert.NokiCertUtils;
 
+import org.mariotaku.anokicert.R;
+import org.mariotaku.anokicert.model.CertListRow;
+import org.mariotaku.anokicert.util.CertListIndex;
 import org.mariotaku.anokicert.util.Utils;
 
 import android.content.Context;
-import android.graphics.Typeface;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
 import android.widget.TextView;
 
-public class DeviceCertListAdapter extends ArrayAdapter<CertListItem> {
+/**
+ * Shows a certificate list without copying it, so entries of a
+ * {@link net.tuxed.nokicert.PackedCertList} are only decoded when their row is
+ * shown. Every entry is turned into a {@link CertListRow} once.
+ * 
+ * The filter searches file names and fingerprints by prefix. The first search
+ * builds the rows of all entries and a {@link CertListIndex} on the filter
+ * thread; later searches only use the index.
+ */
+public class DeviceCertListAdapter extends BaseAdapter implements Filterable {
+
+	private final LayoutInflater mInflater;
+	private final String[] mKeyUsageNames;
+	private final CertListFilter mFilter = new CertListFilter();
+
+	private volatile Rows mRows;
+	private int[] mVisible;
 
 	public DeviceCertListAdapter(final Context context) {
-		super(context, android.R.layout.simple_list_item_2);
+		mInflater = LayoutInflater.from(context);
+		mKeyUsageNames = getKeyUsageNames(context);
+		mRows = new Rows(Collections.<CertListItem> emptyList(), mKeyUsageNames);
+	}
+
+	@Override
+	public int getCount() {
+		return mVisible != null ? mVisible.length : mRows.size();
+	}
+
+	@Override
+	public Filter getFilter() {
+		return mFilter;
+	}
+
+	@Override
+	public CertListRow getItem(final int position) {
+		return mRows.get(mVisible != null ? mVisible[position] : position);
+	}
+
+	/**
+	 * @return the position of the entry in the certificate list
+	 */
+	@Override
+	public long getItemId(final int position) {
+		return mVisible != null ? mVisible[position] : position;
 	}
 
 	@Override
 	public View getView(final int position, final View convertView, final ViewGroup parent) {
-		final View view = super.getView(position, convertView, parent);
-		final CertListItem item = getItem(position);
-		final TextView text1 = (TextView) view.findViewById(android.R.id.text1);
-		final TextView text2 = (TextView) view.findViewById(android.R.id.text2);
-		text1.setText(item.getFileName());
-		text1.setSingleLine(true);
-		text2.setTypeface(Typeface.MONOSPACE);
-		text2.setSingleLine(true);
-		text2.setText(Utils.hexEncode(item.getFingerprint()));
+		final View view;
+		final ViewHolder holder;
+		if (convertView != null) {
+			view = convertView;
+			holder = (ViewHolder) view.getTag();
+		} else {
+			view = mInflater.inflate(R.layout.cert_list_item, null);
+			holder = new ViewHolder(view);
+			view.setTag(holder);
+		}
+		final CertListRow row = getItem(position);
+		holder.file_name.setText(row.getFileName());
+		holder.key_usage.setText(row.getKeyUsage());
+		holder.fingerprint.setText(row.getFingerprint());
 		return view;
 	}
 
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	public void setData(final List<CertListItem> data) {
+		mRows = new Rows(data != null ? data : Collections.<CertListItem> emptyList(), mKeyUsageNames);
+		mVisible = null;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * The names of all combinations of the key usages known, indexed by the
+	 * key usage bits.
+	 */
+	private static String[] getKeyUsageNames(final Context context) {
+		final String[] usages = { context.getString(R.string.applications_signing),
+				context.getString(R.string.cross_certification), context.getString(R.string.server_authentication) };
+		final int[] bits = { NokiCertUtils.APPS_SIGNING, NokiCertUtils.CROSS_CERTIFICATION,
+				NokiCertUtils.SERVER_AUTHENTIC };
+		final String[] names = new String[(NokiCertUtils.APPS_SIGNING | NokiCertUtils.CROSS_CERTIFICATION
+				| NokiCertUtils.SERVER_AUTHENTIC) + 1];
+		for (int keyUsage = 0; keyUsage < names.length; keyUsage++) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < bits.length; i++) {
+				if ((keyUsage & bits[i]) == 0) {
+					continue;
+				}
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(usages[i]);
+			}
+			names[keyUsage] = sb.toString();
+		}
+		return names;
+	}
+
+	private final class CertListFilter extends Filter {
+
+		@Override
+		protected FilterResults performFiltering(final CharSequence constraint) {
+			final Rows rows = mRows;
+			final FilterResults results = new FilterResults();
+			if (!TextUtils.isEmpty(constraint)) {
+				final int[] visible = rows.getIndex().search(constraint);
+				results.values = new FilteredRows(rows, visible);
+				results.count = visible.length;
+			} else {
+				results.values = new FilteredRows(rows, null);
+				results.count = rows.size();
+			}
+			return results;
+		}
+
+		@Override
+		protected void publishResults(final CharSequence constraint, final FilterResults results) {
+			final FilteredRows filtered = (FilteredRows) results.values;
+			// The list was replaced while filtering.
+			if (filtered.rows != mRows) return;
+			mVisible = filtered.visible;
+			notifyDataSetChanged();
+		}
+	}
+
+	private static final class FilteredRows {
+		private final Rows rows;
+		private final int[] visible;
+
+		private FilteredRows(final Rows rows, final int[] visible) {
+			this.rows = rows;
+			this.visible = visible;
+		}
+	}
+
+	/**
+	 * The rows of one certificate list, made when first asked for. Used by
+	 * both the UI thread and the filter thread.
+	 */
+	private static final class Rows {
+		private final List<CertListItem> items;
+		private final String[] keyUsageNames;
+		private final CertListRow[] rows;
+		private CertListIndex index;
+
+		private Rows(final List<CertListItem> items, final String[] keyUsageNames) {
+			this.items = items;
+			this.keyUsageNames = keyUsageNames;
+			rows = new CertListRow[items.size()];
+		}
+
+		synchronized CertListRow get(final int position) {
+			CertListRow row = rows[position];
+			if (row == null) {
+				final CertListItem item = items.get(position);
+				// Usages not known are not named.
+				final String keyUsage = keyUsageNames[item.getKeyUsage() & keyUsageNames.length - 1];
+				row = new CertListRow(position, item.getFileName(), Utils.hexEncode(item.getFingerprint()), keyUsage);
+				rows[position] = row;
+			}
+			return row;
+		}
+
+		CertListIndex getIndex() {
+			synchronized (this) {
+				if (index != null) return index;
+			}
+			final CertListRow[] all = new CertListRow[rows.length];
+			for (int i = 0; i < all.length; i++) {
+				all[i] = get(i);
+			}
+			final CertListIndex built = new CertListIndex(all);
+			synchronized (this) {
+				index = built;
+			}
+			return built;
+		}
+
+		int size() {
+			return rows.length;
+		}
+	}
+
+	private static final class ViewHolder {
+		private final TextView file_name, key_usage, fingerprint;
+
+		private ViewHolder(final View view) {
+			file_name = (TextView) view.findViewById(R.id.file_name);
+			key_usage = (TextView) view.findViewById(R.id.key_usage);
+			fingerprint = (TextView) view.findViewById(R.id.fingerprint);
+		}
+	}
+
 }
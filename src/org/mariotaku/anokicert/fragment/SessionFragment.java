@@ -0,0 +1,126 @@
+package org.mariotaku.anokicert.fragment;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.tuxed.gjokii.DeviceProfileStore;
+import net.tuxed.gjokii.metrics.MetricsExporter;
+import net.tuxed.gjokii.metrics.MetricsRegistry;
+import net.tuxed.gjokii.trace.TraceRecorder;
+import net.tuxed.misc.Utils;
+
+import org.mariotaku.anokicert.util.AsyncNokiCertWrapper;
+import org.mariotaku.anokicert.util.SQLiteCertInventory;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * Holds the connection to the phone and the files and database that go with
+ * it. The fragment is retained, so they outlive an activity recreated for a
+ * configuration change and are only closed once the activity is gone for good.
+ */
+public class SessionFragment extends Fragment {
+
+	private static final String TAG = SessionFragment.class.getName();
+	private static final String TRACE_FILE_NAME = "gjokii.trace";
+	private static final String METRICS_FILE_NAME = "gjokii-metrics.json";
+	private static final long METRICS_EXPORT_INTERVAL = 60 * 1000;
+	private static final String PROFILES_FILE_NAME = "device-profiles.properties";
+
+	private AsyncNokiCertWrapper mNokiCert;
+	private TraceRecorder mTracer;
+	private final MetricsRegistry mMetrics = new MetricsRegistry();
+	private MetricsExporter mMetricsExporter;
+	private DeviceProfileStore mProfiles;
+	private SQLiteCertInventory mInventory;
+
+	/**
+	 * Connect to another phone, closing the connection to the previous one.
+	 * The connection is set up by the first task using it.
+	 */
+	public void connect(final BluetoothDevice device) {
+		Utils.closeSliently(mNokiCert);
+		mNokiCert = new AsyncNokiCertWrapper(device, mTracer);
+		mNokiCert.setMetricsListener(mMetrics);
+		mNokiCert.setDeviceProfileStore(mProfiles);
+		mNokiCert.setCertInventory(mInventory);
+		mNokiCert.setPrefetchCertificateList(true);
+	}
+
+	/**
+	 * @return the connection set up with {@link #connect(BluetoothDevice)}, or
+	 *         null if there is none
+	 */
+	public AsyncNokiCertWrapper getNokiCert() {
+		return mNokiCert;
+	}
+
+	@Override
+	public void onAttach(final Activity activity) {
+		super.onAttach(activity);
+		// Also after the process was restarted, when the fragment manager creates the fragment.
+		if (mInventory == null) {
+			// The database must not keep the first activity alive.
+			open(activity.getApplicationContext());
+		}
+	}
+
+	@Override
+	public void onCreate(final Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setRetainInstance(true);
+	}
+
+	@Override
+	public void onDestroy() {
+		if (mMetricsExporter != null) {
+			try {
+				mMetricsExporter.stop();
+			} catch (final IOException e) {
+				// Losing the last snapshot is not worth bothering the user.
+			}
+		}
+		Utils.closeSliently(mNokiCert);
+		Utils.closeSliently(mTracer);
+		if (mInventory != null) {
+			mInventory.close();
+		}
+		super.onDestroy();
+	}
+
+	private void open(final Context context) {
+		try {
+			mTracer = new TraceRecorder(new File(context.getCacheDir(), TRACE_FILE_NAME));
+		} catch (final IOException e) {
+			// Tracing is optional, go on without it.
+			mTracer = null;
+		}
+		mMetricsExporter = new MetricsExporter(mMetrics, new File(context.getCacheDir(), METRICS_FILE_NAME),
+				MetricsExporter.FORMAT_JSON);
+		mMetricsExporter.start(METRICS_EXPORT_INTERVAL);
+		mProfiles = new DeviceProfileStore(new File(context.getFilesDir(), PROFILES_FILE_NAME));
+		mInventory = new SQLiteCertInventory(context);
+	}
+
+	/**
+	 * Get the session of an activity, creating it when the activity is
+	 * started for the first time.
+	 */
+	public static SessionFragment get(final Activity activity) {
+		final FragmentManager fm = activity.getFragmentManager();
+		SessionFragment f = (SessionFragment) fm.findFragmentByTag(TAG);
+		if (f == null) {
+			f = new SessionFragment();
+			fm.beginTransaction().add(f, TAG).commit();
+			// Attach it now, the activity uses it right away.
+			fm.executePendingTransactions();
+		}
+		return f;
+	}
+
+}
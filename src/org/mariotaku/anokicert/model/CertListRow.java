@@ -0,0 +1,44 @@
+package org.mariotaku.anokicert.model;
+
+/**
+ * What a row of the certificate list shows, worked out once per entry so
+ * binding a row only sets text.
+ */
+public final class CertListRow {
+
+	private final int mPosition;
+	private final String mFileName, mFingerprint, mKeyUsage;
+
+	public CertListRow(final int position, final String fileName, final String fingerprint, final String keyUsage) {
+		mPosition = position;
+		mFileName = fileName;
+		mFingerprint = fingerprint;
+		mKeyUsage = keyUsage;
+	}
+
+	public String getFileName() {
+		return mFileName;
+	}
+
+	/**
+	 * @return the fingerprint as upper case hex digits separated by ":"
+	 */
+	public String getFingerprint() {
+		return mFingerprint;
+	}
+
+	/**
+	 * @return the names of the key usages, separated by ", "
+	 */
+	public String getKeyUsage() {
+		return mKeyUsage;
+	}
+
+	/**
+	 * @return the position of the entry in the certificate list
+	 */
+	public int getPosition() {
+		return mPosition;
+	}
+
+}
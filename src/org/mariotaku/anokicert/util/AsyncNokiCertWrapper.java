@@ -1,13 +1,21 @@
 package org.mariotaku.anokicert.util;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import net.tuxed.gjokii.DeviceProfile;
+import net.tuxed.gjokii.DeviceProfileStore;
 import net.tuxed.gjokii.Gjokii;
 import net.tuxed.gjokii.Gjokii.DeviceInfo;
+import net.tuxed.gjokii.GjokiiException;
+import net.tuxed.gjokii.metrics.MetricsListener;
+import net.tuxed.gjokii.trace.TraceRecorder;
 import net.tuxed.misc.Utils;
+import net.tuxed.nokicert.CertInventory;
 import net.tuxed.nokicert.CertListParser.CertListItem;
+import net.tuxed.nokicert.DeviceRecord;
 import net.tuxed.nokicert.NokiCert;
 
 import org.mariotaku.anokicert.BuildConfig;
@@ -15,24 +23,158 @@ import org.mariotaku.anokicert.BuildConfig;
 import android.bluetooth.BluetoothDevice;
 import android.os.AsyncTask;
 
-public class AsyncNokiCertWrapper {
+public class AsyncNokiCertWrapper implements Closeable {
+
+	/**
+	 * A connection unused for this long is checked before it is used again.
+	 */
+	private static final long SESSION_CHECK_INTERVAL = 10 * 1000;
 
 	private final BluetoothDevice mDevice;
+	private final TraceRecorder mTracer;
+	private MetricsListener mMetrics;
+	private DeviceProfileStore mProfiles;
+	private CertInventory mInventory;
+	private boolean mPrefetchCertificateList;
+
+	/* held while connecting, so close() does not have to wait for it */
+	private final Object mConnectLock = new Object();
+	private NokiCert mSession;
+	private long mSessionLastUsed;
+	private boolean mClosed;
 
 	public AsyncNokiCertWrapper(final BluetoothDevice device) {
+		this(device, null);
+	}
+
+	public AsyncNokiCertWrapper(final BluetoothDevice device, final TraceRecorder tracer) {
 		mDevice = device;
+		mTracer = tracer;
+	}
+
+	/**
+	 * Close the connection for good. A task still talking to the phone fails,
+	 * and one still connecting fails as soon as it is connected.
+	 */
+	@Override
+	public void close() {
+		final NokiCert session;
+		synchronized (this) {
+			mClosed = true;
+			session = mSession;
+			mSession = null;
+		}
+		Utils.closeSliently(session);
 	}
 
 	public void getDeviceInfo(final TaskListener<Gjokii.DeviceInfo> listener) {
-		new GetDeviceInfoTask(mDevice, listener).execute();
+		new GetDeviceInfoTask(this, listener).execute();
 	}
 
 	public void installCert(final File certFile, final int keyUsage, final TaskListener<Void> listener) {
-		new InstallCertificateTask(mDevice, certFile, keyUsage, listener).execute();
+		new InstallCertificateTask(this, mInventory, certFile, keyUsage, listener).execute();
 	}
 
 	public void listCertificates(final TaskListener<ArrayList<CertListItem>> taskListener) {
-		new ListCertificatesTask(mDevice, taskListener).execute();
+		new ListCertificatesTask(this, mInventory, taskListener).execute();
+	}
+
+	/**
+	 * Keep the certificate list of the phone in an inventory. Listing and
+	 * installing certificates bring it up to date.
+	 */
+	public void setCertInventory(final CertInventory inventory) {
+		mInventory = inventory;
+	}
+
+	/**
+	 * Remember what is learned about the phone across connections, so the
+	 * next connection does not have to find it out again.
+	 */
+	public void setDeviceProfileStore(final DeviceProfileStore profiles) {
+		mProfiles = profiles;
+	}
+
+	public void setMetricsListener(final MetricsListener metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Download the certificate list in the background as soon as a connection
+	 * is set up, so listing or installing certificates later does not have to
+	 * wait for it.
+	 */
+	public void setPrefetchCertificateList(final boolean prefetch) {
+		mPrefetchCertificateList = prefetch;
+	}
+
+	/**
+	 * Get the connection to the phone, reusing the one of the previous task
+	 * when it still works.
+	 */
+	NokiCert openSession() throws GjokiiException {
+		synchronized (mConnectLock) {
+			NokiCert session;
+			final long lastUsed;
+			synchronized (this) {
+				if (mClosed) throw new GjokiiException(GjokiiException.CONNECTION_PROBLEM, "connection closed");
+				session = mSession;
+				lastUsed = mSessionLastUsed;
+			}
+			if (session != null && System.currentTimeMillis() - lastUsed > SESSION_CHECK_INTERVAL) {
+				try {
+					session.getIMEI();
+				} catch (final GjokiiException e) {
+					// The phone dropped the idle connection, set up a new one.
+					dropSession();
+					session = null;
+				}
+			}
+			if (session == null) {
+				final DeviceProfile profile = mProfiles != null ? mProfiles.get(mDevice.getAddress()) : null;
+				session = new NokiCert(mDevice, BuildConfig.DEBUG, mTracer, profile);
+				session.setMetricsListener(mMetrics);
+				synchronized (this) {
+					if (mClosed) {
+						Utils.closeSliently(session);
+						throw new GjokiiException(GjokiiException.CONNECTION_PROBLEM, "connection closed");
+					}
+					mSession = session;
+				}
+				if (mPrefetchCertificateList) {
+					session.prefetchCertificateList();
+				}
+			}
+			return session;
+		}
+	}
+
+	void releaseSession(final boolean failed) {
+		if (failed) {
+			dropSession();
+		}
+		synchronized (this) {
+			mSessionLastUsed = System.currentTimeMillis();
+		}
+		if (mProfiles != null) {
+			try {
+				mProfiles.save();
+			} catch (final IOException e) {
+				// The profile only saves time on the next connection.
+			}
+		}
+	}
+
+	/**
+	 * Close the connection of the last task, the next task sets up a new one.
+	 */
+	private void dropSession() {
+		final NokiCert session;
+		synchronized (this) {
+			session = mSession;
+			mSession = null;
+		}
+		Utils.closeSliently(session);
 	}
 
 	public interface DeviceConnectionListener {
@@ -55,10 +197,10 @@ public class AsyncNokiCertWrapper {
 	static abstract class BaseTask<L extends TaskListener<R>, R> extends AsyncTask<Void, Void, BaseTask.Result<R>> {
 
 		private final L mListener;
-		private final BluetoothDevice mDevice;
+		private final AsyncNokiCertWrapper mWrapper;
 
-		BaseTask(final BluetoothDevice device, final L listener) {
-			mDevice = device;
+		BaseTask(final AsyncNokiCertWrapper wrapper, final L listener) {
+			mWrapper = wrapper;
 			mListener = listener;
 		}
 
@@ -66,14 +208,19 @@ public class AsyncNokiCertWrapper {
 
 		@Override
 		protected final Result<R> doInBackground(final Void... params) {
-			NokiCert nokicert = null;
+			boolean failed = true;
 			try {
-				nokicert = new NokiCert(mDevice, BuildConfig.DEBUG);
-				return new Result<R>(doInBackground(nokicert), null);
+				final Result<R> result = new Result<R>(doInBackground(mWrapper.openSession()), null);
+				failed = false;
+				return result;
 			} catch (final IOException e) {
 				return new Result<R>(null, e);
+			} catch (final RuntimeException e) {
+				// E.g. the inventory was closed while the task was running.
+				return new Result<R>(null, e);
 			} finally {
-				Utils.closeSliently(nokicert);
+				// Keep the connection for the next task unless it is in doubt.
+				mWrapper.releaseSession(failed);
 			}
 		}
 
@@ -115,8 +262,8 @@ public class AsyncNokiCertWrapper {
 
 	static class GetDeviceInfoTask extends BaseTask<TaskListener<Gjokii.DeviceInfo>, Gjokii.DeviceInfo> {
 
-		GetDeviceInfoTask(final BluetoothDevice device, final TaskListener<DeviceInfo> listener) {
-			super(device, listener);
+		GetDeviceInfoTask(final AsyncNokiCertWrapper wrapper, final TaskListener<DeviceInfo> listener) {
+			super(wrapper, listener);
 		}
 
 		@Override
@@ -130,10 +277,12 @@ public class AsyncNokiCertWrapper {
 
 		private final int mKeyUsage;
 		private final File mCertFile;
+		private final CertInventory mInventory;
 
-		InstallCertificateTask(final BluetoothDevice device, final File certFile, final int keyUsage,
-				final TaskListener<Void> listener) {
-			super(device, listener);
+		InstallCertificateTask(final AsyncNokiCertWrapper wrapper, final CertInventory inventory,
+				final File certFile, final int keyUsage, final TaskListener<Void> listener) {
+			super(wrapper, listener);
+			mInventory = inventory;
 			mCertFile = certFile;
 			mKeyUsage = keyUsage;
 		}
@@ -141,6 +290,9 @@ public class AsyncNokiCertWrapper {
 		@Override
 		protected Void doInBackground(final NokiCert nokicert) throws IOException {
 			nokicert.installCertificate(mCertFile.getAbsolutePath(), mKeyUsage);
+			if (mInventory != null) {
+				nokicert.syncInventory(mInventory);
+			}
 			return null;
 		}
 
@@ -148,13 +300,20 @@ public class AsyncNokiCertWrapper {
 
 	static class ListCertificatesTask extends BaseTask<TaskListener<ArrayList<CertListItem>>, ArrayList<CertListItem>> {
 
-		ListCertificatesTask(final BluetoothDevice device, final TaskListener<ArrayList<CertListItem>> listener) {
-			super(device, listener);
+		private final CertInventory mInventory;
+
+		ListCertificatesTask(final AsyncNokiCertWrapper wrapper, final CertInventory inventory,
+				final TaskListener<ArrayList<CertListItem>> listener) {
+			super(wrapper, listener);
+			mInventory = inventory;
 		}
 
 		@Override
 		protected ArrayList<CertListItem> doInBackground(final NokiCert nokicert) throws IOException {
-			return nokicert.listCertificates();
+			if (mInventory == null) return nokicert.listCertificates();
+			// Only downloads the list when it changed since the last sync.
+			final DeviceRecord device = nokicert.syncInventory(mInventory);
+			return mInventory.getCertificates(device.getIMEI());
 		}
 
 	}
@@ -0,0 +1,125 @@
+package org.mariotaku.anokicert.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+import org.mariotaku.anokicert.model.CertListRow;
+
+/**
+ * Finds the rows of a certificate list whose file name or fingerprint starts
+ * with a given text. Names and fingerprints are kept sorted, so a search is a
+ * binary search plus the matches instead of a pass over all rows.
+ */
+public final class CertListIndex {
+
+	private final int mRowCount;
+	private final Keys mFileNames, mFingerprints;
+
+	/**
+	 * @param rows the rows, the row at index i having position i
+	 */
+	public CertListIndex(final CertListRow[] rows) {
+		mRowCount = rows.length;
+		final String[] names = new String[rows.length], fingerprints = new String[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			names[i] = normalizeName(rows[i].getFileName());
+			fingerprints[i] = normalizeFingerprint(rows[i].getFingerprint());
+		}
+		mFileNames = new Keys(names);
+		mFingerprints = new Keys(fingerprints);
+	}
+
+	/**
+	 * Find the rows matching a text, ignoring case. The text matches a
+	 * fingerprint with or without the separators between the bytes.
+	 * 
+	 * @param prefix the text the file name or fingerprint starts with
+	 * @return the positions of the matching rows, in ascending order
+	 */
+	public int[] search(final CharSequence prefix) {
+		final boolean[] matches = new boolean[mRowCount];
+		int count = mFileNames.mark(normalizeName(prefix), matches);
+		final String hex = normalizeFingerprint(prefix);
+		if (hex.length() > 0) {
+			count += mFingerprints.mark(hex, matches);
+		}
+		final int[] result = new int[count];
+		for (int i = 0, j = 0; j < count; i++) {
+			if (matches[i]) {
+				result[j++] = i;
+			}
+		}
+		return result;
+	}
+
+	private static String normalizeFingerprint(final CharSequence s) {
+		final StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0, j = s.length(); i < j; i++) {
+			final char c = Character.toLowerCase(s.charAt(i));
+			if (c >= '0' && c <= '9' || c >= 'a' && c <= 'f') {
+				sb.append(c);
+			} else if (c != ':' && c != ' ') return "";
+		}
+		return sb.toString();
+	}
+
+	private static String normalizeName(final CharSequence s) {
+		return s.toString().toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Sorted keys with the row each one belongs to.
+	 */
+	private static final class Keys {
+
+		private final String[] mKeys;
+		private final int[] mRows;
+
+		Keys(final String[] keys) {
+			final Integer[] order = new Integer[keys.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(final Integer lhs, final Integer rhs) {
+					return keys[lhs].compareTo(keys[rhs]);
+				}
+			});
+			mKeys = new String[keys.length];
+			mRows = new int[keys.length];
+			for (int i = 0; i < order.length; i++) {
+				mKeys[i] = keys[order[i]];
+				mRows[i] = order[i];
+			}
+		}
+
+		/**
+		 * Mark the rows of the keys starting with a prefix.
+		 * 
+		 * @return the number of rows marked that were not marked before
+		 */
+		int mark(final String prefix, final boolean[] matches) {
+			int low = 0, high = mKeys.length;
+			while (low < high) {
+				final int mid = low + high >>> 1;
+				if (mKeys[mid].compareTo(prefix) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			int count = 0;
+			for (int i = low; i < mKeys.length && mKeys[i].startsWith(prefix); i++) {
+				if (!matches[mRows[i]]) {
+					matches[mRows[i]] = true;
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package org.mariotaku.anokicert.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tuxed.misc.Hex;
+import net.tuxed.nokicert.CertInventory;
+import net.tuxed.nokicert.CertListParser.CertListItem;
+import net.tuxed.nokicert.DeviceRecord;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Keeps the certificate lists of all phones ever synchronised in a SQLite
+ * database, indexed on the certificate fingerprint.
+ */
+public class SQLiteCertInventory extends SQLiteOpenHelper implements CertInventory {
+
+	private static final String DATABASE_NAME = "inventory.db";
+	private static final int DATABASE_VERSION = 1;
+
+	private static final String TABLE_DEVICES = "devices";
+	private static final String TABLE_CERTIFICATES = "certificates";
+
+	private static final String IMEI = "imei";
+	private static final String ADDRESS = "address";
+	private static final String PHONE_MODEL = "phone_model";
+	private static final String FIRMWARE_VERSION = "firmware_version";
+	private static final String FIRMWARE_DATE = "firmware_date";
+	private static final String CDF_SIZE = "cdf_size";
+	private static final String CDF_TIME_STAMP = "cdf_time_stamp";
+	private static final String SYNC_TIME = "sync_time";
+
+	private static final String FILE_NAME = "file_name";
+	private static final String FINGERPRINT = "fingerprint";
+	private static final String HASH_OF_MODULUS = "hash_of_modulus";
+	private static final String UNKNOWN_FIELD = "unknown_field";
+	private static final String HASH_OF_SUBJECT = "hash_of_subject";
+	private static final String HASH_OF_ISSUER = "hash_of_issuer";
+	private static final String KEY_USAGE = "key_usage";
+
+	private static final String[] DEVICE_COLUMNS = { IMEI, ADDRESS, PHONE_MODEL, FIRMWARE_VERSION, FIRMWARE_DATE,
+			CDF_SIZE, CDF_TIME_STAMP, SYNC_TIME };
+	private static final String[] CERTIFICATE_COLUMNS = { FILE_NAME, FINGERPRINT, HASH_OF_MODULUS, UNKNOWN_FIELD,
+			HASH_OF_SUBJECT, HASH_OF_ISSUER, KEY_USAGE };
+
+	private static final String DEVICES_WITH_FINGERPRINT = "SELECT " + IMEI + " FROM " + TABLE_CERTIFICATES
+			+ " WHERE " + FINGERPRINT + " = ?";
+
+	public SQLiteCertInventory(final Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public ArrayList<CertListItem> getCertificates(final String imei) throws IOException {
+		final ArrayList<CertListItem> list = new ArrayList<CertListItem>();
+		try {
+			final Cursor c = getReadableDatabase().query(TABLE_CERTIFICATES, CERTIFICATE_COLUMNS, IMEI + " = ?",
+					new String[] { imei }, null, null, "rowid");
+			try {
+				while (c.moveToNext()) {
+					list.add(new CertListItem(c.getString(0), Hex.decode(c.getString(1)), c.getBlob(2), c
+							.getBlob(3), c.getBlob(4), c.getBlob(5), c.getInt(6)));
+				}
+			} finally {
+				c.close();
+			}
+		} catch (final SQLException e) {
+			throw new IOException("unable to read inventory", e);
+		}
+		return list;
+	}
+
+	@Override
+	public DeviceRecord getDevice(final String imei) throws IOException {
+		final ArrayList<DeviceRecord> list = queryDevices(IMEI + " = ?", imei);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	@Override
+	public ArrayList<DeviceRecord> getDevices() throws IOException {
+		return queryDevices(null, null);
+	}
+
+	@Override
+	public ArrayList<DeviceRecord> getDevicesWith(final byte[] fingerprint) throws IOException {
+		return queryDevices(IMEI + " IN (" + DEVICES_WITH_FINGERPRINT + ")", Hex.encode(fingerprint));
+	}
+
+	@Override
+	public ArrayList<DeviceRecord> getDevicesWithout(final byte[] fingerprint) throws IOException {
+		return queryDevices(IMEI + " NOT IN (" + DEVICES_WITH_FINGERPRINT + ")", Hex.encode(fingerprint));
+	}
+
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_DEVICES + " (" + IMEI + " TEXT PRIMARY KEY, " + ADDRESS + " TEXT, "
+				+ PHONE_MODEL + " TEXT, " + FIRMWARE_VERSION + " TEXT, " + FIRMWARE_DATE + " TEXT, " + CDF_SIZE
+				+ " INTEGER, " + CDF_TIME_STAMP + " INTEGER, " + SYNC_TIME + " INTEGER)");
+		db.execSQL("CREATE TABLE " + TABLE_CERTIFICATES + " (" + IMEI + " TEXT NOT NULL, " + FILE_NAME + " TEXT, "
+				+ FINGERPRINT + " TEXT NOT NULL, " + HASH_OF_MODULUS + " BLOB, " + UNKNOWN_FIELD + " BLOB, "
+				+ HASH_OF_SUBJECT + " BLOB, " + HASH_OF_ISSUER + " BLOB, " + KEY_USAGE + " INTEGER)");
+		db.execSQL("CREATE INDEX " + TABLE_CERTIFICATES + "_" + FINGERPRINT + " ON " + TABLE_CERTIFICATES + " ("
+				+ FINGERPRINT + ")");
+		db.execSQL("CREATE INDEX " + TABLE_CERTIFICATES + "_" + IMEI + " ON " + TABLE_CERTIFICATES + " (" + IMEI
+				+ ")");
+	}
+
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+		// The inventory is filled again by the next sync of every phone.
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_CERTIFICATES);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_DEVICES);
+		onCreate(db);
+	}
+
+	@Override
+	public void put(final DeviceRecord device, final List<CertListItem> certificates) throws IOException {
+		try {
+			final SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				putDevice(db, device);
+				final String[] imei = { device.getIMEI() };
+				db.delete(TABLE_CERTIFICATES, IMEI + " = ?", imei);
+				final ContentValues values = new ContentValues();
+				for (final CertListItem item : certificates) {
+					values.clear();
+					values.put(IMEI, device.getIMEI());
+					values.put(FILE_NAME, item.getFileName());
+					values.put(FINGERPRINT, Hex.encode(item.getFingerprint()));
+					values.put(HASH_OF_MODULUS, item.getHashOfModulus());
+					values.put(UNKNOWN_FIELD, item.getUnknownField());
+					values.put(HASH_OF_SUBJECT, item.getHashOfSubject());
+					values.put(HASH_OF_ISSUER, item.getHashOfIssuer());
+					values.put(KEY_USAGE, item.getKeyUsage());
+					db.insert(TABLE_CERTIFICATES, null, values);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (final SQLException e) {
+			throw new IOException("unable to update inventory", e);
+		}
+	}
+
+	@Override
+	public void putDevice(final DeviceRecord device) throws IOException {
+		try {
+			putDevice(getWritableDatabase(), device);
+		} catch (final SQLException e) {
+			throw new IOException("unable to update inventory", e);
+		}
+	}
+
+	@Override
+	public void remove(final String imei) throws IOException {
+		try {
+			final SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				final String[] args = { imei };
+				db.delete(TABLE_CERTIFICATES, IMEI + " = ?", args);
+				db.delete(TABLE_DEVICES, IMEI + " = ?", args);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (final SQLException e) {
+			throw new IOException("unable to update inventory", e);
+		}
+	}
+
+	private ArrayList<DeviceRecord> queryDevices(final String selection, final String arg) throws IOException {
+		final ArrayList<DeviceRecord> list = new ArrayList<DeviceRecord>();
+		try {
+			final Cursor c = getReadableDatabase().query(TABLE_DEVICES, DEVICE_COLUMNS, selection,
+					arg != null ? new String[] { arg } : null, null, null, IMEI);
+			try {
+				while (c.moveToNext()) {
+					list.add(new DeviceRecord(c.getString(0), c.getString(1), c.getString(2), c.getString(3), c
+							.getString(4), c.getInt(5), c.getLong(6), c.getLong(7)));
+				}
+			} finally {
+				c.close();
+			}
+		} catch (final SQLException e) {
+			throw new IOException("unable to read inventory", e);
+		}
+		return list;
+	}
+
+	private static void putDevice(final SQLiteDatabase db, final DeviceRecord device) {
+		final ContentValues values = new ContentValues();
+		values.put(IMEI, device.getIMEI());
+		values.put(ADDRESS, device.getAddress());
+		values.put(PHONE_MODEL, device.getPhoneModel());
+		values.put(FIRMWARE_VERSION, device.getFirmwareVersion());
+		values.put(FIRMWARE_DATE, device.getFirmwareDate());
+		values.put(CDF_SIZE, device.getCertificateListSize());
+		values.put(CDF_TIME_STAMP, device.getCertificateListTimeStamp());
+		values.put(SYNC_TIME, device.getSyncTime());
+		db.insertWithOnConflict(TABLE_DEVICES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+}
@@ -1,8 +1,8 @@
 package org.mariotaku.anokicert.util;
 
+import net.tuxed.misc.Hex;
+
 public final class Utils {
-	/** Hexadecimal digits. */
-	private static final char[] hc = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
 
 	/**
 	 * Converts a byte array into a corresponding string of hexadecimal digits.
@@ -42,34 +42,7 @@ public final class Utils {
 	 * @return a string of corresponding hexadecimal digits or an error string
 	 */
 	public static char[] hexEncodeToChars(final byte[] b, final int off, final int len) {
-		char[] r;
-		int v;
-		int i;
-		int j;
-
 		if (b == null || len == 0) return new char[0];
-
-		if (off < 0 || len < 0) throw new ArrayIndexOutOfBoundsException();
-
-		if (len == 1) {
-			r = new char[len * 2];
-		} else {
-			r = new char[len * 3 - 1];
-		}
-
-		for (i = 0, j = 0;;) {
-			v = b[off + i] & 0xff;
-			r[j++] = hc[v >>> 4];
-			r[j++] = hc[v & 0x0f];
-
-			i++;
-			if (i >= len) {
-				break;
-			}
-
-			r[j++] = ':';
-		}
-
-		return r;
+		return Hex.encodeToChars(b, off, len, true, ':');
 	}
 }